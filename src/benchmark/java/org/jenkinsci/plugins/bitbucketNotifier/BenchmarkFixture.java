@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Builds the mocked Jenkins, build and notifier the benchmarks run against.
+ * <p>
+ * JMH cannot run under PowerMock, so the Jenkins singleton is installed by
+ * reflection instead of mocking the static accessor. The mocks answer with
+ * fixed values; their own overhead is part of every measurement.
+ */
+final class BenchmarkFixture {
+
+	static final String ROOT_URL = "http://jenkins.example.com/";
+
+	/** discards everything written to it, like a build log nobody reads. */
+	static final PrintStream NULL_LOGGER = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	final BitbucketNotifier notifier;
+	final AbstractBuild<?, ?> build;
+	final BuildListener listener;
+
+	/**
+	 * @param buildDataActions	number of git BuildData actions of the build
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	BenchmarkFixture(String serverUrl, int buildDataActions) throws IOException {
+		Jenkins jenkins = mock(Jenkins.class);
+		File rootDir = File.createTempFile("jenkins", "");
+		rootDir.delete();
+		rootDir.mkdirs();
+		rootDir.deleteOnExit();
+		when(jenkins.getRootDir()).thenReturn(rootDir);
+		when(jenkins.getRootUrl()).thenReturn(ROOT_URL);
+		installJenkins(jenkins);
+
+		BitbucketNotifier.DescriptorImpl descriptor = new BitbucketNotifier.DescriptorImpl();
+		when(jenkins.getDescriptorOrDie(BitbucketNotifier.class)).thenReturn(descriptor);
+
+		AbstractProject project = mock(AbstractProject.class);
+		when(project.getName()).thenReturn("bitbucket-notifier-benchmark");
+
+		List<BuildData> actions = new ArrayList<BuildData>(buildDataActions);
+		for (int i = 0; i < buildDataActions; i++) {
+			actions.add(buildData(sha1(i), sha1(i + buildDataActions)));
+		}
+
+		AbstractBuild build = mock(AbstractBuild.class);
+		when(build.getProject()).thenReturn(project);
+		when(build.getParent()).thenReturn(project);
+		when(build.getNumber()).thenReturn(42);
+		when(build.getFullDisplayName()).thenReturn(
+				"folder \u00BB bitbucket-notifier-benchmark #42");
+		when(build.getUrl()).thenReturn("job/folder/job/bitbucket-notifier-benchmark/42/");
+		when(build.getActions(BuildData.class)).thenReturn(actions);
+		this.build = build;
+
+		listener = mock(BuildListener.class);
+		when(listener.getLogger()).thenReturn(NULL_LOGGER);
+
+		notifier = new BitbucketNotifier(
+				serverUrl, "", false, null, true, null, false, false,
+				0, 0, 0, 0);
+	}
+
+	static String sha1(int i) {
+		return String.format("%040x", i);
+	}
+
+	private static BuildData buildData(String lastBuilt, String marked) {
+		BuildData buildData = mock(BuildData.class);
+		Revision lastBuiltRevision = mock(Revision.class);
+		when(lastBuiltRevision.getSha1String()).thenReturn(lastBuilt);
+		when(buildData.getLastBuiltRevision()).thenReturn(lastBuiltRevision);
+		Revision markedRevision = mock(Revision.class);
+		when(markedRevision.getSha1String()).thenReturn(marked);
+		Build lastBuild = mock(Build.class);
+		when(lastBuild.getMarked()).thenReturn(markedRevision);
+		buildData.lastBuild = lastBuild;
+		return buildData;
+	}
+
+	private static void installJenkins(Jenkins jenkins) {
+		try {
+			Field instance = Jenkins.class.getDeclaredField("theInstance");
+			instance.setAccessible(true);
+			instance.set(null, jenkins);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot install mocked Jenkins", e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks sending a notification end to end against an in-process HTTP
+ * server that accepts every status, with a new client per request as the
+ * plugin used to do and with the shared pooled clients of both transports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotifyBitbucketBenchmark {
+
+	@Param({"pooled", "async", "perRequest"})
+	public String client;
+
+	private HttpServer server;
+
+	private ExecutorService serverExecutor;
+
+	private BenchmarkFixture fixture;
+
+	private BitbucketNotification notification;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream body = exchange.getRequestBody();
+				byte[] buffer = new byte[4096];
+				while (body.read(buffer) != -1) {
+					// drain the request
+				}
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		serverExecutor = Executors.newFixedThreadPool(4);
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		BitbucketClientRegistry.get().setTransportType(
+				"async".equals(client) ? TransportType.ASYNC : TransportType.BLOCKING);
+		String serverUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+		fixture = new BenchmarkFixture(serverUrl, 1);
+		notification = new BitbucketNotification(
+				serverUrl,
+				"",
+				false,
+				BenchmarkFixture.sha1(1),
+				fixture.notifier.getBuildKey(fixture.build, fixture.listener),
+				BitbucketBuildState.SUCCESSFUL,
+				fixture.notifier.newBitbucketBuildNotificationEntity(
+						fixture.build, BitbucketBuildState.SUCCESSFUL, fixture.listener),
+				HttpTimeouts.DEFAULT,
+				new NotificationCallback(BenchmarkFixture.NULL_LOGGER));
+	}
+
+	@TearDown
+	public void tearDown() {
+		BitbucketClientRegistry.get().shutdown();
+		BitbucketClientRegistry.get().setTransportType(TransportType.BLOCKING);
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	public int notifyBitbucket() throws Exception {
+		if (!"perRequest".equals(client)) {
+			return BitbucketNotifier.notifyBitbucket(notification).statusCode;
+		}
+		CloseableHttpClient perRequest = HttpClientBuilder.create().build();
+		try {
+			HttpPost request = BitbucketNotifier.createRequest(notification);
+			HttpResponse response = perRequest.execute(request);
+			EntityUtils.consume(response.getEntity());
+			return response.getStatusLine().getStatusCode();
+		} finally {
+			perRequest.close();
+		}
+	}
+}
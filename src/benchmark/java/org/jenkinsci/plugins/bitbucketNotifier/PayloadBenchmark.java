@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building what is sent to Bitbucket: the build key, the JSON
+ * payload and the set of commits to notify, scanned from the BuildData
+ * actions and cached per build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+	@Param({"1", "10", "100"})
+	public int buildDataActions;
+
+	private BenchmarkFixture fixture;
+
+	private String shortText;
+
+	private String longText;
+
+	private BuildNotificationContext context;
+
+	@Setup
+	public void setUp() throws Exception {
+		fixture = new BenchmarkFixture("http://localhost:7990", buildDataActions);
+		shortText = "built by Jenkins @ " + BenchmarkFixture.ROOT_URL;
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 4 * BitbucketNotifier.MAX_URL_FIELD_LENGTH) {
+			text.append(shortText);
+		}
+		longText = text.toString();
+		context = new BuildNotificationContext();
+	}
+
+	@Benchmark
+	public HttpEntity notificationEntity() throws Exception {
+		return fixture.notifier.newBitbucketBuildNotificationEntity(
+				fixture.build, BitbucketBuildState.SUCCESSFUL, fixture.listener);
+	}
+
+	@Benchmark
+	public String buildKey() {
+		return fixture.notifier.getBuildKey(fixture.build, fixture.listener);
+	}
+
+	@Benchmark
+	public String defaultBuildKey() {
+		return fixture.notifier.getDefaultBuildKey(fixture.build);
+	}
+
+	@Benchmark
+	public String abbreviateShort() {
+		return BitbucketNotifier.abbreviate(shortText, BitbucketNotifier.MAX_FIELD_LENGTH);
+	}
+
+	@Benchmark
+	public String abbreviateLong() {
+		return BitbucketNotifier.abbreviate(longText, BitbucketNotifier.MAX_URL_FIELD_LENGTH);
+	}
+
+	@Benchmark
+	public Collection<String> lookupCommitSha1s() {
+		return BitbucketNotifier.lookupBuiltCommitSha1s(fixture.build);
+	}
+
+	@Benchmark
+	public Collection<String> cachedCommitSha1s() {
+		return context.getBuiltCommitSha1s(fixture.build);
+	}
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends requests with the non-blocking Apache HttpAsyncClient. Requests
+ * and responses are handled by a single I/O dispatcher thread per client,
+ * which serves all connections to the server.
+ * <p>
+ * The calling thread still waits for the response, so each request in
+ * flight holds the thread that sent it. On platform threads the requests in
+ * flight are therefore bounded by the worker threads of the
+ * {@link NotificationDispatcher}, as with the blocking transport. Only on
+ * virtual threads, see {@link NotificationThreads}, does waiting not hold a
+ * platform thread, and only the limits per server bound the requests.
+ */
+final class AsyncTransport implements BitbucketTransport {
+
+	static final AsyncTransport INSTANCE = new AsyncTransport();
+
+	private AsyncTransport() {
+	}
+
+	public HttpResponse execute(BitbucketNotification notification, HttpUriRequest request)
+			throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		CloseableHttpAsyncClient client = BitbucketClientRegistry.get().getAsyncClient(
+				notification.callback.getLogger(),
+				BitbucketClientRegistry.ClientKey.of(notification));
+		NotificationMetrics.get().recordClientLookup(System.nanoTime() - start);
+		Future<HttpResponse> response = client.execute(request, null);
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			response.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		}
+	}
+
+	/**
+	 * Translates the failure of a request into the exception the blocking
+	 * client would have thrown.
+	 */
+	static IOException unwrap(Throwable cause) {
+		if (cause instanceof TimeoutException) {
+			// the pool could not lease a connection in time
+			return new ConnectionPoolTimeoutException(cause.getMessage());
+		}
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new IOException(cause);
+	}
+}
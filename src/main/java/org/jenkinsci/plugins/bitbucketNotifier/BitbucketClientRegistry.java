@@ -0,0 +1,828 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.ProxyConfiguration;
+import jenkins.model.Jenkins;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide registry of long-lived, pooled HTTP clients used to talk
+ * to Bitbucket.
+ * <p>
+ * One client is kept per effective server (scheme, host and port), SSL mode,
+ * credentials and proxy, and per pool size for named
+ * {@link BitbucketServer}s. Connections are kept alive between
+ * notifications, so subsequent status updates to the same server skip the
+ * TCP and TLS handshakes. Idle and expired connections are evicted in the
+ * background and clients that have not been used for a while are retired.
+ * <p>
+ * When the credentials change, the clients are retired as well: they are no
+ * longer handed out, and the evictor closes each of them once none of its
+ * connections is leased, so requests in flight are not cut off. This
+ * includes requests on a client handed out just before it was retired.
+ * <p>
+ * Every client applies the global timeouts unless a request brings its own,
+ * and connections are not reused beyond their time to live.
+ * <p>
+ * Blocking and non-blocking clients are kept apart, for the two
+ * {@link TransportType}s. Each non-blocking client has a single I/O
+ * dispatcher thread serving all of its connections.
+ */
+final class BitbucketClientRegistry {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(BitbucketClientRegistry.class.getName());
+
+	/** maximum number of pooled connections per client. */
+	static final int MAX_CONNECTIONS_TOTAL = 20;
+
+	/** keep-alive used when the server does not send a Keep-Alive header. */
+	static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/** connections idle for longer than this are closed by the evictor. */
+	static final long MAX_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/** clients not used for longer than this are retired. */
+	static final long MAX_UNUSED_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	/** interval of the background eviction run. */
+	static final long EVICTION_INTERVAL_SECONDS = 5;
+
+	private static final BitbucketClientRegistry INSTANCE
+			= new BitbucketClientRegistry();
+
+	private final ConcurrentMap<ClientKey, PooledClient> clients
+			= new ConcurrentHashMap<ClientKey, PooledClient>();
+
+	private final ConcurrentMap<ClientKey, PooledAsyncClient> asyncClients
+			= new ConcurrentHashMap<ClientKey, PooledAsyncClient>();
+
+	/** clients no longer handed out, closed by the evictor once idle. */
+	private final Queue<PooledClient> retiredClients
+			= new ConcurrentLinkedQueue<PooledClient>();
+
+	private final Queue<PooledAsyncClient> retiredAsyncClients
+			= new ConcurrentLinkedQueue<PooledAsyncClient>();
+
+	private final AtomicInteger ioThreadNumber = new AtomicInteger();
+
+	private ScheduledExecutorService evictor;
+
+	/** maximum number of pooled connections per route. */
+	private volatile int maxConnectionsPerRoute
+			= ServerConcurrencyLimiter.DEFAULT_MAX_CONCURRENT_REQUESTS;
+
+	/** timeouts of requests that do not bring their own. */
+	private volatile RequestConfig defaultRequestConfig
+			= HttpTimeouts.DEFAULT.toRequestConfig();
+
+	private volatile TransportType transportType = TransportType.BLOCKING;
+
+	private BitbucketClientRegistry() {
+	}
+
+	/**
+	 * @return the controller-wide registry
+	 */
+	static BitbucketClientRegistry get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the shared client for the given settings, creating it on first
+	 * use. The returned client must not be closed by the caller.
+	 *
+	 * @param logger				the logger to report SSL setup problems to
+	 * @param serverUrl				the effective Bitbucket base URL
+	 * @param ignoreUnverifiedSSL	whether to trust any SSL certificate
+	 * @param credentialsId			the id of the credentials to use, may be blank
+	 * @param connectionTtl			time to live of pooled connections in seconds
+	 * @return						the pooled HTTP client
+	 */
+	CloseableHttpClient getClient(
+			final PrintStream logger,
+			final String serverUrl,
+			final boolean ignoreUnverifiedSSL,
+			final String credentialsId,
+			final int connectionTtl) throws MalformedURLException {
+
+		return getClient(logger, ClientKey.create(
+				new URL(serverUrl), ignoreUnverifiedSSL, credentialsId, connectionTtl));
+	}
+
+	/**
+	 * Returns the shared client for the given key, creating it on first use.
+	 * The returned client must not be closed by the caller.
+	 *
+	 * @param logger	the logger to report SSL setup problems to
+	 * @param key		identifies the client, see {@link ClientKey#of}
+	 * @return			the pooled HTTP client
+	 */
+	CloseableHttpClient getClient(final PrintStream logger, final ClientKey key) {
+		PooledClient pooled = clients.get(key);
+		if (pooled == null) {
+			PooledClient created = createClient(logger, key);
+			pooled = clients.putIfAbsent(key, created);
+			if (pooled == null) {
+				pooled = created;
+				startEvictor();
+			} else {
+				created.close();
+			}
+		}
+		pooled.lastUsed = System.currentTimeMillis();
+		return pooled.client;
+	}
+
+	/**
+	 * Returns the shared non-blocking client for the given settings,
+	 * creating and starting it on first use. The returned client must not
+	 * be closed by the caller.
+	 *
+	 * @param logger				the logger to report SSL setup problems to
+	 * @param serverUrl				the effective Bitbucket base URL
+	 * @param ignoreUnverifiedSSL	whether to trust any SSL certificate
+	 * @param credentialsId			the id of the credentials to use, may be blank
+	 * @param connectionTtl			time to live of pooled connections in seconds
+	 * @return						the pooled, running HTTP client
+	 */
+	CloseableHttpAsyncClient getAsyncClient(
+			final PrintStream logger,
+			final String serverUrl,
+			final boolean ignoreUnverifiedSSL,
+			final String credentialsId,
+			final int connectionTtl) throws IOException {
+
+		return getAsyncClient(logger, ClientKey.create(
+				new URL(serverUrl), ignoreUnverifiedSSL, credentialsId, connectionTtl));
+	}
+
+	/**
+	 * Returns the shared non-blocking client for the given key, creating and
+	 * starting it on first use. The returned client must not be closed by
+	 * the caller.
+	 *
+	 * @param logger	the logger to report SSL setup problems to
+	 * @param key		identifies the client, see {@link ClientKey#of}
+	 * @return			the pooled, running HTTP client
+	 */
+	CloseableHttpAsyncClient getAsyncClient(final PrintStream logger, final ClientKey key)
+			throws IOException {
+		PooledAsyncClient pooled = asyncClients.get(key);
+		if (pooled == null) {
+			PooledAsyncClient created = createAsyncClient(logger, key);
+			pooled = asyncClients.putIfAbsent(key, created);
+			if (pooled == null) {
+				pooled = created;
+				pooled.client.start();
+				startEvictor();
+			} else {
+				created.close();
+			}
+		}
+		pooled.lastUsed = System.currentTimeMillis();
+		return pooled.client;
+	}
+
+	/**
+	 * @param transportType	how requests are sent from now on
+	 */
+	void setTransportType(TransportType transportType) {
+		this.transportType = transportType != null ? transportType : TransportType.BLOCKING;
+	}
+
+	/**
+	 * @return the transport requests are sent with
+	 */
+	BitbucketTransport getTransport() {
+		return transportType.getTransport();
+	}
+
+	/**
+	 * Sizes the connection pools to the number of requests that may be sent
+	 * to a server concurrently. Pools of named servers with a limit of
+	 * their own keep their size.
+	 *
+	 * @param maxConnectionsPerRoute	maximum pooled connections per route
+	 */
+	void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = Math.max(1, maxConnectionsPerRoute);
+		for (Map.Entry<ClientKey, PooledClient> entry : clients.entrySet()) {
+			configurePool(entry.getValue().manager, entry.getKey());
+		}
+		for (Map.Entry<ClientKey, PooledAsyncClient> entry : asyncClients.entrySet()) {
+			configurePool(entry.getValue().manager, entry.getKey());
+		}
+	}
+
+	/**
+	 * Sets the timeouts of clients created from now on, for requests that
+	 * do not bring their own.
+	 *
+	 * @param timeouts	the global timeouts
+	 */
+	void setDefaultTimeouts(HttpTimeouts timeouts) {
+		defaultRequestConfig = timeouts.toRequestConfig();
+	}
+
+	/**
+	 * @return the usage of the connection pools, summed up per server
+	 */
+	Map<String, PoolStats> getPoolStats() {
+		Map<String, PoolStats> stats = new TreeMap<String, PoolStats>();
+		for (Map.Entry<ClientKey, PooledClient> entry : clients.entrySet()) {
+			add(stats, entry.getKey().toString(), entry.getValue().manager.getTotalStats());
+		}
+		for (Map.Entry<ClientKey, PooledAsyncClient> entry : asyncClients.entrySet()) {
+			add(stats, entry.getKey().toString(), entry.getValue().manager.getTotalStats());
+		}
+		return stats;
+	}
+
+	private static void add(Map<String, PoolStats> stats, String server, PoolStats pool) {
+		PoolStats previous = stats.get(server);
+		if (previous != null) {
+			pool = new PoolStats(
+					previous.getLeased() + pool.getLeased(),
+					previous.getPending() + pool.getPending(),
+					previous.getAvailable() + pool.getAvailable(),
+					previous.getMax() + pool.getMax());
+		}
+		stats.put(server, pool);
+	}
+
+	private void configurePool(PoolingHttpClientConnectionManager manager, ClientKey key) {
+		int perRoute = key.maxConnections > 0 ? key.maxConnections : maxConnectionsPerRoute;
+		manager.setMaxTotal(Math.max(MAX_CONNECTIONS_TOTAL, perRoute));
+		manager.setDefaultMaxPerRoute(perRoute);
+	}
+
+	private void configurePool(PoolingNHttpClientConnectionManager manager, ClientKey key) {
+		int perRoute = key.maxConnections > 0 ? key.maxConnections : maxConnectionsPerRoute;
+		manager.setMaxTotal(Math.max(MAX_CONNECTIONS_TOTAL, perRoute));
+		manager.setDefaultMaxPerRoute(perRoute);
+	}
+
+	/**
+	 * Stops handing out the pooled clients, e.g. as the credentials they
+	 * were built with changed. Clients requested afterwards are created from
+	 * scratch, the retired ones are closed by the evictor once they are idle.
+	 */
+	void retireAll() {
+		boolean retired = false;
+		for (Iterator<PooledClient> it = clients.values().iterator(); it.hasNext();) {
+			PooledClient pooled = it.next();
+			it.remove();
+			retiredClients.add(pooled);
+			retired = true;
+		}
+		for (Iterator<PooledAsyncClient> it = asyncClients.values().iterator(); it.hasNext();) {
+			PooledAsyncClient pooled = it.next();
+			it.remove();
+			retiredAsyncClients.add(pooled);
+			retired = true;
+		}
+		if (retired) {
+			startEvictor();
+		}
+	}
+
+	/**
+	 * Closes all pooled clients, including retired ones, and stops the
+	 * background eviction. Clients requested afterwards are created from
+	 * scratch.
+	 */
+	synchronized void shutdown() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		PooledClient retired;
+		while ((retired = retiredClients.poll()) != null) {
+			retired.close();
+		}
+		PooledAsyncClient retiredAsync;
+		while ((retiredAsync = retiredAsyncClients.poll()) != null) {
+			retiredAsync.close();
+		}
+		for (Iterator<PooledClient> it = clients.values().iterator(); it.hasNext();) {
+			PooledClient pooled = it.next();
+			it.remove();
+			pooled.close();
+		}
+		for (Iterator<PooledAsyncClient> it = asyncClients.values().iterator(); it.hasNext();) {
+			PooledAsyncClient pooled = it.next();
+			it.remove();
+			pooled.close();
+		}
+	}
+
+	private synchronized void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Bitbucket notifier connection evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evict();
+			}
+		}, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void evict() {
+		long now = System.currentTimeMillis();
+		for (Iterator<PooledClient> it = retiredClients.iterator(); it.hasNext();) {
+			PooledClient pooled = it.next();
+			if (pooled.isIdle(now)) {
+				it.remove();
+				pooled.close();
+			}
+		}
+		for (Iterator<PooledAsyncClient> it = retiredAsyncClients.iterator(); it.hasNext();) {
+			PooledAsyncClient pooled = it.next();
+			if (pooled.isIdle(now)) {
+				it.remove();
+				pooled.close();
+			}
+		}
+		for (Map.Entry<ClientKey, PooledClient> entry : clients.entrySet()) {
+			PooledClient pooled = entry.getValue();
+			try {
+				if (now - pooled.lastUsed > MAX_UNUSED_MILLIS
+						&& clients.remove(entry.getKey(), pooled)) {
+					// may just have been handed out, closed once idle
+					retiredClients.add(pooled);
+				} else {
+					pooled.manager.closeExpiredConnections();
+					pooled.manager.closeIdleConnections(
+							MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to evict connections to " + entry.getKey(), e);
+			}
+		}
+		for (Map.Entry<ClientKey, PooledAsyncClient> entry : asyncClients.entrySet()) {
+			PooledAsyncClient pooled = entry.getValue();
+			try {
+				if (now - pooled.lastUsed > MAX_UNUSED_MILLIS
+						&& asyncClients.remove(entry.getKey(), pooled)) {
+					// may just have been handed out, closed once idle
+					retiredAsyncClients.add(pooled);
+				} else {
+					pooled.manager.closeExpiredConnections();
+					pooled.manager.closeIdleConnections(
+							MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to evict connections to " + entry.getKey(), e);
+			}
+		}
+	}
+
+	private PooledClient createClient(PrintStream logger, ClientKey key) {
+		RegistryBuilder<ConnectionSocketFactory> registry
+				= RegistryBuilder.<ConnectionSocketFactory>create()
+					.register("http", PlainConnectionSocketFactory.getSocketFactory())
+					.register("https", SSLConnectionSocketFactory.getSocketFactory());
+
+		if (key.scheme.equals("https")) {
+			try {
+				SSLConnectionSocketFactory sslConnSocketFactory
+						= CredentialsCache.get().getSocketFactory(
+								key.credentialsId, key.ignoreUnverifiedSSL);
+				if (sslConnSocketFactory != null) {
+					registry.register("https", sslConnSocketFactory);
+				}
+			} catch (NoSuchAlgorithmException nsae) {
+				logger.println("Couldn't establish SSL context:");
+				nsae.printStackTrace(logger);
+			} catch (GeneralSecurityException gse) {
+				logger.println("Couldn't initialize SSL context:");
+				gse.printStackTrace(logger);
+			}
+		}
+
+		Registry<ConnectionSocketFactory> socketFactories = registry.build();
+		PoolingHttpClientConnectionManager manager
+				= new PoolingHttpClientConnectionManager(
+						socketFactories, null, null, null,
+						key.connectionTtl, TimeUnit.SECONDS);
+		configurePool(manager, key);
+
+		HttpClientBuilder builder = HttpClientBuilder.create();
+		builder.setConnectionManager(manager);
+		builder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+		builder.setDefaultRequestConfig(defaultRequestConfig);
+
+		if (key.proxyHost != null) {
+			HttpHost proxyHost = new HttpHost(key.proxyHost, key.proxyPort);
+			builder.setProxy(proxyHost);
+
+			if (key.proxyUser != null) {
+				BasicCredentialsProvider cred = new BasicCredentialsProvider();
+				cred.setCredentials(new AuthScope(proxyHost),
+						new UsernamePasswordCredentials(key.proxyUser, key.proxyPassword));
+				builder.setDefaultCredentialsProvider(cred);
+				builder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+			}
+		}
+
+		return new PooledClient(builder.build(), manager);
+	}
+
+	/**
+	 * Creates a non-blocking client with the same SSL and proxy setup as
+	 * {@link #createClient(PrintStream, ClientKey)}.
+	 */
+	private PooledAsyncClient createAsyncClient(PrintStream logger, ClientKey key)
+			throws IOException {
+		SchemeIOSessionStrategy ssl = SSLIOSessionStrategy.getDefaultStrategy();
+		if (key.scheme.equals("https")) {
+			try {
+				SSLIOSessionStrategy strategy = CredentialsCache.get().getSslStrategy(
+						key.credentialsId, key.ignoreUnverifiedSSL);
+				if (strategy != null) {
+					ssl = strategy;
+				}
+			} catch (NoSuchAlgorithmException nsae) {
+				logger.println("Couldn't establish SSL context:");
+				nsae.printStackTrace(logger);
+			} catch (GeneralSecurityException gse) {
+				logger.println("Couldn't initialize SSL context:");
+				gse.printStackTrace(logger);
+			}
+		}
+
+		ThreadFactory ioThreads = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Bitbucket notifier I/O #"
+						+ ioThreadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(
+				IOReactorConfig.custom().setIoThreadCount(1).build(), ioThreads);
+		PoolingNHttpClientConnectionManager manager
+				= new PoolingNHttpClientConnectionManager(
+						reactor, null,
+						RegistryBuilder.<SchemeIOSessionStrategy>create()
+								.register("http", NoopIOSessionStrategy.INSTANCE)
+								.register("https", ssl)
+								.build(),
+						null, null, key.connectionTtl, TimeUnit.SECONDS);
+		configurePool(manager, key);
+
+		HttpAsyncClientBuilder builder = HttpAsyncClients.custom();
+		builder.setConnectionManager(manager);
+		builder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+		builder.setDefaultRequestConfig(defaultRequestConfig);
+		builder.setThreadFactory(ioThreads);
+
+		if (key.proxyHost != null) {
+			HttpHost proxyHost = new HttpHost(key.proxyHost, key.proxyPort);
+			builder.setProxy(proxyHost);
+
+			if (key.proxyUser != null) {
+				BasicCredentialsProvider cred = new BasicCredentialsProvider();
+				cred.setCredentials(new AuthScope(proxyHost),
+						new UsernamePasswordCredentials(key.proxyUser, key.proxyPassword));
+				builder.setDefaultCredentialsProvider(cred);
+				builder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+			}
+		}
+
+		return new PooledAsyncClient(builder.build(), manager);
+	}
+
+	/**
+	 * Honors the Keep-Alive timeout announced by the server and falls back to
+	 * {@link #DEFAULT_KEEP_ALIVE_MILLIS} otherwise.
+	 */
+	private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY
+			= new ConnectionKeepAliveStrategy() {
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(
+					response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement he = it.nextElement();
+				if (he.getValue() != null && he.getName().equalsIgnoreCase("timeout")) {
+					try {
+						return Long.parseLong(he.getValue()) * 1000;
+					} catch (NumberFormatException ignore) {
+						// fall through to the default
+					}
+				}
+			}
+			return DEFAULT_KEEP_ALIVE_MILLIS;
+		}
+	};
+
+	/**
+	 * A client together with its connection pool.
+	 */
+	private static final class PooledClient {
+
+		final CloseableHttpClient client;
+		final PoolingHttpClientConnectionManager manager;
+		volatile long lastUsed = System.currentTimeMillis();
+
+		PooledClient(
+				CloseableHttpClient client,
+				PoolingHttpClientConnectionManager manager) {
+			this.client = client;
+			this.manager = manager;
+		}
+
+		/**
+		 * @return	whether none of the connections is leased and the client
+		 * 			was not handed out for an eviction interval, or not used
+		 * 			for long
+		 */
+		boolean isIdle(long now) {
+			PoolStats stats = manager.getTotalStats();
+			long unused = now - lastUsed;
+			return unused > MAX_UNUSED_MILLIS
+					|| (unused > TimeUnit.SECONDS.toMillis(EVICTION_INTERVAL_SECONDS)
+							&& stats.getLeased() == 0 && stats.getPending() == 0);
+		}
+
+		void close() {
+			try {
+				client.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to close HTTP client", e);
+			} finally {
+				manager.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * A non-blocking client together with its connection pool.
+	 */
+	private static final class PooledAsyncClient {
+
+		final CloseableHttpAsyncClient client;
+		final PoolingNHttpClientConnectionManager manager;
+		volatile long lastUsed = System.currentTimeMillis();
+
+		PooledAsyncClient(
+				CloseableHttpAsyncClient client,
+				PoolingNHttpClientConnectionManager manager) {
+			this.client = client;
+			this.manager = manager;
+		}
+
+		/**
+		 * @return	whether none of the connections is leased and the client
+		 * 			was not handed out for an eviction interval, or not used
+		 * 			for long
+		 */
+		boolean isIdle(long now) {
+			PoolStats stats = manager.getTotalStats();
+			long unused = now - lastUsed;
+			return unused > MAX_UNUSED_MILLIS
+					|| (unused > TimeUnit.SECONDS.toMillis(EVICTION_INTERVAL_SECONDS)
+							&& stats.getLeased() == 0 && stats.getPending() == 0);
+		}
+
+		void close() {
+			try {
+				client.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to close HTTP client", e);
+			} finally {
+				try {
+					manager.shutdown();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Failed to shut down connection pool", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Identifies a pooled client: everything that influences how connections
+	 * to the server are established.
+	 */
+	static final class ClientKey {
+
+		final String scheme;
+		final String host;
+		final int port;
+		final boolean ignoreUnverifiedSSL;
+		final String credentialsId;
+		final String proxyHost;
+		final int proxyPort;
+		final String proxyUser;
+		final String proxyPassword;
+		final int connectionTtl;
+		/** size of the pool, 0 for the global setting. */
+		final int maxConnections;
+
+		private ClientKey(
+				String scheme,
+				String host,
+				int port,
+				boolean ignoreUnverifiedSSL,
+				String credentialsId,
+				String proxyHost,
+				int proxyPort,
+				String proxyUser,
+				String proxyPassword,
+				int connectionTtl,
+				int maxConnections) {
+			this.scheme = scheme;
+			this.host = host;
+			this.port = port;
+			this.ignoreUnverifiedSSL = ignoreUnverifiedSSL;
+			this.credentialsId = StringUtils.isBlank(credentialsId) ? "" : credentialsId;
+			this.proxyHost = proxyHost;
+			this.proxyPort = proxyPort;
+			this.proxyUser = proxyUser;
+			this.proxyPassword = proxyPassword;
+			this.connectionTtl = connectionTtl;
+			this.maxConnections = maxConnections;
+		}
+
+		/**
+		 * @return the key of the client to send the notification with
+		 */
+		static ClientKey of(BitbucketNotification notification) throws MalformedURLException {
+			if (notification.definition != null) {
+				return notification.definition.getClientKey();
+			}
+			return create(
+					new URL(notification.serverUrl),
+					notification.ignoreUnverifiedSSL,
+					notification.credentialsId,
+					notification.timeouts.connectionTtl);
+		}
+
+		/**
+		 * Builds the key for the given server, resolving the proxy from the
+		 * Jenkins proxy configuration. Using the Jenkins methods handles the
+		 * noProxyHost settings.
+		 */
+		static ClientKey create(
+				URL url,
+				boolean ignoreUnverifiedSSL,
+				String credentialsId,
+				int connectionTtl) {
+			return create(url, ignoreUnverifiedSSL, credentialsId, connectionTtl, 0);
+		}
+
+		/**
+		 * Builds the key for the given server with a pool of its own size.
+		 *
+		 * @param maxConnections	size of the pool, 0 for the global setting
+		 */
+		static ClientKey create(
+				URL url,
+				boolean ignoreUnverifiedSSL,
+				String credentialsId,
+				int connectionTtl,
+				int maxConnections) {
+
+			String proxyHost = null;
+			int proxyPort = -1;
+			String proxyUser = null;
+			String proxyPassword = null;
+
+			ProxyConfiguration proxyConfig = Jenkins.getInstance().proxy;
+			if (proxyConfig != null) {
+				Proxy proxy = proxyConfig.createProxy(url.getHost());
+				if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
+					SocketAddress addr = proxy.address();
+					if (addr != null && addr instanceof InetSocketAddress) {
+						InetSocketAddress proxyAddr = (InetSocketAddress) addr;
+						proxyHost = proxyAddr.getAddress().getHostAddress();
+						proxyPort = proxyAddr.getPort();
+						proxyUser = proxyConfig.getUserName();
+						if (proxyUser != null) {
+							proxyPassword = proxyConfig.getPassword();
+						}
+					}
+				}
+			}
+
+			return new ClientKey(
+					url.getProtocol(),
+					url.getHost().toLowerCase(),
+					url.getPort() != -1 ? url.getPort() : url.getDefaultPort(),
+					ignoreUnverifiedSSL,
+					credentialsId,
+					proxyHost,
+					proxyPort,
+					proxyUser,
+					proxyPassword,
+					connectionTtl,
+					maxConnections);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) o;
+			return port == other.port
+					&& connectionTtl == other.connectionTtl
+					&& maxConnections == other.maxConnections
+					&& ignoreUnverifiedSSL == other.ignoreUnverifiedSSL
+					&& proxyPort == other.proxyPort
+					&& scheme.equals(other.scheme)
+					&& host.equals(other.host)
+					&& credentialsId.equals(other.credentialsId)
+					&& StringUtils.equals(proxyHost, other.proxyHost)
+					&& StringUtils.equals(proxyUser, other.proxyUser)
+					&& StringUtils.equals(proxyPassword, other.proxyPassword);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = scheme.hashCode();
+			result = 31 * result + host.hashCode();
+			result = 31 * result + port;
+			result = 31 * result + (ignoreUnverifiedSSL ? 1 : 0);
+			result = 31 * result + credentialsId.hashCode();
+			result = 31 * result + (proxyHost != null ? proxyHost.hashCode() : 0);
+			result = 31 * result + proxyPort;
+			result = 31 * result + (proxyUser != null ? proxyUser.hashCode() : 0);
+			result = 31 * result + connectionTtl;
+			result = 31 * result + maxConnections;
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return scheme + "://" + host + ":" + port;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.HttpEntity;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fully resolved build status notification, ready to be POSTed to
+ * Bitbucket without access to the originating build or job configuration.
+ */
+final class BitbucketNotification {
+
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	/** creation order of notifications, higher is newer. */
+	final long sequence;
+
+	/** the effective base url of the Bitbucket server. */
+	final String serverUrl;
+
+	/** scheme, host and port of the server, see {@link ServerConcurrencyLimiter#serverOf}. */
+	final String server;
+
+	/** the effective id of the credentials to use, may be blank. */
+	final String credentialsId;
+
+	/** the named server of the global configuration, null if none is used. */
+	final BitbucketServer definition;
+
+	/**
+	 * the name of the named server, or the server: notifications in the
+	 * same lane share a concurrency limit.
+	 */
+	final String lane;
+
+	/** concurrent requests allowed in the lane, 0 for the global setting. */
+	final int maxConcurrentRequests;
+
+	/** the effective setting for ignoring unverified SSL peers. */
+	final boolean ignoreUnverifiedSSL;
+
+	/** the SHA1 of the commit that was built. */
+	final String commitSha1;
+
+	/** the build key sent to Bitbucket. */
+	final String key;
+
+	/** full name of the job that was built, may be null. */
+	final String job;
+
+	/** the state of the build. */
+	final BitbucketBuildState state;
+
+	/** the JSON body of the request. */
+	final HttpEntity entity;
+
+	/** the effective timeouts of the request. */
+	final HttpTimeouts timeouts;
+
+	/** receives the outcome of the notification. */
+	final NotificationCallback callback;
+
+	/**
+	 * identifies the status this notification overwrites in Bitbucket:
+	 * the server, commit and build key.
+	 */
+	final String coalescingKey;
+
+	/** number of times sending this notification has been attempted. */
+	volatile int attempts;
+
+	/** number of times it was deferred because the circuit breaker was open. */
+	volatile int deferrals;
+
+	/** id of the notification in the outbox, 0 if it is not recorded. */
+	volatile long outboxId;
+
+	/** hash of the entity, see {@link DeduplicationCache#payloadHash}, 0 until computed. */
+	volatile long payloadHash;
+
+	BitbucketNotification(
+			final String serverUrl,
+			final String credentialsId,
+			final boolean ignoreUnverifiedSSL,
+			final String commitSha1,
+			final String key,
+			final BitbucketBuildState state,
+			final HttpEntity entity,
+			final HttpTimeouts timeouts,
+			final NotificationCallback callback) {
+
+		this(serverUrl, credentialsId, ignoreUnverifiedSSL, commitSha1, key,
+				null, state, entity, timeouts, callback);
+	}
+
+	BitbucketNotification(
+			final String serverUrl,
+			final String credentialsId,
+			final boolean ignoreUnverifiedSSL,
+			final String commitSha1,
+			final String key,
+			final String job,
+			final BitbucketBuildState state,
+			final HttpEntity entity,
+			final HttpTimeouts timeouts,
+			final NotificationCallback callback) {
+
+		this(serverUrl, credentialsId, ignoreUnverifiedSSL, commitSha1, key,
+				job, state, entity, timeouts, callback, null);
+	}
+
+	/**
+	 * Creates a notification to a named server. The settings passed in are
+	 * those resolved for the server.
+	 */
+	BitbucketNotification(
+			final String serverUrl,
+			final String credentialsId,
+			final boolean ignoreUnverifiedSSL,
+			final String commitSha1,
+			final String key,
+			final String job,
+			final BitbucketBuildState state,
+			final HttpEntity entity,
+			final HttpTimeouts timeouts,
+			final NotificationCallback callback,
+			final BitbucketServer definition) {
+
+		this.sequence = SEQUENCE.incrementAndGet();
+		this.serverUrl = serverUrl;
+		this.server = ServerConcurrencyLimiter.serverOf(serverUrl);
+		this.definition = definition;
+		this.lane = definition != null ? definition.getName() : server;
+		this.maxConcurrentRequests = definition != null
+				? definition.getMaxConcurrentRequests() : 0;
+		this.credentialsId = credentialsId;
+		this.ignoreUnverifiedSSL = ignoreUnverifiedSSL;
+		this.commitSha1 = commitSha1;
+		this.key = key;
+		this.job = job;
+		this.state = state;
+		this.entity = entity;
+		this.timeouts = timeouts;
+		this.callback = callback;
+		this.coalescingKey = serverUrl + '\n' + commitSha1 + '\n' + key;
+	}
+
+	/**
+	 * @param other	another notification for the same coalescing key
+	 * @return		true if this notification was created after the other one
+	 */
+	boolean isNewerThan(BitbucketNotification other) {
+		return sequence > other.sequence;
+	}
+
+	@Override
+	public String toString() {
+		return state + " " + commitSha1 + " (" + key + ") to " + serverUrl;
+	}
+}
@@ -15,20 +15,20 @@
  */
  package org.jenkinsci.plugins.bitbucketNotifier;
 
-import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.*;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
-import hudson.ProxyConfiguration;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
 import hudson.plugins.git.GitBranchTokenMacro;
 import hudson.plugins.git.Revision;
 import hudson.plugins.git.util.BuildData;
-import hudson.security.ACL;
 import hudson.security.AccessControlled;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -40,27 +40,12 @@ import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContextBuilder;
-import org.apache.http.conn.ssl.SSLContexts;
-import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.ProxyAuthenticationStrategy;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 import org.jenkinsci.plugins.tokenmacro.TokenMacro;
@@ -68,35 +53,33 @@ import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.servlet.ServletException;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Notifies a configured Atlassian Bitbucket server instance of build results
  * through the Bitbucket build API.
  * <p>
  * Only basic authentication is supported at the moment.
+ * <p>
+ * Matrix builds do not run their publishers, they notify through a
+ * {@link MatrixAggregator} unless each configuration notifies on its own,
+ * see {@link MatrixNotificationMode}.
  */
-public class BitbucketNotifier extends Notifier {
+public class BitbucketNotifier extends Notifier implements MatrixAggregatable {
 
 	public static final int MAX_FIELD_LENGTH = 255;
 	public static final int MAX_URL_FIELD_LENGTH = 450;
@@ -127,13 +110,28 @@ public class BitbucketNotifier extends Notifier {
 	/** whether to send INPROGRESS notification at the build start */
 	private final boolean disableInprogressNotification;
 
+	/** connect timeout in seconds, 0 to use the global setting. */
+	private int connectTimeout;
+
+	/** read timeout in seconds, 0 to use the global setting. */
+	private int readTimeout;
+
+	/** pool lease timeout in seconds, 0 to use the global setting. */
+	private int poolLeaseTimeout;
+
+	/** connection time to live in seconds, 0 to use the global setting. */
+	private int connectionTtl;
+
+	/** name of a server of the global configuration, blank if none is used. */
+	private String serverName;
+
 // public members ----------------------------------------------------------
 
 	public BuildStepMonitor getRequiredMonitorService() {
 		return BuildStepMonitor.NONE;
 	}
 
-	@DataBoundConstructor
+	@Deprecated
 	public BitbucketNotifier(
 			String bitbucketServerBaseUrl,
 			String credentialsId,
@@ -144,6 +142,50 @@ public class BitbucketNotifier extends Notifier {
 			boolean prependParentProjectKey,
 			boolean disableInprogressNotification
 	) {
+		this(bitbucketServerBaseUrl, credentialsId, ignoreUnverifiedSSLPeer,
+				commitSha1, includeBuildNumberInKey, projectKey,
+				prependParentProjectKey, disableInprogressNotification,
+				0, 0, 0, 0);
+	}
+
+	@Deprecated
+	public BitbucketNotifier(
+			String bitbucketServerBaseUrl,
+			String credentialsId,
+			boolean ignoreUnverifiedSSLPeer,
+			String commitSha1,
+			boolean includeBuildNumberInKey,
+			String projectKey,
+			boolean prependParentProjectKey,
+			boolean disableInprogressNotification,
+			int connectTimeout,
+			int readTimeout,
+			int poolLeaseTimeout,
+			int connectionTtl
+	) {
+		this(bitbucketServerBaseUrl, credentialsId, ignoreUnverifiedSSLPeer,
+				commitSha1, includeBuildNumberInKey, projectKey,
+				prependParentProjectKey, disableInprogressNotification,
+				connectTimeout, readTimeout, poolLeaseTimeout, connectionTtl,
+				null);
+	}
+
+	@DataBoundConstructor
+	public BitbucketNotifier(
+			String bitbucketServerBaseUrl,
+			String credentialsId,
+			boolean ignoreUnverifiedSSLPeer,
+			String commitSha1,
+			boolean includeBuildNumberInKey,
+			String projectKey,
+			boolean prependParentProjectKey,
+			boolean disableInprogressNotification,
+			int connectTimeout,
+			int readTimeout,
+			int poolLeaseTimeout,
+			int connectionTtl,
+			String serverName
+	) {
 
 
 		this.bitbucketServerBaseUrl = bitbucketServerBaseUrl.endsWith("/")
@@ -157,6 +199,11 @@ public class BitbucketNotifier extends Notifier {
 		this.projectKey = projectKey;
 		this.prependParentProjectKey = prependParentProjectKey;
 		this.disableInprogressNotification = disableInprogressNotification;
+		this.connectTimeout = Math.max(0, connectTimeout);
+		this.readTimeout = Math.max(0, readTimeout);
+		this.poolLeaseTimeout = Math.max(0, poolLeaseTimeout);
+		this.connectionTtl = Math.max(0, connectionTtl);
+		this.serverName = StringUtils.trimToNull(serverName);
 	}
 
 	public boolean isDisableInprogressNotification() {
@@ -191,6 +238,26 @@ public class BitbucketNotifier extends Notifier {
         return prependParentProjectKey;
     }
 
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getPoolLeaseTimeout() {
+		return poolLeaseTimeout;
+	}
+
+	public int getConnectionTtl() {
+		return connectionTtl;
+	}
+
+	public String getServerName() {
+		return serverName;
+	}
+
     @Override
 	public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
 		    return disableInprogressNotification || processJenkinsEvent(build, listener, BitbucketBuildState.INPROGRESS);
@@ -212,6 +279,56 @@ public class BitbucketNotifier extends Notifier {
 		}
 	}
 
+	/**
+	 * Notifies Bitbucket of a matrix build, once before its configurations
+	 * start and once with their combined result after they are all done.
+	 *
+	 * @return	the aggregator, or null if only the configurations notify
+	 */
+	public MatrixAggregator createAggregator(
+			MatrixBuild build,
+			Launcher launcher,
+			BuildListener listener) {
+		return createAggregator(
+				getDescriptor().getMatrixNotificationMode(), build, launcher, listener);
+	}
+
+	MatrixAggregator createAggregator(
+			MatrixNotificationMode matrixMode,
+			MatrixBuild build,
+			Launcher launcher,
+			BuildListener listener) {
+		if (matrixMode == MatrixNotificationMode.INDIVIDUAL) {
+			return null;
+		}
+		return new MatrixAggregator(build, launcher, listener) {
+			@Override
+			public boolean startBuild() {
+				return prebuild(this.build, this.listener);
+			}
+
+			@Override
+			public boolean endBuild() {
+				// the result of the matrix build is the worst of its configurations
+				return perform(this.build, this.launcher, this.listener);
+			}
+		};
+	}
+
+	/**
+	 * @return	whether the matrix build notifies Bitbucket of the state
+	 * 			instead of the build, a configuration of it
+	 */
+	static boolean isNotifiedByMatrixBuild(
+			AbstractBuild<?, ?> build,
+			MatrixNotificationMode matrixMode,
+			BitbucketBuildState state) {
+		return build instanceof MatrixRun
+				&& (matrixMode == MatrixNotificationMode.AGGREGATE
+						|| (matrixMode == MatrixNotificationMode.SHARED
+								&& state == BitbucketBuildState.INPROGRESS));
+	}
+
 	/**
 	 * Processes the Jenkins events triggered before and after the build and
 	 * initiates the Bitbucket notification.
@@ -238,31 +355,43 @@ public class BitbucketNotifier extends Notifier {
 		}
 
 		Collection<String> commitSha1s = lookupCommitSha1s(build, listener);
-		for  (String commitSha1 : commitSha1s) {
-			try {
-				NotificationResult result
-					= notifyBitbucket(logger, build, commitSha1, listener, state);
-				if (result.indicatesSuccess) {
-					logger.println(
-						"Notified Bitbucket for commit with id "
-								+ commitSha1);
-				} else {
-					logger.println(
-					"Failed to notify Bitbucket for commit "
-							+ commitSha1
-							+ " (" + result.message + ")");
+		try {
+			MatrixNotificationMode matrixMode = getDescriptor().getMatrixNotificationMode();
+			if (isNotifiedByMatrixBuild(build, matrixMode, state)) {
+				logger.println("Bitbucket is notified by the matrix build");
+				return true;
+			}
+
+			// computed once for all commits
+			BuildNotificationContext context = BuildNotificationContext.of(build);
+			String buildKey = context.getBuildKey(this, build, listener);
+			HttpEntity payload = context.getPayload(this, build, state, buildKey);
+
+			String job = build.getProject().getFullName();
+			boolean shared = matrixMode == MatrixNotificationMode.SHARED
+					&& (build instanceof MatrixRun || build instanceof MatrixBuild);
+			if (getDescriptor().isAsyncNotification() || shared) {
+				// may complete after the build, see NotificationCallback
+				NotificationCallback callback = new NotificationCallback(logger, build);
+				for (String commitSha1 : commitSha1s) {
+					try {
+						NotificationDispatcher.get().submit(newNotification(
+								commitSha1, state, buildKey, job, payload, callback));
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						callback.onException(commitSha1, e);
+					}
 				}
-            } catch (SSLPeerUnverifiedException e) {
-	    		logger.println("SSLPeerUnverifiedException caught while "
-    				+ "notifying Bitbucket. Make sure your SSL certificate on "
-    				+ "your Bitbucket server is valid or check the "
-    				+ " 'Ignore unverifiable SSL certificate' checkbox in the "
-    				+ "Bitbucket plugin configuration of this job.");
-			} catch (Exception e) {
-				logger.println("Caught exception while notifying Bitbucket with id "
-					+ commitSha1);
-				e.printStackTrace(logger);
+			} else {
+				notifyInParallel(listener, state, buildKey, job, payload, commitSha1s);
 			}
+		} catch (InterruptedException e) {
+			logger.println("Interrupted while notifying Bitbucket");
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.println("Caught exception while notifying Bitbucket");
+			e.printStackTrace(logger);
 		}
 		if (commitSha1s.isEmpty()) {
 			logger.println("found no commit info");
@@ -270,7 +399,65 @@ public class BitbucketNotifier extends Notifier {
 		return true;
 	}
 
-	private Collection<String> lookupCommitSha1s(
+	/**
+	 * Sends the notifications for all commits in parallel and waits for them.
+	 * The outcome of each is buffered and written to the build log in the
+	 * order of the commits, once all are done.
+	 *
+	 * @param listener		the Jenkins build listener
+	 * @param state			the state of the build
+	 * @param buildKey		the build key
+	 * @param job			the full name of the job
+	 * @param payload		the payload, the same for all commits
+	 * @param commitSha1s	the commits to notify Bitbucket of
+	 */
+	void notifyInParallel(
+			final BuildListener listener,
+			final BitbucketBuildState state,
+			final String buildKey,
+			final String job,
+			final HttpEntity payload,
+			final Collection<String> commitSha1s) throws InterruptedException, IOException {
+
+		PrintStream logger = listener.getLogger();
+		if (commitSha1s.size() == 1) {
+			String commitSha1 = commitSha1s.iterator().next();
+			NotificationCallback callback = new NotificationCallback(logger);
+			try {
+				NotificationDispatcher.get().deliver(newNotification(
+						commitSha1, state, buildKey, job, payload, callback));
+			} catch (Exception e) {
+				callback.onException(commitSha1, e);
+			}
+			return;
+		}
+
+		List<ByteArrayOutputStream> logs = new ArrayList<ByteArrayOutputStream>();
+		List<BitbucketNotification> notifications = new ArrayList<BitbucketNotification>();
+		for (String commitSha1 : commitSha1s) {
+			ByteArrayOutputStream log = new ByteArrayOutputStream();
+			logs.add(log);
+			NotificationCallback callback
+					= new NotificationCallback(new PrintStream(log, true));
+			try {
+				notifications.add(newNotification(
+						commitSha1, state, buildKey, job, payload, callback));
+			} catch (Exception e) {
+				callback.onException(commitSha1, e);
+			}
+		}
+
+		try {
+			NotificationDispatcher.get().deliverAll(notifications);
+		} finally {
+			for (ByteArrayOutputStream log : logs) {
+				log.writeTo(logger);
+			}
+			logger.flush();
+		}
+	}
+
+	Collection<String> lookupCommitSha1s(
 			@SuppressWarnings("rawtypes") AbstractBuild build,
 			BuildListener listener) {
 
@@ -293,8 +480,23 @@ public class BitbucketNotifier extends Notifier {
 			}
 		}
 
-		// Use a set to remove duplicates
-		Collection<String> sha1s = new HashSet<String>();
+		// scanning the BuildData actions is done once per checkout
+		return BuildNotificationContext.of(build).getBuiltCommitSha1s(build);
+	}
+
+	/**
+	 * Collects the commits built according to the git plugin's
+	 * {@link BuildData} actions of the build.
+	 *
+	 * @param build	the build
+	 * @return		the built commits without duplicates, in the order of
+	 * 				the actions
+	 */
+	static Collection<String> lookupBuiltCommitSha1s(
+			@SuppressWarnings("rawtypes") AbstractBuild build) {
+
+		// Use a set to remove duplicates, keeping the order for the build log
+		Collection<String> sha1s = new LinkedHashSet<String>();
 		// MultiSCM may add multiple BuildData actions for each SCM, but we are covered in any case
 		for (BuildData buildData : build.getActions(BuildData.class)) {
 			// get the sha1 of the commit that was built
@@ -320,128 +522,6 @@ public class BitbucketNotifier extends Notifier {
 		return sha1s;
 	}
 
-	/**
-	 * Returns the HttpClient through which the REST call is made. Uses an
-	 * unsafe TrustStrategy in case the user specified a HTTPS URL and
-	 * set the ignoreUnverifiedSSLPeer flag.
-	 *
-	 * @param logger    the logger to log messages to
-	 * @param build
-	 * @return			the HttpClient
-	 */
-	private HttpClient getHttpClient(PrintStream logger, AbstractBuild<?, ?> build) throws Exception {
-        boolean ignoreUnverifiedSSL = ignoreUnverifiedSSLPeer;
-        String bitbucketServer = bitbucketServerBaseUrl;
-        DescriptorImpl descriptor = getDescriptor();
-
-		// Determine if we are using the local or global settings
-		String credentialsId = getCredentialsId();
-		if (StringUtils.isBlank(credentialsId)) {
-			credentialsId = descriptor.getCredentialsId();
-		}
-
-		Credentials credentials = CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(CertificateCredentials.class,
-				Jenkins.getInstance(), ACL.SYSTEM), CredentialsMatchers.withId(credentialsId));
-
-        if ("".equals(bitbucketServer) || bitbucketServer == null) {
-            bitbucketServer = descriptor.getBitbucketRootUrl();
-        }
-        if (!ignoreUnverifiedSSL) {
-            ignoreUnverifiedSSL = descriptor.isIgnoreUnverifiedSsl();
-        }
-
-        URL url = new URL(bitbucketServer);
-        HttpClientBuilder builder = HttpClientBuilder.create();
-        if (url.getProtocol().equals("https")
-                && (ignoreUnverifiedSSL || credentials instanceof CertificateCredentials)) {
-			// add unsafe trust manager to avoid thrown
-			// SSLPeerUnverifiedException
-			try {
-				SSLConnectionSocketFactory sslConnSocketFactory
-						= new SSLConnectionSocketFactory(buildSslContext(ignoreUnverifiedSSL,credentials),
-                        ignoreUnverifiedSSL ? SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER : null);
-				builder.setSSLSocketFactory(sslConnSocketFactory);
-
-				Registry<ConnectionSocketFactory> registry
-						= RegistryBuilder.<ConnectionSocketFactory>create()
-							.register("https", sslConnSocketFactory)
-							.build();
-
-				HttpClientConnectionManager ccm
-						= new BasicHttpClientConnectionManager(registry);
-
-				builder.setConnectionManager(ccm);
-			} catch (NoSuchAlgorithmException nsae) {
-				logger.println("Couldn't establish SSL context:");
-				nsae.printStackTrace(logger);
-			} catch (KeyManagementException kme) {
-				logger.println("Couldn't initialize SSL context:");
-				kme.printStackTrace(logger);
-			} catch (KeyStoreException kse) {
-				logger.println("Couldn't initialize SSL context:");
-				kse.printStackTrace(logger);
-			}
-        }
-
-        // Configure the proxy, if needed
-        // Using the Jenkins methods handles the noProxyHost settings
-        ProxyConfiguration proxyConfig = Jenkins.getInstance().proxy;
-        if (proxyConfig != null) {
-            Proxy proxy = proxyConfig.createProxy(url.getHost());
-            if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
-                SocketAddress addr = proxy.address();
-                if (addr != null && addr instanceof InetSocketAddress) {
-                    InetSocketAddress proxyAddr = (InetSocketAddress) addr;
-                    HttpHost proxyHost = new HttpHost(proxyAddr.getAddress().getHostAddress(), proxyAddr.getPort());
-                    builder = builder.setProxy(proxyHost);
-
-                    String proxyUser = proxyConfig.getUserName();
-                    if (proxyUser != null) {
-                        String proxyPass = proxyConfig.getPassword();
-                        BasicCredentialsProvider cred = new BasicCredentialsProvider();
-                        cred.setCredentials(new AuthScope(proxyHost),
-                                new UsernamePasswordCredentials(proxyUser, proxyPass));
-                        builder = builder
-                                .setDefaultCredentialsProvider(cred)
-                                .setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
-                    }
-                }
-            }
-        }
-
-        return builder.build();
-    }
-
-    /**
-     * Helper in place to allow us to define out HttpClient SSL context
-     *
-     * @param ignoreUnverifiedSSL
-     * @param credentials
-     * @return
-     * @throws UnrecoverableKeyException
-     * @throws NoSuchAlgorithmException
-     * @throws KeyStoreException
-     * @throws KeyManagementException
-     */
-	private SSLContext buildSslContext(boolean ignoreUnverifiedSSL, Credentials credentials) throws UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-
-		SSLContextBuilder customContext = SSLContexts.custom();
-		if (credentials instanceof CertificateCredentials) {
-			customContext  = customContext.loadKeyMaterial(((CertificateCredentials) credentials).getKeyStore(),((CertificateCredentials) credentials).getPassword().getPlainText().toCharArray());
-		}
-		if (ignoreUnverifiedSSL) {
-			TrustStrategy easyStrategy = new TrustStrategy() {
-				public boolean isTrusted(X509Certificate[] chain, String authType)
-						throws CertificateException {
-					return true;
-				}
-			};
-			customContext = customContext
-					.loadTrustMaterial(null, easyStrategy);
-		}
-		return customContext.useTLS().build();
-}
-
 	/**
      * Hudson defines a method {@link Builder#getDescriptor()}, which
      * returns the corresponding {@link Descriptor} object.
@@ -477,9 +557,33 @@ public class BitbucketNotifier extends Notifier {
 		private String projectKey;
 		private boolean prependParentProjectKey;
 		private boolean disableInprogressNotification;
+		private boolean asyncNotification;
+		private boolean durableOutbox = true;
+		private boolean warmUpConnections;
+		private int notificationQueueCapacity = NotificationDispatcher.DEFAULT_QUEUE_CAPACITY;
+		private int notificationWorkerThreads = NotificationDispatcher.DEFAULT_WORKER_THREADS;
+		private QueueFullPolicy queueFullPolicy = QueueFullPolicy.BLOCK;
+		private int maxConcurrentRequestsPerServer = ServerConcurrencyLimiter.DEFAULT_MAX_CONCURRENT_REQUESTS;
+		private int maxRetries = RetryPolicy.DEFAULT_MAX_RETRIES;
+		private int circuitBreakerFailureThreshold = CircuitBreakers.DEFAULT_FAILURE_THRESHOLD;
+		private int circuitBreakerOpenSeconds = CircuitBreakers.DEFAULT_OPEN_SECONDS;
+		private int connectTimeout = HttpTimeouts.DEFAULT_CONNECT_TIMEOUT;
+		private int readTimeout = HttpTimeouts.DEFAULT_READ_TIMEOUT;
+		private int poolLeaseTimeout = HttpTimeouts.DEFAULT_POOL_LEASE_TIMEOUT;
+		private int connectionTtl = HttpTimeouts.DEFAULT_CONNECTION_TTL;
+		private int batchWindowMillis = NotificationDispatcher.DEFAULT_BATCH_WINDOW_MILLIS;
+		private int maxBatchSize = NotificationDispatcher.DEFAULT_MAX_BATCH_SIZE;
+		private double rateLimit = RateLimiters.DEFAULT_REQUESTS_PER_SECOND;
+		private int rateLimitBurst = RateLimiters.DEFAULT_BURST;
+		private int deduplicationMinutes = DeduplicationCache.DEFAULT_TTL_MINUTES;
+		private int journalSegments = NotificationJournal.DEFAULT_SEGMENTS;
+		private TransportType transportType = TransportType.BLOCKING;
+		private MatrixNotificationMode matrixNotificationMode = MatrixNotificationMode.INDIVIDUAL;
+		private List<BitbucketServer> servers = new ArrayList<BitbucketServer>();
 
 		public DescriptorImpl() {
             load();
+            applyDispatcherSettings();
         }
 
 		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath ItemGroup context) {
@@ -522,6 +626,242 @@ public class BitbucketNotifier extends Notifier {
 			return prependParentProjectKey;
 		}
 
+		public boolean isAsyncNotification() {
+			return asyncNotification;
+		}
+
+		public boolean isDurableOutbox() {
+			return durableOutbox;
+		}
+
+		public boolean isWarmUpConnections() {
+			return warmUpConnections;
+		}
+
+		public MatrixNotificationMode getMatrixNotificationMode() {
+			return matrixNotificationMode != null
+					? matrixNotificationMode : MatrixNotificationMode.INDIVIDUAL;
+		}
+
+		public int getNotificationQueueCapacity() {
+			return notificationQueueCapacity;
+		}
+
+		public int getNotificationWorkerThreads() {
+			return notificationWorkerThreads;
+		}
+
+		public QueueFullPolicy getQueueFullPolicy() {
+			return queueFullPolicy != null ? queueFullPolicy : QueueFullPolicy.BLOCK;
+		}
+
+		public int getMaxConcurrentRequestsPerServer() {
+			return maxConcurrentRequestsPerServer;
+		}
+
+		public int getMaxRetries() {
+			return maxRetries;
+		}
+
+		public int getCircuitBreakerFailureThreshold() {
+			return circuitBreakerFailureThreshold;
+		}
+
+		public int getCircuitBreakerOpenSeconds() {
+			return circuitBreakerOpenSeconds;
+		}
+
+		public int getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public int getReadTimeout() {
+			return readTimeout;
+		}
+
+		public int getPoolLeaseTimeout() {
+			return poolLeaseTimeout;
+		}
+
+		public int getConnectionTtl() {
+			return connectionTtl;
+		}
+
+		public int getBatchWindowMillis() {
+			return batchWindowMillis;
+		}
+
+		public int getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		public double getRateLimit() {
+			return rateLimit;
+		}
+
+		public int getRateLimitBurst() {
+			return rateLimitBurst;
+		}
+
+		public int getDeduplicationMinutes() {
+			return deduplicationMinutes;
+		}
+
+		public int getJournalSegments() {
+			return journalSegments;
+		}
+
+		public TransportType getTransportType() {
+			return transportType != null ? transportType : TransportType.BLOCKING;
+		}
+
+		/**
+		 * @return the rate limiters of all Bitbucket servers and credentials
+		 * 			used since Jenkins started, for display
+		 */
+		public List<RateLimiter> getRateLimiters() {
+			return NotificationDispatcher.get().getRateLimiters().getAll();
+		}
+
+		HttpTimeouts getTimeouts() {
+			return new HttpTimeouts(
+					connectTimeout, readTimeout, poolLeaseTimeout, connectionTtl);
+		}
+
+		/**
+		 * @return the circuit breakers of all Bitbucket servers notified
+		 * 			since Jenkins started, for display
+		 */
+		public List<CircuitBreaker> getCircuitBreakers() {
+			return NotificationDispatcher.get().getCircuitBreakers().getAll();
+		}
+
+		/**
+		 * @return the balancers of the named servers with Data Center nodes,
+		 * 			for display
+		 */
+		public List<NodeBalancer> getNodeBalancers() {
+			List<NodeBalancer> balancers = new ArrayList<NodeBalancer>();
+			for (BitbucketServer server : BitbucketServers.get().getAll()) {
+				NodeBalancer balancer = server.getBalancer();
+				if (balancer != null) {
+					balancers.add(balancer);
+				}
+			}
+			return balancers;
+		}
+
+		public List<BitbucketServer> getServers() {
+			return servers != null ? servers : new ArrayList<BitbucketServer>();
+		}
+
+		public ListBoxModel doFillServerNameItems() {
+			ListBoxModel items = new ListBoxModel();
+			items.add("- base url below or global settings -", "");
+			for (BitbucketServer server : BitbucketServers.get().getAll()) {
+				items.add(server.toString(), server.getName());
+			}
+			return items;
+		}
+
+		public ListBoxModel doFillQueueFullPolicyItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (QueueFullPolicy policy : QueueFullPolicy.values()) {
+				items.add(policy.getDisplayName(), policy.name());
+			}
+			return items;
+		}
+
+		public ListBoxModel doFillMatrixNotificationModeItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (MatrixNotificationMode mode : MatrixNotificationMode.values()) {
+				items.add(mode.getDisplayName(), mode.name());
+			}
+			return items;
+		}
+
+		public ListBoxModel doFillTransportTypeItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (TransportType type : TransportType.values()) {
+				items.add(type.getDisplayName(), type.name());
+			}
+			return items;
+		}
+
+		public FormValidation doCheckNotificationQueueCapacity(@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckNotificationWorkerThreads(@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckMaxConcurrentRequestsPerServer(@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckMaxRetries(@QueryParameter String value) {
+			return checkNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckCircuitBreakerFailureThreshold(@QueryParameter String value) {
+			return checkNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckCircuitBreakerOpenSeconds(@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckConnectTimeout(@QueryParameter String value) {
+			return checkTimeout(value);
+		}
+
+		public FormValidation doCheckReadTimeout(@QueryParameter String value) {
+			return checkTimeout(value);
+		}
+
+		public FormValidation doCheckPoolLeaseTimeout(@QueryParameter String value) {
+			return checkTimeout(value);
+		}
+
+		public FormValidation doCheckConnectionTtl(@QueryParameter String value) {
+			return checkTimeout(value);
+		}
+
+		public FormValidation doCheckBatchWindowMillis(@QueryParameter String value) {
+			return checkNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckMaxBatchSize(@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckRateLimit(@QueryParameter String value) {
+			if (StringUtils.isBlank(value)) {
+				return FormValidation.ok();
+			}
+			try {
+				if (Double.parseDouble(value.trim()) >= 0) {
+					return FormValidation.ok();
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			return FormValidation.error("Please specify 0 or a positive number");
+		}
+
+		public FormValidation doCheckRateLimitBurst(@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckDeduplicationMinutes(@QueryParameter String value) {
+			return checkNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckJournalSegments(@QueryParameter String value) {
+			return checkNonNegativeInteger(value);
+		}
+
 		public FormValidation doCheckCredentialsId(@QueryParameter String value)
 				throws IOException, ServletException {
 
@@ -592,44 +932,441 @@ public class BitbucketNotifier extends Notifier {
 
 			disableInprogressNotification = formData.getBoolean("disableInprogressNotification");
 
+			asyncNotification = formData.getBoolean("asyncNotification");
+			durableOutbox = formData.getBoolean("durableOutbox");
+			warmUpConnections = formData.getBoolean("warmUpConnections");
+			try {
+				matrixNotificationMode = MatrixNotificationMode.valueOf(formData.optString(
+						"matrixNotificationMode", MatrixNotificationMode.INDIVIDUAL.name()));
+			} catch (IllegalArgumentException e) {
+				matrixNotificationMode = MatrixNotificationMode.INDIVIDUAL;
+			}
+			notificationQueueCapacity = getPositiveInt(formData,
+					"notificationQueueCapacity", NotificationDispatcher.DEFAULT_QUEUE_CAPACITY);
+			notificationWorkerThreads = getPositiveInt(formData,
+					"notificationWorkerThreads", NotificationDispatcher.DEFAULT_WORKER_THREADS);
+			try {
+				queueFullPolicy = QueueFullPolicy.valueOf(
+						formData.optString("queueFullPolicy", QueueFullPolicy.BLOCK.name()));
+			} catch (IllegalArgumentException e) {
+				queueFullPolicy = QueueFullPolicy.BLOCK;
+			}
+			maxConcurrentRequestsPerServer = getPositiveInt(formData,
+					"maxConcurrentRequestsPerServer", ServerConcurrencyLimiter.DEFAULT_MAX_CONCURRENT_REQUESTS);
+			maxRetries = Math.max(0, formData.optInt("maxRetries", RetryPolicy.DEFAULT_MAX_RETRIES));
+			circuitBreakerFailureThreshold = Math.max(0, formData.optInt(
+					"circuitBreakerFailureThreshold", CircuitBreakers.DEFAULT_FAILURE_THRESHOLD));
+			circuitBreakerOpenSeconds = getPositiveInt(formData,
+					"circuitBreakerOpenSeconds", CircuitBreakers.DEFAULT_OPEN_SECONDS);
+			connectTimeout = getPositiveInt(formData,
+					"connectTimeout", HttpTimeouts.DEFAULT_CONNECT_TIMEOUT);
+			readTimeout = getPositiveInt(formData,
+					"readTimeout", HttpTimeouts.DEFAULT_READ_TIMEOUT);
+			poolLeaseTimeout = getPositiveInt(formData,
+					"poolLeaseTimeout", HttpTimeouts.DEFAULT_POOL_LEASE_TIMEOUT);
+			connectionTtl = getPositiveInt(formData,
+					"connectionTtl", HttpTimeouts.DEFAULT_CONNECTION_TTL);
+			batchWindowMillis = Math.max(0, formData.optInt(
+					"batchWindowMillis", NotificationDispatcher.DEFAULT_BATCH_WINDOW_MILLIS));
+			maxBatchSize = getPositiveInt(formData,
+					"maxBatchSize", NotificationDispatcher.DEFAULT_MAX_BATCH_SIZE);
+			try {
+				rateLimit = Math.max(0, Double.parseDouble(formData.optString(
+						"rateLimit", String.valueOf(RateLimiters.DEFAULT_REQUESTS_PER_SECOND)).trim()));
+			} catch (NumberFormatException e) {
+				rateLimit = RateLimiters.DEFAULT_REQUESTS_PER_SECOND;
+			}
+			rateLimitBurst = getPositiveInt(formData,
+					"rateLimitBurst", RateLimiters.DEFAULT_BURST);
+			deduplicationMinutes = Math.max(0, formData.optInt(
+					"deduplicationMinutes", DeduplicationCache.DEFAULT_TTL_MINUTES));
+			journalSegments = Math.max(0, formData.optInt(
+					"journalSegments", NotificationJournal.DEFAULT_SEGMENTS));
+			try {
+				transportType = TransportType.valueOf(
+						formData.optString("transportType", TransportType.BLOCKING.name()));
+			} catch (IllegalArgumentException e) {
+				transportType = TransportType.BLOCKING;
+			}
+			servers = formData.has("servers")
+					? req.bindJSONToList(BitbucketServer.class, formData.get("servers"))
+					: new ArrayList<BitbucketServer>();
+			applyDispatcherSettings();
+
 			save();
+			warmUpConnections();
 			return super.configure(req,formData);
 		}
+
+		/**
+		 * Warms up the connections to the global Bitbucket server and those
+		 * configured in jobs in the background, if enabled.
+		 */
+		void warmUpConnections() {
+			if (warmUpConnections) {
+				ConnectionProbe.warmUpInBackground(getConnectionTargets());
+			}
+		}
+
+		/**
+		 * @return the global Bitbucket server, the named ones and those
+		 * 			configured in jobs
+		 */
+		Set<ConnectionProbe.Target> getConnectionTargets() {
+			Set<ConnectionProbe.Target> targets = new LinkedHashSet<ConnectionProbe.Target>();
+			if (getBitbucketRootUrl() != null) {
+				targets.add(new ConnectionProbe.Target(
+						getBitbucketRootUrl(), credentialsId, ignoreUnverifiedSsl, getTimeouts()));
+			}
+			for (BitbucketServer server : BitbucketServers.get().getAll()) {
+				targets.addAll(server.getConnectionTargets());
+			}
+			for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+				BitbucketNotifier notifier = project.getPublishersList().get(BitbucketNotifier.class);
+				if (notifier != null) {
+					ConnectionProbe.Target target = notifier.getConnectionTarget();
+					if (target != null) {
+						targets.add(target);
+					}
+				}
+			}
+			return targets;
+		}
+
+		/**
+		 * Tests the connection with the settings in the global configuration
+		 * form, reporting the latency of each stage.
+		 */
+		@RequirePOST
+		public FormValidation doTestConnection(
+				@QueryParameter String bitbucketRootUrl,
+				@QueryParameter String credentialsId,
+				@QueryParameter boolean ignoreUnverifiedSsl,
+				@QueryParameter String connectTimeout,
+				@QueryParameter String readTimeout) {
+			Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+			if (StringUtils.isBlank(bitbucketRootUrl)) {
+				return FormValidation.error("Please specify the Bitbucket root url");
+			}
+			ConnectionProbe.Target target = new ConnectionProbe.Target(
+					bitbucketRootUrl.trim(),
+					credentialsId,
+					ignoreUnverifiedSsl,
+					getTimeouts().overriddenBy(parseInt(connectTimeout),
+							parseInt(readTimeout), 0, 0));
+			return ConnectionProbe.toFormValidation(target, ConnectionProbe.test(target));
+		}
+
+		/**
+		 * Tests the connection with the settings in a job's configuration
+		 * form, falling back to the global ones, or to the named server the
+		 * job picked.
+		 */
+		@RequirePOST
+		public FormValidation doTestJobConnection(
+				@AncestorInPath AbstractProject<?, ?> project,
+				@QueryParameter String serverName,
+				@QueryParameter String bitbucketServerBaseUrl,
+				@QueryParameter String credentialsId,
+				@QueryParameter boolean ignoreUnverifiedSSLPeer,
+				@QueryParameter String connectTimeout,
+				@QueryParameter String readTimeout) {
+			if (project != null) {
+				project.checkPermission(Item.CONFIGURE);
+			} else {
+				Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+			}
+			if (StringUtils.isNotBlank(serverName)) {
+				BitbucketServer server = BitbucketServers.get().get(serverName);
+				if (server == null) {
+					return FormValidation.error("No Bitbucket server named " + serverName);
+				}
+				ConnectionProbe.Target target = server.getConnectionTarget();
+				return ConnectionProbe.toFormValidation(target, ConnectionProbe.test(target));
+			}
+			String url = StringUtils.isNotBlank(bitbucketServerBaseUrl)
+					? bitbucketServerBaseUrl.trim() : getBitbucketRootUrl();
+			if (url == null) {
+				return FormValidation.error("Please specify the Bitbucket base url");
+			}
+			ConnectionProbe.Target target = new ConnectionProbe.Target(
+					url,
+					StringUtils.isNotBlank(credentialsId) ? credentialsId : this.credentialsId,
+					ignoreUnverifiedSSLPeer || ignoreUnverifiedSsl,
+					getTimeouts().overriddenBy(parseInt(connectTimeout),
+							parseInt(readTimeout), 0, 0));
+			return ConnectionProbe.toFormValidation(target, ConnectionProbe.test(target));
+		}
+
+		private void applyDispatcherSettings() {
+			// before the dispatcher, which sizes its workers to the servers
+			BitbucketServers.get().configure(getServers(), credentialsId, getTimeouts());
+			NotificationDispatcher.get().configure(
+					notificationQueueCapacity,
+					notificationWorkerThreads,
+					getQueueFullPolicy(),
+					maxConcurrentRequestsPerServer,
+					maxRetries);
+			NotificationDispatcher.get().configureBatching(
+					batchWindowMillis, maxBatchSize);
+			NotificationDispatcher.get().getRateLimiters().configure(
+					rateLimit, rateLimitBurst);
+			NotificationDispatcher.get().getDeduplicationCache().configure(
+					deduplicationMinutes);
+			NotificationDispatcher.get().getCircuitBreakers().configure(
+					circuitBreakerFailureThreshold,
+					circuitBreakerOpenSeconds);
+			BitbucketClientRegistry.get().setDefaultTimeouts(getTimeouts());
+			BitbucketClientRegistry.get().setTransportType(getTransportType());
+			NotificationDispatcher.get().setOutbox(
+					durableOutbox ? NotificationOutbox.get() : null);
+			if (journalSegments > 0) {
+				NotificationJournal.get().setMaxSegments(journalSegments);
+			}
+			NotificationDispatcher.get().setJournal(
+					journalSegments > 0 ? NotificationJournal.get() : null);
+		}
+
+		/**
+		 * @return the number, or 0 if the value is blank or no number
+		 */
+		static int parseInt(String value) {
+			try {
+				return Integer.parseInt(StringUtils.trimToEmpty(value));
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
+		private static int getPositiveInt(JSONObject formData, String name, int defaultValue) {
+			int value = formData.optInt(name, defaultValue);
+			return value > 0 ? value : defaultValue;
+		}
+
+		private static FormValidation checkPositiveInteger(String value) {
+			try {
+				if (Integer.parseInt(value.trim()) > 0) {
+					return FormValidation.ok();
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			return FormValidation.error("Please specify a positive number");
+		}
+
+		/**
+		 * Timeouts are positive in the global configuration. In a job's
+		 * configuration they may be left empty to use the global setting.
+		 */
+		private static FormValidation checkTimeout(String value) {
+			if (StringUtils.isBlank(value)) {
+				return FormValidation.ok();
+			}
+			return checkPositiveInteger(value);
+		}
+
+		private static FormValidation checkNonNegativeInteger(String value) {
+			try {
+				if (Integer.parseInt(value.trim()) >= 0) {
+					return FormValidation.ok();
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			return FormValidation.error("Please specify 0 or a positive number");
+		}
 	}
 
 	// non-public members ------------------------------------------------------
 
 	/**
-	 * Notifies the configured Bitbucket server by POSTing the build results
-	 * to the Bitbucket build API.
+	 * Resolves everything needed to notify Bitbucket of the given build and
+	 * commit, so the notification can be sent without access to the build
+	 * or this job's configuration.
 	 *
-	 * @param logger		the logger to use
-	 * @param build			the build to notify Bitbucket of
 	 * @param commitSha1	the SHA1 of the built commit
-	 * @param listener		the build listener for logging
 	 * @param state			the state of the build as defined by the Bitbucket API.
+	 * @param buildKey		the build key
+	 * @param job			the full name of the job
+	 * @param payload		the payload of the notification
+	 * @param callback		receives the outcome of the notification
 	 */
-	private NotificationResult notifyBitbucket(
-			final PrintStream logger,
-			final AbstractBuild<?, ?> build,
+	private BitbucketNotification newNotification(
 			final String commitSha1,
-			final BuildListener listener,
-			final BitbucketBuildState state) throws Exception {
-		HttpEntity bitbucketBuildNotificationEntity
-			= newBitbucketBuildNotificationEntity(build, state, listener);
-		HttpPost req = createRequest(bitbucketBuildNotificationEntity, commitSha1);
-		HttpClient client = getHttpClient(logger,build);
+			final BitbucketBuildState state,
+			final String buildKey,
+			final String job,
+			final HttpEntity payload,
+			final NotificationCallback callback) {
+
+		BitbucketServer server = getServer(callback.getLogger());
+		if (server != null) {
+			return new BitbucketNotification(
+					server.getUrl(),
+					server.getEffectiveCredentialsId(),
+					server.isIgnoreUnverifiedSsl(),
+					commitSha1,
+					buildKey,
+					job,
+					state,
+					payload,
+					server.getTimeouts(),
+					callback,
+					server);
+		}
+		DescriptorImpl descriptor = getDescriptor();
+		return new BitbucketNotification(
+				getEffectiveServerUrl(descriptor),
+				getEffectiveCredentialsId(descriptor),
+				ignoreUnverifiedSSLPeer || descriptor.isIgnoreUnverifiedSsl(),
+				commitSha1,
+				buildKey,
+				job,
+				state,
+				payload,
+				descriptor.getTimeouts().overriddenBy(
+						connectTimeout, readTimeout, poolLeaseTimeout, connectionTtl),
+				callback);
+	}
+
+	/**
+	 * @return the server this job notifies, or null if none is configured
+	 */
+	ConnectionProbe.Target getConnectionTarget() {
+		BitbucketServer server = BitbucketServers.get().get(serverName);
+		if (server != null) {
+			return server.getConnectionTarget();
+		}
+		DescriptorImpl descriptor = getDescriptor();
+		String url = getEffectiveServerUrl(descriptor);
+		if (StringUtils.isBlank(url)) {
+			return null;
+		}
+		return new ConnectionProbe.Target(
+				url,
+				getEffectiveCredentialsId(descriptor),
+				ignoreUnverifiedSSLPeer || descriptor.isIgnoreUnverifiedSsl(),
+				descriptor.getTimeouts().overriddenBy(
+						connectTimeout, readTimeout, poolLeaseTimeout, connectionTtl));
+	}
+
+	/**
+	 * @param logger	receives a warning if the server is not configured
+	 * @return			the named server this job notifies, or null if it
+	 * 					uses the base url and the settings of the job
+	 */
+	private BitbucketServer getServer(PrintStream logger) {
+		if (StringUtils.isBlank(serverName)) {
+			return null;
+		}
+		BitbucketServer server = BitbucketServers.get().get(serverName);
+		if (server == null) {
+			logger.println("No Bitbucket server named " + serverName
+					+ " is configured, using the base url of the job or the "
+					+ "global configuration.");
+		}
+		return server;
+	}
+
+	// Determine if we are using the local or global settings
+	private String getEffectiveServerUrl(DescriptorImpl descriptor) {
+		String url = bitbucketServerBaseUrl;
+		if ("".equals(url) || url == null) {
+			url = descriptor.getBitbucketRootUrl();
+		}
+		return url;
+	}
+
+	private String getEffectiveCredentialsId(DescriptorImpl descriptor) {
+		String effectiveCredentialsId = getCredentialsId();
+		if (StringUtils.isBlank(effectiveCredentialsId)) {
+			effectiveCredentialsId = descriptor.getCredentialsId();
+		}
+		return effectiveCredentialsId;
+	}
+
+	/**
+	 * Notifies the configured Bitbucket server by POSTing the build results
+	 * to the Bitbucket build API, with the configured {@link BitbucketTransport}.
+	 * Requests to a named server with Data Center nodes go to the node its
+	 * {@link NodeBalancer} picks.
+	 *
+	 * @param notification	the notification to send
+	 */
+	static NotificationResult notifyBitbucket(
+			final BitbucketNotification notification) throws Exception {
+		NodeBalancer balancer = notification.definition != null
+				? notification.definition.getBalancer() : null;
+		if (balancer == null) {
+			return notifyBitbucket(notification, notification.serverUrl);
+		}
+		NodeBalancer.Node node = balancer.acquire();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			NotificationResult result = notifyBitbucket(notification, node.getUrl());
+			failed = result.timedOut || result.statusCode >= 500;
+			return result;
+		} catch (InterruptedException e) {
+			// says nothing about the node
+			failed = false;
+			throw e;
+		} finally {
+			balancer.release(node, System.nanoTime() - start, failed);
+		}
+	}
+
+	/**
+	 * Notifies Bitbucket through the given base url, the one of the
+	 * notification or that of a Data Center node.
+	 */
+	private static NotificationResult notifyBitbucket(
+			final BitbucketNotification notification,
+			final String baseUrl) throws Exception {
+		NotificationMetrics metrics = NotificationMetrics.get();
+		HttpPost req = createRequest(notification, baseUrl);
+		BitbucketTransport transport = BitbucketClientRegistry.get().getTransport();
+		long start = System.nanoTime();
+		HttpResponse res;
+		try {
+			res = transport.execute(notification, req);
+		} catch (ConnectionPoolTimeoutException e) {
+			metrics.recordTimeout(notification.serverUrl, System.nanoTime() - start);
+			return NotificationResult.newTimeout("timed out after "
+					+ notification.timeouts.poolLeaseTimeout
+					+ " s waiting for a pooled connection");
+		} catch (ConnectTimeoutException e) {
+			metrics.recordTimeout(notification.serverUrl, System.nanoTime() - start);
+			return NotificationResult.newTimeout("timed out after "
+					+ notification.timeouts.connectTimeout
+					+ " s connecting to Bitbucket");
+		} catch (SocketTimeoutException e) {
+			metrics.recordTimeout(notification.serverUrl, System.nanoTime() - start);
+			return NotificationResult.newTimeout("timed out after "
+					+ notification.timeouts.readTimeout
+					+ " s waiting for Bitbucket to answer");
+		} catch (IOException e) {
+			metrics.recordError(notification.serverUrl, System.nanoTime() - start);
+			throw e;
+		}
 		try {
-			HttpResponse res = client.execute(req);
-			if (res.getStatusLine().getStatusCode() != 200 &&
-                    res.getStatusLine().getStatusCode() != 201) {
+			int statusCode = res.getStatusLine().getStatusCode();
+			metrics.recordResponse(notification.serverUrl, statusCode,
+					System.nanoTime() - start);
+			NotificationDispatcher.get().getRateLimiters()
+					.get(notification).onResponse(res);
+			if (statusCode != 200 && statusCode != 201) {
 				return NotificationResult.newFailure(
-						EntityUtils.toString(res.getEntity()));
+						statusCode, EntityUtils.toString(res.getEntity()));
 			} else {
-				return NotificationResult.newSuccess();
+				// consume the body so the connection goes back to the pool
+				EntityUtils.consume(res.getEntity());
+				return NotificationResult.newSuccess(statusCode);
 			}
 		} finally {
-			client.getConnectionManager().shutdown();
+			if (res instanceof Closeable) {
+				((Closeable) res).close();
+			}
 		}
 	}
 
@@ -637,52 +1374,36 @@ public class BitbucketNotifier extends Notifier {
 	 * Returns the HTTP POST request ready to be sent to the Bitbucket build API for
 	 * the given build and change set.
 	 *
-	 * @param bitbucketBuildNotificationEntity	a entity containing the parameters
-	 * 										for Bitbucket
-	 * @param commitSha1	the SHA1 of the commit that was built
+	 * @param notification	the notification to send
 	 * @return				the HTTP POST request to the Bitbucket build API
 	 */
-	private HttpPost createRequest(
-			final HttpEntity bitbucketBuildNotificationEntity,
-			final String commitSha1) {
-
-		String url = bitbucketServerBaseUrl;
-        DescriptorImpl descriptor = getDescriptor();
+	static HttpPost createRequest(final BitbucketNotification notification) {
+		return createRequest(notification, notification.serverUrl);
+	}
 
-        if ("".equals(url) || url == null)
-            url = descriptor.getBitbucketRootUrl();
+	private static HttpPost createRequest(
+			final BitbucketNotification notification,
+			final String baseUrl) {
 
     // https://api.bitbucket.org/2.0/repositories/{owner}/{repo_slug}/commit/{revision}/statuses/build
 		HttpPost req = new HttpPost(
-				url
+				baseUrl
 				+ "/commit/"
-				+ commitSha1
+				+ notification.commitSha1
         + "/statuses/build");
 
 		// If we have a credential defined then we need to determine if it
 		// is a basic auth
 
-		credentialsId = getCredentialsId();
-		if (StringUtils.isBlank(credentialsId)) {
-			credentialsId = descriptor.getCredentialsId();
-		}
-
-		if (StringUtils.isNotBlank(credentialsId)) {
-
-			Credentials credentials = CredentialsMatchers.firstOrNull(CredentialsProvider.lookupCredentials(com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials.class,
-					Jenkins.getInstance(), ACL.SYSTEM), CredentialsMatchers.withId(credentialsId));
-			if (credentials instanceof com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) {
-				req.addHeader(BasicScheme.authenticate(
-						new UsernamePasswordCredentials(
-								((com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) credentials).getUsername(),
-								((com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials) credentials).getPassword().getPlainText()),
-						"UTF-8",
-						false));
-			}
+		Header authorization = CredentialsCache.get().getAuthorizationHeader(
+				notification.credentialsId);
+		if (authorization != null) {
+			req.addHeader(authorization);
 		}
 
 		req.addHeader("Content-type", "application/json");
-		req.setEntity(bitbucketBuildNotificationEntity);
+		req.setEntity(notification.entity);
+		req.setConfig(notification.timeouts.toRequestConfig());
 
 		return req;
 	}
@@ -694,33 +1415,42 @@ public class BitbucketNotifier extends Notifier {
 	 * @param build			the build to notify Bitbucket of
 	 * @return				HTTP entity body for POST to Bitbucket build API
 	 */
-	private HttpEntity newBitbucketBuildNotificationEntity(
+	HttpEntity newBitbucketBuildNotificationEntity(
 			final AbstractBuild<?, ?> build,
 			final BitbucketBuildState state,
-            BuildListener listener) throws UnsupportedEncodingException {
-
-		JSONObject json = new JSONObject();
-
-        json.put("state", state.name());
-
-        json.put("key", abbreviate(getBuildKey(build, listener), MAX_FIELD_LENGTH));
+            BuildListener listener) {
 
-        // This is to replace the odd character Jenkins injects to separate
-        // nested jobs, especially when using the Cloudbees Folders plugin.
-        // These characters cause Bitbucket to throw up.
-        String fullName = StringEscapeUtils.
-                escapeJavaScript(build.getFullDisplayName()).
-                replaceAll("\\\\u00BB", "\\/");
-        json.put("name", abbreviate(fullName, MAX_FIELD_LENGTH));
-
-		json.put("description", abbreviate(getBuildDescription(build, state), MAX_FIELD_LENGTH));
-		json.put("url", abbreviate(Jenkins.getInstance()
-                .getRootUrl().concat(build.getUrl()), MAX_URL_FIELD_LENGTH));
+		return newBitbucketBuildNotificationEntity(
+				build, state, getBuildKey(build, listener));
+	}
 
-        return new StringEntity(json.toString(), "UTF-8");
+	/**
+	 * Returns the HTTP POST entity body for the given, already computed,
+	 * build key.
+	 *
+	 * @param build			the build to notify Bitbucket of
+	 * @param state			the state of the build
+	 * @param buildKey		the build key
+	 * @return				HTTP entity body for POST to Bitbucket build API
+	 */
+	HttpEntity newBitbucketBuildNotificationEntity(
+			final AbstractBuild<?, ?> build,
+			final BitbucketBuildState state,
+			final String buildKey) {
+
+		// The name is escaped and the odd character Jenkins injects to
+		// separate nested jobs, especially when using the Cloudbees Folders
+		// plugin, is replaced by the writer. These characters cause
+		// Bitbucket to throw up.
+		return StatusPayloadWriter.newEntity(
+				state,
+				buildKey,
+				build.getFullDisplayName(),
+				getBuildDescription(build, state),
+				Jenkins.getInstance().getRootUrl().concat(build.getUrl()));
 	}
 
-	private static String abbreviate(String text, int maxWidth) {
+	static String abbreviate(String text, int maxWidth) {
 		if (text == null) {
 			return null;
 		}
@@ -739,7 +1469,7 @@ public class BitbucketNotifier extends Notifier {
 	 * @param  build the build to notify Bitbucket of
 	 * @return default build key
 	 */
-	private String getDefaultBuildKey(final AbstractBuild<?, ?> build) {
+	String getDefaultBuildKey(final AbstractBuild<?, ?> build) {
 		StringBuilder key = new StringBuilder();
 
 		key.append(build.getProject().getName());
@@ -759,7 +1489,7 @@ public class BitbucketNotifier extends Notifier {
 	 * @param 	build	the build to notify Bitbucket of
 	 * @return	the build key for the Bitbucket notification
 	 */
-	private String getBuildKey(final AbstractBuild<?, ?> build,
+	String getBuildKey(final AbstractBuild<?, ?> build,
 							   BuildListener listener) {
 
 		StringBuilder key = new StringBuilder();
@@ -804,8 +1534,8 @@ public class BitbucketNotifier extends Notifier {
 	 * @param state		the state of the build
 	 * @return			the description of the build
 	 */
-	private String getBuildDescription(
-			final AbstractBuild<?, ?> build,
+	static String getBuildDescription(
+			final Run<?, ?> build,
 			final BitbucketBuildState state) {
 
 		if (build.getDescription() != null
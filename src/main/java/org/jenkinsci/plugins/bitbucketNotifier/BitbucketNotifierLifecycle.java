@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SCMListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.scm.ChangeLogSet;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+
+/**
+ * Hooks the plugin's shared resources into the Jenkins lifecycle.
+ */
+@Extension
+public class BitbucketNotifierLifecycle extends ItemListener {
+
+	/**
+	 * Sends the notifications that were not completed before Jenkins was
+	 * last stopped and warms up the connections to Bitbucket, if enabled.
+	 */
+	@Override
+	public void onLoaded() {
+		// SCM listeners are registered, not discovered as extensions
+		new CheckoutListener().register();
+		getDescriptor().warmUpConnections();
+		NotificationDispatcher.get().replayOutbox();
+	}
+
+	/**
+	 * Warms up the connection to the server of a job when its configuration
+	 * is saved, if enabled.
+	 */
+	@Override
+	public void onUpdated(Item item) {
+		if (!(item instanceof AbstractProject) || !getDescriptor().isWarmUpConnections()) {
+			return;
+		}
+		BitbucketNotifier notifier = ((AbstractProject<?, ?>) item).getPublishersList()
+				.get(BitbucketNotifier.class);
+		ConnectionProbe.Target target = notifier != null ? notifier.getConnectionTarget() : null;
+		if (target != null) {
+			ConnectionProbe.warmUpInBackground(Collections.singleton(target));
+		}
+	}
+
+	private static BitbucketNotifier.DescriptorImpl getDescriptor() {
+		return Jenkins.getInstance().getDescriptorByType(BitbucketNotifier.DescriptorImpl.class);
+	}
+
+	/**
+	 * Sends or fails queued notifications and releases pooled connections to
+	 * Bitbucket when Jenkins shuts down.
+	 */
+	@Override
+	public void onBeforeShutdown() {
+		NotificationDispatcher.get().shutdown();
+		BitbucketClientRegistry.get().shutdown();
+	}
+
+	/**
+	 * Drops cached credentials when the system credentials change, and
+	 * retires the clients built from them.
+	 */
+	@Extension
+	public static class CredentialsListener extends SaveableListener {
+
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if (o instanceof SystemCredentialsProvider) {
+				CredentialsCache.get().invalidate();
+				BitbucketClientRegistry.get().retireAll();
+			}
+		}
+	}
+
+	/**
+	 * Makes the notifiers look up the commits built again when a build
+	 * checks out, e.g. with several SCMs or a checkout in a build step.
+	 * The change log is parsed right after each checkout.
+	 */
+	public static class CheckoutListener extends SCMListener {
+
+		@Override
+		public void onChangeLogParsed(
+				AbstractBuild<?, ?> build,
+				BuildListener listener,
+				ChangeLogSet<?> changelog) {
+
+			BuildNotificationContext context = BuildNotificationContext.peek(build);
+			if (context != null) {
+				context.invalidateBuiltCommitSha1s();
+			}
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Bitbucket server defined in the global configuration, which jobs and
+ * pipeline steps refer to by name.
+ * <p>
+ * Each server has its own connection pool, concurrency limit and rate
+ * limit, so a slow server only holds up the notifications sent to it.
+ * Numbers left at 0 and blank credentials fall back to the global settings.
+ * <p>
+ * For Bitbucket Data Center, the urls of the application nodes may be
+ * given. Requests are then spread across them by a {@link NodeBalancer}
+ * instead of going to the base url.
+ */
+public class BitbucketServer extends AbstractDescribableImpl<BitbucketServer> {
+
+	/** the name jobs refer to the server by. */
+	private final String name;
+
+	/** base url of the server, e. g. <tt>http://localhost:7990</tt>. */
+	private final String url;
+
+	/** the id of the credentials to use, blank for the global ones. */
+	private final String credentialsId;
+
+	/** if true, trust any SSL certificate of the server. */
+	private final boolean ignoreUnverifiedSsl;
+
+	/** concurrent requests and pooled connections, 0 for the global setting. */
+	private final int maxConcurrentRequests;
+
+	/** requests per second, 0 for the global setting. */
+	private final double rateLimit;
+
+	/** requests that may be sent in a burst, 0 for the global setting. */
+	private final int rateLimitBurst;
+
+	/** timeouts in seconds, 0 for the global setting. */
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int poolLeaseTimeout;
+	private final int connectionTtl;
+
+	/** urls of the Data Center nodes, one per line, blank to use the base url. */
+	private final String nodeUrls;
+
+	/** how requests are spread across the nodes. */
+	private final NodeSelection nodeSelection;
+
+	/** the effective credentials, resolved when the configuration is applied. */
+	private transient volatile String effectiveCredentialsId;
+
+	/** the effective timeouts, resolved when the configuration is applied. */
+	private transient volatile HttpTimeouts timeouts;
+
+	/** spreads requests across the nodes, null if none are given. */
+	private transient volatile NodeBalancer balancer;
+
+	@DataBoundConstructor
+	public BitbucketServer(
+			String name,
+			String url,
+			String credentialsId,
+			boolean ignoreUnverifiedSsl,
+			int maxConcurrentRequests,
+			double rateLimit,
+			int rateLimitBurst,
+			int connectTimeout,
+			int readTimeout,
+			int poolLeaseTimeout,
+			int connectionTtl,
+			String nodeUrls,
+			NodeSelection nodeSelection) {
+		this.name = StringUtils.trimToEmpty(name);
+		String trimmed = StringUtils.trimToEmpty(url);
+		this.url = trimmed.endsWith("/")
+				? trimmed.substring(0, trimmed.length() - 1)
+				: trimmed;
+		this.credentialsId = StringUtils.trimToEmpty(credentialsId);
+		this.ignoreUnverifiedSsl = ignoreUnverifiedSsl;
+		this.maxConcurrentRequests = Math.max(0, maxConcurrentRequests);
+		this.rateLimit = Math.max(0, rateLimit);
+		this.rateLimitBurst = Math.max(0, rateLimitBurst);
+		this.connectTimeout = Math.max(0, connectTimeout);
+		this.readTimeout = Math.max(0, readTimeout);
+		this.poolLeaseTimeout = Math.max(0, poolLeaseTimeout);
+		this.connectionTtl = Math.max(0, connectionTtl);
+		this.nodeUrls = StringUtils.trimToNull(nodeUrls);
+		this.nodeSelection = nodeSelection != null
+				? nodeSelection : NodeSelection.LEAST_OUTSTANDING;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	public boolean isIgnoreUnverifiedSsl() {
+		return ignoreUnverifiedSsl;
+	}
+
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	public double getRateLimit() {
+		return rateLimit;
+	}
+
+	public int getRateLimitBurst() {
+		return rateLimitBurst;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getPoolLeaseTimeout() {
+		return poolLeaseTimeout;
+	}
+
+	public int getConnectionTtl() {
+		return connectionTtl;
+	}
+
+	public String getNodeUrls() {
+		return nodeUrls;
+	}
+
+	public NodeSelection getNodeSelection() {
+		return nodeSelection != null ? nodeSelection : NodeSelection.LEAST_OUTSTANDING;
+	}
+
+	/**
+	 * @return the urls of the Data Center nodes, empty if none are given
+	 */
+	List<String> getNodeUrlList() {
+		List<String> urls = new ArrayList<String>();
+		if (nodeUrls != null) {
+			for (String line : nodeUrls.split("[\\r\\n]+")) {
+				if (StringUtils.isNotBlank(line)) {
+					urls.add(line.trim());
+				}
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Resolves the settings falling back to the global ones, so they are
+	 * not looked up again for every notification.
+	 *
+	 * @param globalCredentialsId	the credentials of the global configuration
+	 * @param globalTimeouts		the timeouts of the global configuration
+	 */
+	void resolve(String globalCredentialsId, HttpTimeouts globalTimeouts) {
+		effectiveCredentialsId = StringUtils.isNotBlank(credentialsId)
+				? credentialsId : globalCredentialsId;
+		timeouts = globalTimeouts.overriddenBy(
+				connectTimeout, readTimeout, poolLeaseTimeout, connectionTtl);
+		balancer = newBalancer();
+	}
+
+	private NodeBalancer newBalancer() {
+		List<String> urls = getNodeUrlList();
+		return urls.isEmpty() ? null
+				: new NodeBalancer(name, url, urls, getNodeSelection());
+	}
+
+	/**
+	 * @return the balancer spreading requests across the nodes, or null if
+	 * 			requests go to the base url
+	 */
+	NodeBalancer getBalancer() {
+		NodeBalancer resolved = balancer;
+		if (resolved == null && nodeUrls != null) {
+			synchronized (this) {
+				if (balancer == null) {
+					balancer = newBalancer();
+				}
+				resolved = balancer;
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * @return the id of the credentials to use, may be blank
+	 */
+	String getEffectiveCredentialsId() {
+		return effectiveCredentialsId != null ? effectiveCredentialsId : credentialsId;
+	}
+
+	/**
+	 * @return the timeouts of requests to the server
+	 */
+	HttpTimeouts getTimeouts() {
+		HttpTimeouts resolved = timeouts;
+		return resolved != null ? resolved : HttpTimeouts.DEFAULT.overriddenBy(
+				connectTimeout, readTimeout, poolLeaseTimeout, connectionTtl);
+	}
+
+	/**
+	 * @return the key of the pooled client of the server, with the proxy
+	 * 			currently configured in Jenkins
+	 */
+	BitbucketClientRegistry.ClientKey getClientKey() throws MalformedURLException {
+		return BitbucketClientRegistry.ClientKey.create(
+				new URL(url),
+				ignoreUnverifiedSsl,
+				getEffectiveCredentialsId(),
+				getTimeouts().connectionTtl,
+				maxConcurrentRequests);
+	}
+
+	/**
+	 * @return the server as a target of a connection test or warm-up
+	 */
+	ConnectionProbe.Target getConnectionTarget() {
+		return new ConnectionProbe.Target(
+				url, getEffectiveCredentialsId(), ignoreUnverifiedSsl, getTimeouts(), this);
+	}
+
+	/**
+	 * @return the server and each of its nodes, to warm up
+	 */
+	List<ConnectionProbe.Target> getConnectionTargets() {
+		List<ConnectionProbe.Target> targets = new ArrayList<ConnectionProbe.Target>();
+		targets.add(getConnectionTarget());
+		NodeBalancer nodes = getBalancer();
+		if (nodes != null) {
+			for (NodeBalancer.Node node : nodes.getNodes()) {
+				targets.add(new ConnectionProbe.Target(node.getUrl(),
+						getEffectiveCredentialsId(), ignoreUnverifiedSsl, getTimeouts(), this));
+			}
+		}
+		return targets;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + url + ")";
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<BitbucketServer> {
+
+		@Override
+		public String getDisplayName() {
+			return "Bitbucket server";
+		}
+
+		public ListBoxModel doFillCredentialsIdItems() {
+			if (!Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)) {
+				return new ListBoxModel();
+			}
+			return new StandardListBoxModel().withEmptySelection().withMatching(
+					new BitbucketCredentialMatcher(),
+					CredentialsProvider.lookupCredentials(StandardCredentials.class,
+							Jenkins.getInstance(), null, new ArrayList<DomainRequirement>()));
+		}
+
+		public ListBoxModel doFillNodeSelectionItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (NodeSelection selection : NodeSelection.values()) {
+				items.add(selection.getDisplayName(), selection.name());
+			}
+			return items;
+		}
+
+		public FormValidation doCheckNodeUrls(@QueryParameter String value) {
+			if (value != null) {
+				for (String line : value.split("[\\r\\n]+")) {
+					if (StringUtils.isBlank(line)) {
+						continue;
+					}
+					try {
+						new URL(line.trim());
+					} catch (MalformedURLException e) {
+						return FormValidation.error("Not a valid URL: " + line.trim());
+					}
+				}
+			}
+			return FormValidation.ok();
+		}
+
+		public FormValidation doCheckName(@QueryParameter String value) {
+			if (StringUtils.isBlank(value)) {
+				return FormValidation.error("Please specify a name");
+			}
+			return FormValidation.ok();
+		}
+
+		public FormValidation doCheckUrl(@QueryParameter String value) {
+			if (StringUtils.isBlank(value)) {
+				return FormValidation.error("Please specify the base url");
+			}
+			try {
+				new URL(value.trim());
+				return FormValidation.ok();
+			} catch (MalformedURLException e) {
+				return FormValidation.error("Please specify a valid URL");
+			}
+		}
+
+		/**
+		 * Tests the connection with the settings of a server in the global
+		 * configuration form, falling back to the global ones.
+		 */
+		@RequirePOST
+		public FormValidation doTestConnection(
+				@QueryParameter String url,
+				@QueryParameter String credentialsId,
+				@QueryParameter boolean ignoreUnverifiedSsl,
+				@QueryParameter String connectTimeout,
+				@QueryParameter String readTimeout) {
+			Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+			if (StringUtils.isBlank(url)) {
+				return FormValidation.error("Please specify the base url");
+			}
+			BitbucketNotifier.DescriptorImpl global = Jenkins.getInstance()
+					.getDescriptorByType(BitbucketNotifier.DescriptorImpl.class);
+			ConnectionProbe.Target target = new ConnectionProbe.Target(
+					url.trim(),
+					StringUtils.isNotBlank(credentialsId) ? credentialsId : global.getCredentialsId(),
+					ignoreUnverifiedSsl,
+					global.getTimeouts().overriddenBy(
+							BitbucketNotifier.DescriptorImpl.parseInt(connectTimeout),
+							BitbucketNotifier.DescriptorImpl.parseInt(readTimeout), 0, 0));
+			return ConnectionProbe.toFormValidation(target, ConnectionProbe.test(target));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The {@link BitbucketServer}s of the global configuration by name, with
+ * their settings resolved against the global ones.
+ */
+final class BitbucketServers {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(BitbucketServers.class.getName());
+
+	private static final BitbucketServers INSTANCE = new BitbucketServers();
+
+	private volatile Map<String, BitbucketServer> servers
+			= Collections.emptyMap();
+
+	BitbucketServers() {
+	}
+
+	/**
+	 * @return the servers of the global configuration
+	 */
+	static BitbucketServers get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Replaces the servers, resolving their settings. Of several servers
+	 * with the same name only the first one is used.
+	 *
+	 * @param servers				the servers of the global configuration
+	 * @param globalCredentialsId	the global credentials
+	 * @param globalTimeouts		the global timeouts
+	 */
+	void configure(
+			List<BitbucketServer> servers,
+			String globalCredentialsId,
+			HttpTimeouts globalTimeouts) {
+		Map<String, BitbucketServer> byName = new LinkedHashMap<String, BitbucketServer>();
+		for (BitbucketServer server : servers) {
+			if (StringUtils.isBlank(server.getName()) || StringUtils.isBlank(server.getUrl())) {
+				LOGGER.warning("Ignoring Bitbucket server without name or url: " + server);
+				continue;
+			}
+			if (byName.containsKey(server.getName())) {
+				LOGGER.warning("Ignoring Bitbucket server with duplicate name: " + server);
+				continue;
+			}
+			server.resolve(globalCredentialsId, globalTimeouts);
+			byName.put(server.getName(), server);
+		}
+		this.servers = Collections.unmodifiableMap(byName);
+	}
+
+	/**
+	 * @param name	the name of a server, may be blank
+	 * @return		the server, or null if there is none by that name
+	 */
+	BitbucketServer get(String name) {
+		if (StringUtils.isBlank(name)) {
+			return null;
+		}
+		return servers.get(name.trim());
+	}
+
+	/**
+	 * @return all servers, in the order of the global configuration
+	 */
+	Collection<BitbucketServer> getAll() {
+		return servers.values();
+	}
+
+	boolean isEmpty() {
+		return servers.isEmpty();
+	}
+
+	/**
+	 * @param defaultMaxConcurrentRequests	the global limit per server
+	 * @return								the highest limit of concurrent
+	 * 										requests to any one server
+	 */
+	int getMaxConcurrentRequests(int defaultMaxConcurrentRequests) {
+		int max = defaultMaxConcurrentRequests;
+		for (BitbucketServer server : servers.values()) {
+			max = Math.max(max, server.getMaxConcurrentRequests());
+		}
+		return max;
+	}
+}
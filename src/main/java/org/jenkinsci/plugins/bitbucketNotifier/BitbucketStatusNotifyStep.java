@@ -0,0 +1,387 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pipeline step <tt>bitbucketStatusNotify</tt>, notifying Bitbucket of the
+ * state of a build through the same dispatcher as {@link BitbucketNotifier}.
+ * <p>
+ * The step returns right away and completes once Bitbucket answered, so it
+ * ties up neither an executor nor the thread running the Pipeline. It
+ * returns whether the notification succeeded; like the notifier, it never
+ * fails the build because of Bitbucket.
+ * <p>
+ * Settings that are not given fall back to the global configuration of the
+ * notifier, or come from the named {@link BitbucketServer} if one is given.
+ * The commit defaults to <tt>GIT_COMMIT</tt>.
+ * <p>
+ * Only available if the Pipeline step API plugin is installed.
+ */
+public class BitbucketStatusNotifyStep extends AbstractStepImpl {
+
+	/** INPROGRESS, SUCCESSFUL or FAILED. */
+	private final String buildState;
+
+	/** the commit to notify Bitbucket of, GIT_COMMIT if blank. */
+	private final String commitId;
+
+	/** the build key, derived from the job name if blank. */
+	private final String buildKey;
+
+	/** the build name, the full display name of the build if blank. */
+	private final String buildName;
+
+	/** the build description, derived from the build if blank. */
+	private final String buildDescription;
+
+	/** base url of Bitbucket server, the global setting if blank. */
+	private final String bitbucketServerBaseUrl;
+
+	/** the id of the credentials to use, the global setting if blank. */
+	private final String credentialsId;
+
+	/** if true, ignore exception thrown in case of an unverified SSL peer. */
+	private final boolean ignoreUnverifiedSSLPeer;
+
+	/** name of a server of the global configuration, blank if none is used. */
+	private final String serverName;
+
+	@Deprecated
+	public BitbucketStatusNotifyStep(
+			String buildState,
+			String commitId,
+			String buildKey,
+			String buildName,
+			String buildDescription,
+			String bitbucketServerBaseUrl,
+			String credentialsId,
+			boolean ignoreUnverifiedSSLPeer) {
+		this(buildState, commitId, buildKey, buildName, buildDescription,
+				bitbucketServerBaseUrl, credentialsId, ignoreUnverifiedSSLPeer, null);
+	}
+
+	@DataBoundConstructor
+	public BitbucketStatusNotifyStep(
+			String buildState,
+			String commitId,
+			String buildKey,
+			String buildName,
+			String buildDescription,
+			String bitbucketServerBaseUrl,
+			String credentialsId,
+			boolean ignoreUnverifiedSSLPeer,
+			String serverName) {
+
+		this.buildState = buildState;
+		this.commitId = commitId;
+		this.buildKey = buildKey;
+		this.buildName = buildName;
+		this.buildDescription = buildDescription;
+		this.bitbucketServerBaseUrl = bitbucketServerBaseUrl;
+		this.credentialsId = credentialsId;
+		this.ignoreUnverifiedSSLPeer = ignoreUnverifiedSSLPeer;
+		this.serverName = StringUtils.trimToNull(serverName);
+	}
+
+	public String getBuildState() {
+		return buildState;
+	}
+
+	public String getCommitId() {
+		return commitId;
+	}
+
+	public String getBuildKey() {
+		return buildKey;
+	}
+
+	public String getBuildName() {
+		return buildName;
+	}
+
+	public String getBuildDescription() {
+		return buildDescription;
+	}
+
+	public String getBitbucketServerBaseUrl() {
+		return bitbucketServerBaseUrl;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	public boolean getIgnoreUnverifiedSSLPeer() {
+		return ignoreUnverifiedSSLPeer;
+	}
+
+	public String getServerName() {
+		return serverName;
+	}
+
+	/**
+	 * Resolves the notification for the given build.
+	 *
+	 * @param run		the build to notify Bitbucket of
+	 * @param env		the environment of the step
+	 * @param callback	receives the outcome of the notification
+	 * @return			the notification, ready to be sent
+	 */
+	BitbucketNotification newNotification(
+			Run<?, ?> run,
+			EnvVars env,
+			NotificationCallback callback) throws AbortException {
+
+		BitbucketBuildState state;
+		try {
+			state = BitbucketBuildState.valueOf(
+					StringUtils.defaultString(buildState).trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new AbortException("Invalid build state '" + buildState
+					+ "', use INPROGRESS, SUCCESSFUL or FAILED");
+		}
+
+		String commit = StringUtils.isNotBlank(commitId)
+				? commitId.trim() : env.get("GIT_COMMIT");
+		if (StringUtils.isBlank(commit)) {
+			throw new AbortException(
+					"No commit id given and GIT_COMMIT is not set");
+		}
+
+		BitbucketNotifier.DescriptorImpl descriptor = Jenkins.getInstance()
+				.getDescriptorByType(BitbucketNotifier.DescriptorImpl.class);
+		String rootUrl = Jenkins.getInstance().getRootUrl();
+		if (rootUrl == null) {
+			throw new AbortException(
+					"Cannot notify Bitbucket! (Jenkins Root URL not configured)");
+		}
+
+		BitbucketServer server = null;
+		if (serverName != null) {
+			server = BitbucketServers.get().get(serverName);
+			if (server == null) {
+				throw new AbortException("No Bitbucket server named " + serverName
+						+ " is configured globally");
+			}
+		}
+
+		String url = server != null ? server.getUrl()
+				: StringUtils.isNotBlank(bitbucketServerBaseUrl)
+				? bitbucketServerBaseUrl.trim() : descriptor.getBitbucketRootUrl();
+		if (StringUtils.isBlank(url)) {
+			throw new AbortException("No Bitbucket server url given and none "
+					+ "is configured globally");
+		}
+		if (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+
+		String effectiveCredentialsId = server != null ? server.getEffectiveCredentialsId()
+				: StringUtils.isNotBlank(credentialsId)
+				? credentialsId : descriptor.getCredentialsId();
+
+		String key;
+		if (StringUtils.isNotBlank(buildKey)) {
+			key = StringEscapeUtils.escapeJavaScript(buildKey);
+		} else {
+			StringBuilder defaultKey = new StringBuilder();
+			defaultKey.append(run.getParent().getName());
+			if (descriptor.isIncludeBuildNumberInKey()) {
+				defaultKey.append('-').append(run.getNumber());
+			}
+			defaultKey.append('-').append(rootUrl);
+			key = StringEscapeUtils.escapeJavaScript(defaultKey.toString());
+		}
+
+		String description = StringUtils.isNotBlank(buildDescription)
+				? buildDescription : BitbucketNotifier.getBuildDescription(run, state);
+
+		return new BitbucketNotification(
+				url,
+				effectiveCredentialsId,
+				server != null ? server.isIgnoreUnverifiedSsl()
+						: ignoreUnverifiedSSLPeer || descriptor.isIgnoreUnverifiedSsl(),
+				commit,
+				key,
+				run.getParent().getFullName(),
+				state,
+				StatusPayloadWriter.newEntity(
+						state,
+						key,
+						StringUtils.isNotBlank(buildName) ? buildName : run.getFullDisplayName(),
+						description,
+						rootUrl.concat(run.getUrl())),
+				server != null ? server.getTimeouts() : descriptor.getTimeouts(),
+				callback,
+				server);
+	}
+
+	/**
+	 * Hands the notification to the dispatcher and completes the step once
+	 * it has been sent.
+	 */
+	public static class Execution extends AbstractStepExecutionImpl {
+
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		private transient BitbucketStatusNotifyStep step;
+
+		@StepContextParameter
+		private transient Run<?, ?> run;
+
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		@StepContextParameter
+		private transient EnvVars env;
+
+		/** completes the step, null if it was not started in this process. */
+		private transient volatile StepCallback callback;
+
+		@Override
+		public boolean start() throws Exception {
+			final StepCallback callback
+					= new StepCallback(getContext(), listener.getLogger());
+			this.callback = callback;
+			final BitbucketNotification notification
+					= step.newNotification(run, env, callback);
+
+			// submitting may block while the queue is full, which must not
+			// happen on the thread running the Pipeline
+			Computer.threadPoolForRemoting.submit(new Runnable() {
+				public void run() {
+					try {
+						NotificationDispatcher.get().submit(notification);
+					} catch (InterruptedException e) {
+						callback.onException(notification.commitSha1, e);
+					}
+				}
+			});
+			return false;
+		}
+
+		@Override
+		public void stop(Throwable cause) throws Exception {
+			StepCallback started = callback;
+			if (started != null) {
+				// the outcome may arrive meanwhile, the step completes once
+				started.onStop(cause);
+			} else {
+				getContext().onFailure(cause);
+			}
+		}
+
+		@Override
+		public void onResume() {
+			super.onResume();
+			// the outcome was reported to the previous Jenkins process;
+			// if it was not sent, the outbox sends it again
+			listener.getLogger().println("Jenkins restarted while notifying "
+					+ "Bitbucket, not waiting for the outcome");
+			getContext().onSuccess(Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Reports the outcome to the build log and completes the step with
+	 * whether the notification succeeded.
+	 */
+	static final class StepCallback extends NotificationCallback {
+
+		private final StepContext context;
+
+		private final AtomicBoolean completed = new AtomicBoolean();
+
+		StepCallback(StepContext context, PrintStream logger) {
+			super(logger);
+			this.context = context;
+		}
+
+		@Override
+		void onResult(BitbucketNotification notification, NotificationResult result) {
+			super.onResult(notification, result);
+			if (completed.compareAndSet(false, true)) {
+				context.onSuccess(result.indicatesSuccess || result.skipped);
+			}
+		}
+
+		@Override
+		void onException(String commitSha1, Exception e) {
+			super.onException(commitSha1, e);
+			if (completed.compareAndSet(false, true)) {
+				context.onSuccess(Boolean.FALSE);
+			}
+		}
+
+		/**
+		 * Fails the step as it was stopped, unless it completed already.
+		 *
+		 * @param cause	why the step was stopped
+		 */
+		void onStop(Throwable cause) {
+			if (completed.compareAndSet(false, true)) {
+				context.onFailure(cause);
+			}
+		}
+	}
+
+	@Extension(optional = true)
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "bitbucketStatusNotify";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Notify Bitbucket of the build status";
+		}
+
+		public ListBoxModel doFillBuildStateItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (BitbucketBuildState state : BitbucketBuildState.values()) {
+				items.add(state.name());
+			}
+			return items;
+		}
+
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath ItemGroup context) {
+			return Jenkins.getInstance()
+					.getDescriptorByType(BitbucketNotifier.DescriptorImpl.class)
+					.doFillCredentialsIdItems(context);
+		}
+
+		public ListBoxModel doFillServerNameItems() {
+			return Jenkins.getInstance()
+					.getDescriptorByType(BitbucketNotifier.DescriptorImpl.class)
+					.doFillServerNameItems();
+		}
+	}
+}
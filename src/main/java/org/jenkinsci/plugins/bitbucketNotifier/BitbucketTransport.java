@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/**
+ * Sends the requests of notifications to Bitbucket over the pooled
+ * connections of the {@link BitbucketClientRegistry}. Which transport is
+ * used is chosen in the global configuration, see {@link TransportType}.
+ * <p>
+ * Both transports use the same proxy settings, SSL handling and timeouts,
+ * and report timeouts with the same exceptions, so callers need not know
+ * which one they use.
+ */
+interface BitbucketTransport {
+
+	/**
+	 * Sends the request and waits for the response.
+	 *
+	 * @param notification	the notification the request belongs to, for the
+	 * 						server, credentials and connection settings
+	 * @param request		the request to send
+	 * @return				the response; its entity must be consumed
+	 * @throws org.apache.http.conn.ConnectionPoolTimeoutException
+	 * 						if no pooled connection became available in time
+	 * @throws java.net.SocketTimeoutException
+	 * 						if Bitbucket did not answer in time
+	 */
+	HttpResponse execute(BitbucketNotification notification, HttpUriRequest request)
+			throws IOException, InterruptedException;
+}
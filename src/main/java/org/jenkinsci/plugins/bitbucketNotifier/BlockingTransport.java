@@ -0,0 +1,29 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/**
+ * Sends requests with the blocking Apache HttpClient: the calling thread
+ * holds a pooled connection until the response has arrived.
+ */
+final class BlockingTransport implements BitbucketTransport {
+
+	static final BlockingTransport INSTANCE = new BlockingTransport();
+
+	private BlockingTransport() {
+	}
+
+	public HttpResponse execute(BitbucketNotification notification, HttpUriRequest request)
+			throws IOException {
+		long start = System.nanoTime();
+		HttpClient client = BitbucketClientRegistry.get().getClient(
+				notification.callback.getLogger(),
+				BitbucketClientRegistry.ClientKey.of(notification));
+		NotificationMetrics.get().recordClientLookup(System.nanoTime() - start);
+		return client.execute(request);
+	}
+}
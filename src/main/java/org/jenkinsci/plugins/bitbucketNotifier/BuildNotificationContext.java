@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import org.apache.http.HttpEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers what the notifiers of a build computed for it, so the build key
+ * and the payload are computed once per build and state instead of once per
+ * commit.
+ * <p>
+ * The commits built are looked up once as well, instead of scanning the
+ * build's {@code BuildData} actions both before and after the build. They
+ * are looked up again after a checkout, see
+ * {@link BitbucketNotifierLifecycle.CheckoutListener}.
+ * <p>
+ * The build key is computed when the build is notified the first time and
+ * reused for all later states, since Bitbucket only replaces a status if
+ * the key is the same.
+ * <p>
+ * The contexts are kept in memory only, not as actions of the build, so
+ * nothing is written to the <tt>build.xml</tt>. A context is dropped once
+ * its build is no longer loaded.
+ */
+final class BuildNotificationContext {
+
+	/** the contexts of the builds that were notified. */
+	private static final Map<AbstractBuild<?, ?>, BuildNotificationContext> CONTEXTS
+			= new WeakHashMap<AbstractBuild<?, ?>, BuildNotificationContext>();
+
+	/** the values per notifier, a job may have more than one. */
+	private Map<BitbucketNotifier, Values> values;
+
+	/** the commits built, in the order of the BuildData actions. */
+	private List<String> builtCommitSha1s;
+
+	private static final class Values {
+		String buildKey;
+		final Map<BitbucketBuildState, HttpEntity> payloads
+				= new EnumMap<BitbucketBuildState, HttpEntity>(BitbucketBuildState.class);
+	}
+
+	/**
+	 * @return the context of the build, created on first use
+	 */
+	static BuildNotificationContext of(AbstractBuild<?, ?> build) {
+		synchronized (CONTEXTS) {
+			BuildNotificationContext context = CONTEXTS.get(build);
+			if (context == null) {
+				context = new BuildNotificationContext();
+				CONTEXTS.put(build, context);
+			}
+			return context;
+		}
+	}
+
+	/**
+	 * @return the context of the build, or null if it was not notified yet
+	 */
+	static BuildNotificationContext peek(AbstractBuild<?, ?> build) {
+		synchronized (CONTEXTS) {
+			return CONTEXTS.get(build);
+		}
+	}
+
+	private Values valuesOf(BitbucketNotifier notifier) {
+		if (values == null) {
+			values = new WeakHashMap<BitbucketNotifier, Values>();
+		}
+		Values notifierValues = values.get(notifier);
+		if (notifierValues == null) {
+			notifierValues = new Values();
+			values.put(notifier, notifierValues);
+		}
+		return notifierValues;
+	}
+
+	/**
+	 * @return the commits built according to the build's BuildData actions,
+	 * 			see {@link BitbucketNotifier#lookupBuiltCommitSha1s}
+	 */
+	synchronized List<String> getBuiltCommitSha1s(AbstractBuild<?, ?> build) {
+		if (builtCommitSha1s == null) {
+			List<String> found = new ArrayList<String>(
+					BitbucketNotifier.lookupBuiltCommitSha1s(build));
+			if (found.isEmpty()) {
+				// nothing checked out yet, look again next time
+				return found;
+			}
+			builtCommitSha1s = Collections.unmodifiableList(found);
+		}
+		return builtCommitSha1s;
+	}
+
+	/**
+	 * Forgets the commits built, as the build checked out another revision.
+	 */
+	synchronized void invalidateBuiltCommitSha1s() {
+		builtCommitSha1s = null;
+	}
+
+	/**
+	 * @return the build key, the same for all states of the build
+	 */
+	synchronized String getBuildKey(
+			BitbucketNotifier notifier,
+			AbstractBuild<?, ?> build,
+			BuildListener listener) {
+
+		Values notifierValues = valuesOf(notifier);
+		if (notifierValues.buildKey == null) {
+			notifierValues.buildKey = notifier.getBuildKey(build, listener);
+		}
+		return notifierValues.buildKey;
+	}
+
+	/**
+	 * @param buildKey	the build key, the same for all states of the build
+	 * @return			the payload for the state, shared by the notifications
+	 * 					of all commits of the build
+	 */
+	synchronized HttpEntity getPayload(
+			BitbucketNotifier notifier,
+			AbstractBuild<?, ?> build,
+			BitbucketBuildState state,
+			String buildKey) {
+
+		Map<BitbucketBuildState, HttpEntity> payloads = valuesOf(notifier).payloads;
+		HttpEntity payload = payloads.get(state);
+		if (payload == null) {
+			payload = notifier.newBitbucketBuildNotificationEntity(build, state, buildKey);
+			payloads.put(state, payload);
+		}
+		return payload;
+	}
+}
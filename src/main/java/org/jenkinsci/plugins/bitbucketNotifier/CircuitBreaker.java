@@ -0,0 +1,148 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.Date;
+
+/**
+ * Circuit breaker for one Bitbucket server.
+ * <p>
+ * While closed, requests pass. After a number of consecutive failures the
+ * breaker opens and requests are refused until the open period is over.
+ * Then it is half-open: a single probe request is let through, which closes
+ * the breaker again if it succeeds and re-opens it if it fails.
+ */
+public final class CircuitBreaker {
+
+	/** the states of a circuit breaker. */
+	public enum State {
+		CLOSED("closed"),
+		OPEN("open"),
+		HALF_OPEN("half-open");
+
+		private final String displayName;
+
+		State(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	/** how long other requests wait while a probe is in flight. */
+	static final long PROBE_WAIT_MILLIS = 1000;
+
+	private final String serverUrl;
+
+	private State state = State.CLOSED;
+
+	private int consecutiveFailures;
+
+	private long openedAt;
+
+	private long openUntil;
+
+	private boolean probing;
+
+	CircuitBreaker(String serverUrl) {
+		this.serverUrl = serverUrl;
+	}
+
+	/**
+	 * @return the base url of the Bitbucket server
+	 */
+	public String getServerUrl() {
+		return serverUrl;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return when the breaker last opened, or null if it is closed
+	 */
+	public synchronized Date getOpenedAt() {
+		return state == State.CLOSED ? null : new Date(openedAt);
+	}
+
+	/**
+	 * Asks to send a request. A request that is let through must be followed
+	 * by exactly one call to {@link #onSuccess()}, {@link #onFailure(int, long)}
+	 * or {@link #onNeutral()}.
+	 *
+	 * @return	0 if the request may be sent, otherwise how many milliseconds
+	 * 			to wait before asking again
+	 */
+	synchronized long tryAcquire() {
+		switch (state) {
+		case CLOSED:
+			return 0;
+		case OPEN:
+			long remaining = openUntil - System.currentTimeMillis();
+			if (remaining > 0) {
+				return remaining;
+			}
+			state = State.HALF_OPEN;
+			probing = true;
+			return 0;
+		default:
+			if (probing) {
+				return PROBE_WAIT_MILLIS;
+			}
+			probing = true;
+			return 0;
+		}
+	}
+
+	/**
+	 * Records that the server answered.
+	 *
+	 * @return true if this closed the breaker
+	 */
+	synchronized boolean onSuccess() {
+		boolean closed = state != State.CLOSED;
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		probing = false;
+		return closed;
+	}
+
+	/**
+	 * Records that the server could not be reached or answered with a
+	 * server error.
+	 *
+	 * @param threshold	consecutive failures after which the breaker opens
+	 * @param openMillis	how long the breaker stays open
+	 * @return			true if this opened the breaker
+	 */
+	synchronized boolean onFailure(int threshold, long openMillis) {
+		consecutiveFailures++;
+		probing = false;
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED && consecutiveFailures >= threshold)) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			openUntil = openedAt + openMillis;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records that a request let through ended without telling anything
+	 * about the server, e.g. because it was interrupted.
+	 */
+	synchronized void onNeutral() {
+		probing = false;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "circuit breaker for " + serverUrl + " is " + state.getDisplayName();
+	}
+}
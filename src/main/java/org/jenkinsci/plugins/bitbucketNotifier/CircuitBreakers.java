@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CircuitBreaker}s of all Bitbucket servers notified so far, one
+ * per effective base url, whether it comes from the global or the job
+ * configuration.
+ */
+final class CircuitBreakers {
+
+	static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	static final int DEFAULT_OPEN_SECONDS = 30;
+
+	private final ConcurrentMap<String, CircuitBreaker> breakers
+			= new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+	private volatile long openMillis = TimeUnit.SECONDS.toMillis(DEFAULT_OPEN_SECONDS);
+
+	/**
+	 * @param failureThreshold	consecutive failures after which a breaker
+	 * 							opens, 0 disables circuit breaking
+	 * @param openSeconds		how long a breaker stays open before it lets
+	 * 							a probe through
+	 */
+	synchronized void configure(int failureThreshold, int openSeconds) {
+		int threshold = Math.max(0, failureThreshold);
+		if (threshold != this.failureThreshold) {
+			// start over with the new threshold
+			breakers.clear();
+		}
+		this.failureThreshold = threshold;
+		this.openMillis = TimeUnit.SECONDS.toMillis(Math.max(1, openSeconds));
+	}
+
+	boolean isEnabled() {
+		return failureThreshold > 0;
+	}
+
+	int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	long getOpenMillis() {
+		return openMillis;
+	}
+
+	/**
+	 * @param serverUrl	the effective base url of a Bitbucket server
+	 * @return			the breaker for the server
+	 */
+	CircuitBreaker get(String serverUrl) {
+		String key = normalize(serverUrl);
+		CircuitBreaker breaker = breakers.get(key);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(key);
+			breaker = breakers.putIfAbsent(key, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * @return all breakers, ordered by server url
+	 */
+	List<CircuitBreaker> getAll() {
+		List<CircuitBreaker> all = new ArrayList<CircuitBreaker>(breakers.values());
+		Collections.sort(all, new Comparator<CircuitBreaker>() {
+			public int compare(CircuitBreaker a, CircuitBreaker b) {
+				return a.getServerUrl().compareTo(b.getServerUrl());
+			}
+		});
+		return all;
+	}
+
+	private static String normalize(String serverUrl) {
+		String url = String.valueOf(serverUrl).trim();
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		return url;
+	}
+}
@@ -0,0 +1,427 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.Util;
+import hudson.util.FormValidation;
+import hudson.util.LogTaskListener;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Probes the connection to a Bitbucket server stage by stage, measuring
+ * the latency of each.
+ * <p>
+ * A warm-up does what the first notification to a server would otherwise
+ * do inside a build: it resolves the credentials, builds the SSL context
+ * and sends a request through the pooled client of the configured
+ * {@link BitbucketTransport}, which leaves a connection in the pool and a
+ * TLS session to resume. Warm-ups run in the background, one server after
+ * the other.
+ * <p>
+ * A test additionally looks up the host, connects and performs the TLS
+ * handshake on a socket of its own, so each of those stages is reported
+ * separately, and sends a second request over the pooled connection.
+ */
+final class ConnectionProbe {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(ConnectionProbe.class.getName());
+
+	private static final ExecutorService WARM_UP_EXECUTOR
+			= Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Bitbucket notifier warm-up");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** servers waiting for a warm-up, so repeated saves do not queue them twice. */
+	private static final Set<Target> PENDING
+			= Collections.synchronizedSet(new HashSet<Target>());
+
+	private final Target target;
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	private ConnectionProbe(Target target) {
+		this.target = target;
+	}
+
+	/**
+	 * Warms up the connections to the servers in the background.
+	 *
+	 * @param targets	the servers to warm up
+	 */
+	static void warmUpInBackground(Collection<Target> targets) {
+		for (final Target target : targets) {
+			if (!PENDING.add(target)) {
+				continue;
+			}
+			WARM_UP_EXECUTOR.execute(new Runnable() {
+				public void run() {
+					PENDING.remove(target);
+					try {
+						List<Stage> stages = warmUp(target);
+						Stage last = stages.get(stages.size() - 1);
+						if (last.failure != null) {
+							LOGGER.warning("Failed to warm up the connection to "
+									+ target + ": " + format(stages));
+						} else {
+							LOGGER.fine("Warmed up the connection to " + target
+									+ ": " + format(stages));
+						}
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING,
+								"Failed to warm up the connection to " + target, e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Resolves the credentials and SSL context of the server and opens a
+	 * pooled connection to it.
+	 *
+	 * @return the stages, the last one failed if the warm-up failed
+	 */
+	static List<Stage> warmUp(Target target) {
+		ConnectionProbe probe = new ConnectionProbe(target);
+		if (probe.resolveCredentials() && probe.buildSslContext() != null) {
+			probe.request("Request on a new connection");
+		}
+		return probe.stages;
+	}
+
+	/**
+	 * Probes every stage of connecting to the server.
+	 *
+	 * @return the stages, the last one failed if the test failed
+	 */
+	static List<Stage> test(Target target) {
+		ConnectionProbe probe = new ConnectionProbe(target);
+		SSLContext context;
+		if (!probe.resolveCredentials() || (context = probe.buildSslContext()) == null) {
+			return probe.stages;
+		}
+		URL url;
+		try {
+			url = new URL(target.serverUrl);
+		} catch (IOException e) {
+			probe.fail("URL", 0, e);
+			return probe.stages;
+		}
+		BitbucketClientRegistry.ClientKey key = BitbucketClientRegistry.ClientKey.create(
+				url, target.ignoreUnverifiedSSL, target.credentialsId,
+				target.timeouts.connectionTtl);
+		// through a proxy, these stages are up to the proxy
+		if (key.proxyHost == null && !probe.connect(url, key, context)) {
+			return probe.stages;
+		}
+		if (probe.request("Request on a new connection")) {
+			probe.request("Request on the pooled connection");
+		}
+		return probe.stages;
+	}
+
+	/**
+	 * @return the stages as a table, ok if all of them succeeded
+	 */
+	static FormValidation toFormValidation(Target target, List<Stage> stages) {
+		StringBuilder html = new StringBuilder();
+		html.append(Util.escape(target.serverUrl)).append("<table>");
+		boolean failed = false;
+		for (Stage stage : stages) {
+			html.append("<tr><td>").append(Util.escape(stage.name))
+					.append("</td><td>").append(formatMillis(stage.nanos))
+					.append("</td><td>");
+			if (stage.failure != null) {
+				failed = true;
+				html.append(Util.escape(stage.failure));
+			} else if (stage.detail != null) {
+				html.append(Util.escape(stage.detail));
+			}
+			html.append("</td></tr>");
+		}
+		html.append("</table>");
+		return failed
+				? FormValidation.errorWithMarkup(html.toString())
+				: FormValidation.okWithMarkup(html.toString());
+	}
+
+	static String format(List<Stage> stages) {
+		StringBuilder text = new StringBuilder();
+		for (Stage stage : stages) {
+			if (text.length() > 0) {
+				text.append(", ");
+			}
+			text.append(stage.name).append(' ').append(formatMillis(stage.nanos));
+			if (stage.failure != null) {
+				text.append(" (").append(stage.failure).append(')');
+			} else if (stage.detail != null) {
+				text.append(" (").append(stage.detail).append(')');
+			}
+		}
+		return text.toString();
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format("%.1f ms", nanos / 1e6);
+	}
+
+	private boolean resolveCredentials() {
+		if (StringUtils.isBlank(target.credentialsId)) {
+			return true;
+		}
+		long start = System.nanoTime();
+		if (CredentialsCache.get().getCredentials(target.credentialsId) == null) {
+			stages.add(new Stage("Credentials", System.nanoTime() - start, null,
+					"no credentials with id " + target.credentialsId));
+			return false;
+		}
+		CredentialsCache.get().getAuthorizationHeader(target.credentialsId);
+		stages.add(new Stage("Credentials", System.nanoTime() - start, null, null));
+		return true;
+	}
+
+	/**
+	 * @return the SSL context used for the server, or null if it could not
+	 * 			be built
+	 */
+	private SSLContext buildSslContext() {
+		long start = System.nanoTime();
+		try {
+			SSLContext context = CredentialsCache.get().getSslContext(
+					target.credentialsId, target.ignoreUnverifiedSSL);
+			if (context == null) {
+				context = SSLContext.getDefault();
+			} else {
+				stages.add(new Stage("SSL context", System.nanoTime() - start, null, null));
+			}
+			return context;
+		} catch (GeneralSecurityException e) {
+			fail("SSL context", System.nanoTime() - start, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Looks up the host, connects and, for https, performs the TLS
+	 * handshake on a socket that is closed afterwards.
+	 */
+	private boolean connect(URL url, BitbucketClientRegistry.ClientKey key, SSLContext context) {
+		long start = System.nanoTime();
+		InetAddress address;
+		try {
+			address = InetAddress.getByName(key.host);
+		} catch (IOException e) {
+			fail("DNS lookup", System.nanoTime() - start, e);
+			return false;
+		}
+		stages.add(new Stage("DNS lookup", System.nanoTime() - start,
+				address.getHostAddress(), null));
+
+		start = System.nanoTime();
+		Socket socket = new Socket();
+		try {
+			try {
+				socket.connect(new InetSocketAddress(address, key.port),
+						(int) TimeUnit.SECONDS.toMillis(target.timeouts.connectTimeout));
+			} catch (IOException e) {
+				fail("TCP connect", System.nanoTime() - start, e);
+				return false;
+			}
+			stages.add(new Stage("TCP connect", System.nanoTime() - start, null, null));
+
+			if (key.scheme.equals("https")) {
+				start = System.nanoTime();
+				try {
+					socket.setSoTimeout(
+							(int) TimeUnit.SECONDS.toMillis(target.timeouts.readTimeout));
+					SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(
+							socket, url.getHost(), key.port, true);
+					ssl.startHandshake();
+					stages.add(new Stage("TLS handshake", System.nanoTime() - start,
+							ssl.getSession().getProtocol(), null));
+					ssl.close();
+				} catch (IOException e) {
+					fail("TLS handshake", System.nanoTime() - start, e);
+					return false;
+				}
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed with the TLS socket
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a HEAD request for the base URL through the configured
+	 * transport, leaving the connection in the pool. Any answer will do,
+	 * except for rejected credentials.
+	 */
+	private boolean request(String name) {
+		HttpHead request = new HttpHead(target.serverUrl);
+		Header authorization = CredentialsCache.get().getAuthorizationHeader(
+				target.credentialsId);
+		if (authorization != null) {
+			request.addHeader(authorization);
+		}
+		request.setConfig(target.timeouts.toRequestConfig());
+		long start = System.nanoTime();
+		try {
+			HttpResponse response = BitbucketClientRegistry.get().getTransport()
+					.execute(target.toNotification(), request);
+			try {
+				int statusCode = response.getStatusLine().getStatusCode();
+				EntityUtils.consume(response.getEntity());
+				long nanos = System.nanoTime() - start;
+				if (statusCode == 401 || statusCode == 403) {
+					stages.add(new Stage(name, nanos, null,
+							"credentials rejected, HTTP " + statusCode));
+					return false;
+				}
+				stages.add(new Stage(name, nanos, "HTTP " + statusCode, null));
+				return true;
+			} finally {
+				if (response instanceof Closeable) {
+					((Closeable) response).close();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(name, System.nanoTime() - start, e);
+			return false;
+		} catch (IOException e) {
+			fail(name, System.nanoTime() - start, e);
+			return false;
+		}
+	}
+
+	private void fail(String name, long nanos, Exception e) {
+		stages.add(new Stage(name, nanos, null, e.toString()));
+	}
+
+	/**
+	 * A Bitbucket server as notified with the global settings or by a job.
+	 */
+	static final class Target {
+
+		final String serverUrl;
+		final String credentialsId;
+		final boolean ignoreUnverifiedSSL;
+		final HttpTimeouts timeouts;
+		/** the named server whose pooled client to use, may be null. */
+		final BitbucketServer definition;
+
+		Target(String serverUrl, String credentialsId, boolean ignoreUnverifiedSSL,
+				HttpTimeouts timeouts) {
+			this(serverUrl, credentialsId, ignoreUnverifiedSSL, timeouts, null);
+		}
+
+		Target(String serverUrl, String credentialsId, boolean ignoreUnverifiedSSL,
+				HttpTimeouts timeouts, BitbucketServer definition) {
+			this.serverUrl = serverUrl;
+			this.credentialsId = StringUtils.defaultString(credentialsId);
+			this.ignoreUnverifiedSSL = ignoreUnverifiedSSL;
+			this.timeouts = timeouts;
+			this.definition = definition;
+		}
+
+		/**
+		 * @return a notification describing the connection, for the
+		 * 			transport to pick the pooled client. It is never sent.
+		 */
+		BitbucketNotification toNotification() {
+			return new BitbucketNotification(
+					serverUrl,
+					credentialsId,
+					ignoreUnverifiedSSL,
+					"",
+					"",
+					null,
+					BitbucketBuildState.INPROGRESS,
+					null,
+					timeouts,
+					new NotificationCallback(
+							new LogTaskListener(LOGGER, Level.FINE).getLogger()),
+					definition);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Target)) {
+				return false;
+			}
+			Target other = (Target) o;
+			return serverUrl.equals(other.serverUrl)
+					&& credentialsId.equals(other.credentialsId)
+					&& ignoreUnverifiedSSL == other.ignoreUnverifiedSSL
+					&& timeouts.connectionTtl == other.timeouts.connectionTtl
+					&& definition == other.definition;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = serverUrl.hashCode();
+			result = 31 * result + credentialsId.hashCode();
+			result = 31 * result + (ignoreUnverifiedSSL ? 1 : 0);
+			result = 31 * result + timeouts.connectionTtl;
+			return 31 * result + (definition != null ? definition.getName().hashCode() : 0);
+		}
+
+		@Override
+		public String toString() {
+			return serverUrl;
+		}
+	}
+
+	/**
+	 * The latency of one stage, and why it failed if it did.
+	 */
+	static final class Stage {
+
+		final String name;
+		final long nanos;
+		/** what the stage found, may be null. */
+		final String detail;
+		/** why the stage failed, null if it succeeded. */
+		final String failure;
+
+		Stage(String name, long nanos, String detail, String failure) {
+			this.name = name;
+			this.nanos = nanos;
+			this.detail = detail;
+			this.failure = failure;
+		}
+	}
+}
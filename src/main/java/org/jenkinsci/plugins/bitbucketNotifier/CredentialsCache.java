@@ -0,0 +1,241 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.CertificateCredentials;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+
+import javax.net.ssl.SSLContext;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the credentials used to notify Bitbucket and what is derived from
+ * them: the basic authentication header and the SSL context.
+ * <p>
+ * Looking up credentials scans all credentials visible to Jenkins, and
+ * building an SSL context reloads the key store. Both are done once per
+ * credentials id and SSL mode instead of once per notification. Sharing
+ * the SSL context also lets TLS sessions be resumed across connections.
+ * <p>
+ * Entries are dropped when the system credentials change, see
+ * {@link BitbucketNotifierLifecycle}, and expire after a while in case
+ * credentials come from a provider that does not report changes.
+ */
+final class CredentialsCache {
+
+	/** how long resolved credentials are kept at most. */
+	static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final CredentialsCache INSTANCE = new CredentialsCache();
+
+	private final ConcurrentMap<String, Resolved> credentials
+			= new ConcurrentHashMap<String, Resolved>();
+
+	private final ConcurrentMap<String, SSLContext> sslContexts
+			= new ConcurrentHashMap<String, SSLContext>();
+
+	private CredentialsCache() {
+	}
+
+	/**
+	 * @return the controller-wide cache
+	 */
+	static CredentialsCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param credentialsId	the id of the credentials, may be blank
+	 * @return				the credentials, or null if there are none with
+	 * 						the id
+	 */
+	Credentials getCredentials(String credentialsId) {
+		Resolved resolved = resolve(credentialsId);
+		return resolved != null ? resolved.credentials : null;
+	}
+
+	/**
+	 * @param credentialsId	the id of the credentials, may be blank
+	 * @return				the basic authentication header, or null if the
+	 * 						credentials are no username and password
+	 */
+	Header getAuthorizationHeader(String credentialsId) {
+		Resolved resolved = resolve(credentialsId);
+		return resolved != null ? resolved.authorization : null;
+	}
+
+	/**
+	 * Returns the SSL socket factory for the given credentials and SSL mode,
+	 * or null if the default one will do.
+	 *
+	 * @param credentialsId			the id of the credentials, may be blank
+	 * @param ignoreUnverifiedSSL	whether to trust any SSL certificate
+	 * @return						the shared socket factory or null
+	 */
+	SSLConnectionSocketFactory getSocketFactory(
+			String credentialsId,
+			boolean ignoreUnverifiedSSL) throws GeneralSecurityException {
+
+		SSLContext context = getSslContext(credentialsId, ignoreUnverifiedSSL);
+		if (context == null) {
+			return null;
+		}
+		return new SSLConnectionSocketFactory(context,
+				ignoreUnverifiedSSL
+						? SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER
+						: null);
+	}
+
+	/**
+	 * Returns the SSL strategy of the non-blocking client for the given
+	 * credentials and SSL mode, or null if the default one will do.
+	 *
+	 * @param credentialsId			the id of the credentials, may be blank
+	 * @param ignoreUnverifiedSSL	whether to trust any SSL certificate
+	 * @return						the SSL strategy or null
+	 */
+	SSLIOSessionStrategy getSslStrategy(
+			String credentialsId,
+			boolean ignoreUnverifiedSSL) throws GeneralSecurityException {
+
+		SSLContext context = getSslContext(credentialsId, ignoreUnverifiedSSL);
+		if (context == null) {
+			return null;
+		}
+		return new SSLIOSessionStrategy(context,
+				ignoreUnverifiedSSL
+						? SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER
+						: SSLIOSessionStrategy.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+	}
+
+	/**
+	 * @return	the shared SSL context for the given credentials and SSL mode,
+	 * 			or null if the default one will do
+	 */
+	SSLContext getSslContext(
+			String credentialsId,
+			boolean ignoreUnverifiedSSL) throws GeneralSecurityException {
+
+		Credentials resolved = getCredentials(credentialsId);
+		if (!ignoreUnverifiedSSL && !(resolved instanceof CertificateCredentials)) {
+			return null;
+		}
+		String key = StringUtils.defaultString(credentialsId) + '\n' + ignoreUnverifiedSSL;
+		SSLContext context = sslContexts.get(key);
+		if (context == null) {
+			// add unsafe trust manager to avoid thrown
+			// SSLPeerUnverifiedException
+			context = buildSslContext(ignoreUnverifiedSSL, resolved);
+			SSLContext existing = sslContexts.putIfAbsent(key, context);
+			if (existing != null) {
+				context = existing;
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * Drops everything cached, to pick up changed credentials.
+	 */
+	void invalidate() {
+		credentials.clear();
+		sslContexts.clear();
+	}
+
+	private Resolved resolve(String credentialsId) {
+		if (StringUtils.isBlank(credentialsId)) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		Resolved resolved = credentials.get(credentialsId);
+		if (resolved == null || now - resolved.created > MAX_AGE_MILLIS) {
+			long start = System.nanoTime();
+			Credentials found = CredentialsMatchers.firstOrNull(
+					CredentialsProvider.lookupCredentials(
+							Credentials.class,
+							Jenkins.getInstance(),
+							ACL.SYSTEM),
+					CredentialsMatchers.withId(credentialsId));
+			if (resolved != null && resolved.credentials != found) {
+				// the credentials changed without us being told
+				sslContexts.clear();
+			}
+			resolved = new Resolved(found, now);
+			credentials.put(credentialsId, resolved);
+			NotificationMetrics.get().recordCredentialsLookup(System.nanoTime() - start);
+		} else {
+			NotificationMetrics.get().recordCredentialsCacheHit();
+		}
+		return resolved;
+	}
+
+	/**
+	 * Helper in place to allow us to define out HttpClient SSL context
+	 *
+	 * @param ignoreUnverifiedSSL
+	 * @param credentials
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	private static SSLContext buildSslContext(boolean ignoreUnverifiedSSL, Credentials credentials) throws GeneralSecurityException {
+
+		SSLContextBuilder customContext = SSLContexts.custom();
+		if (credentials instanceof CertificateCredentials) {
+			customContext  = customContext.loadKeyMaterial(((CertificateCredentials) credentials).getKeyStore(),((CertificateCredentials) credentials).getPassword().getPlainText().toCharArray());
+		}
+		if (ignoreUnverifiedSSL) {
+			TrustStrategy easyStrategy = new TrustStrategy() {
+				public boolean isTrusted(X509Certificate[] chain, String authType)
+						throws CertificateException {
+					return true;
+				}
+			};
+			customContext = customContext
+					.loadTrustMaterial(null, easyStrategy);
+		}
+		return customContext.useTLS().build();
+	}
+
+	/**
+	 * Credentials resolved from their id, possibly none.
+	 */
+	private static final class Resolved {
+
+		final Credentials credentials;
+		final Header authorization;
+		final long created;
+
+		Resolved(Credentials credentials, long created) {
+			this.credentials = credentials;
+			this.created = created;
+			if (credentials instanceof UsernamePasswordCredentials) {
+				UsernamePasswordCredentials usernamePassword
+						= (UsernamePasswordCredentials) credentials;
+				this.authorization = BasicScheme.authenticate(
+						new org.apache.http.auth.UsernamePasswordCredentials(
+								usernamePassword.getUsername(),
+								usernamePassword.getPassword().getPlainText()),
+						"UTF-8",
+						false);
+			} else {
+				this.authorization = null;
+			}
+		}
+	}
+}
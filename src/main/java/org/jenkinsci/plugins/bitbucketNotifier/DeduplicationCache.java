@@ -0,0 +1,261 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the statuses Bitbucket recently accepted, so that an exact
+ * repeat, as sent by rebuilds and replays, can be skipped.
+ * <p>
+ * Bitbucket keeps one status per commit and build key, so the cache keeps
+ * one entry per server, commit and build key: a 64 bit hash of those and a
+ * 64 bit hash of the payload. A notification is unchanged if its payload
+ * hash matches the entry for its key. Sending a different status for the
+ * key replaces the entry, so an older status sent again afterwards is not
+ * mistaken for a repeat.
+ * <p>
+ * Entries expire after a configurable time and live in a fixed size,
+ * set-associative table of primitive arrays, 20 bytes per entry. When a
+ * set is full, the entry closest to expiry is replaced.
+ */
+final class DeduplicationCache {
+
+	/** by default statuses are remembered for an hour, 0 disables the cache. */
+	static final int DEFAULT_TTL_MINUTES = 60;
+
+	/** number of entries, about 5 MB of heap. */
+	static final int DEFAULT_CAPACITY = 1 << 18;
+
+	/** number of entries per set. */
+	static final int WAYS = 8;
+
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int capacity;
+
+	/** base of the expiry times, which are stored in seconds. */
+	private final long epochMillis = System.currentTimeMillis();
+
+	/** hash of server, commit and build key per entry, 0 if unused. */
+	private long[] keys;
+
+	/** hash of the payload per entry. */
+	private long[] payloads;
+
+	/** expiry per entry, in seconds since {@link #epochMillis}. */
+	private int[] expiries;
+
+	private volatile long ttlMillis;
+
+	DeduplicationCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity	number of entries, rounded up to a power of two and
+	 * 					at least one set
+	 */
+	DeduplicationCache(int capacity) {
+		int size = WAYS;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.capacity = size;
+		configure(DEFAULT_TTL_MINUTES);
+	}
+
+	/**
+	 * @param ttlMinutes	how long statuses are remembered, 0 to disable
+	 * 						the cache and release its memory
+	 */
+	synchronized void configure(int ttlMinutes) {
+		ttlMillis = TimeUnit.MINUTES.toMillis(Math.max(0, ttlMinutes));
+		if (ttlMillis == 0) {
+			keys = null;
+			payloads = null;
+			expiries = null;
+		} else if (keys == null) {
+			// only allocated while enabled, so a disabled cache costs nothing
+			keys = new long[capacity];
+			payloads = new long[capacity];
+			expiries = new int[capacity];
+		}
+	}
+
+	boolean isEnabled() {
+		return ttlMillis > 0;
+	}
+
+	/**
+	 * @param notification	a notification about to be sent
+	 * @return				true if Bitbucket accepted the same status for the
+	 * 						same commit and key recently
+	 */
+	boolean isUnchanged(BitbucketNotification notification) {
+		if (!isEnabled()) {
+			return false;
+		}
+		return isUnchanged(keyHash(notification), payloadHash(notification),
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Records that Bitbucket accepted the notification.
+	 */
+	void onAccepted(BitbucketNotification notification) {
+		if (isEnabled()) {
+			put(keyHash(notification), payloadHash(notification),
+					System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Forgets the status of the notification's commit and key, as it is
+	 * unknown whether Bitbucket still has it, e.g. because sending another
+	 * status for them failed.
+	 */
+	void forget(BitbucketNotification notification) {
+		if (isEnabled()) {
+			remove(keyHash(notification));
+		}
+	}
+
+	synchronized boolean isUnchanged(long key, long payload, long now) {
+		if (keys == null) {
+			return false;
+		}
+		int i = find(key);
+		return i >= 0 && payloads[i] == payload && expiries[i] > seconds(now);
+	}
+
+	synchronized void put(long key, long payload, long now) {
+		if (keys == null) {
+			return;
+		}
+		int i = find(key);
+		if (i < 0) {
+			i = victim(key, seconds(now));
+			keys[i] = key;
+		}
+		payloads[i] = payload;
+		expiries[i] = seconds(now + ttlMillis) + 1;
+	}
+
+	synchronized void remove(long key) {
+		if (keys == null) {
+			return;
+		}
+		int i = find(key);
+		if (i >= 0) {
+			keys[i] = 0;
+		}
+	}
+
+	/**
+	 * @return the index of the entry for the key, or -1
+	 */
+	private int find(long key) {
+		int set = set(key);
+		for (int i = set; i < set + WAYS; i++) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the index of a free or expired entry in the key's set, or of
+	 * 			the entry closest to expiry
+	 */
+	private int victim(long key, int nowSeconds) {
+		int set = set(key);
+		int victim = set;
+		for (int i = set; i < set + WAYS; i++) {
+			if (keys[i] == 0 || expiries[i] <= nowSeconds) {
+				return i;
+			}
+			if (expiries[i] < expiries[victim]) {
+				victim = i;
+			}
+		}
+		return victim;
+	}
+
+	private int set(long key) {
+		int h = (int) (key ^ (key >>> 32));
+		return (h & (capacity - 1)) & ~(WAYS - 1);
+	}
+
+	private int seconds(long millis) {
+		return (int) Math.min(Integer.MAX_VALUE,
+				TimeUnit.MILLISECONDS.toSeconds(millis - epochMillis));
+	}
+
+	/**
+	 * @return a hash of the server url, commit and build key, never 0
+	 */
+	static long keyHash(BitbucketNotification notification) {
+		long h = FNV_OFFSET;
+		h = hash(h, notification.serverUrl);
+		h = hash(h, notification.commitSha1);
+		h = hash(h, notification.key);
+		h = mix(h);
+		return h != 0 ? h : 1;
+	}
+
+	/**
+	 * @return a hash of the payload, computed once per notification
+	 */
+	static long payloadHash(BitbucketNotification notification) {
+		long h = notification.payloadHash;
+		if (h == 0) {
+			h = FNV_OFFSET;
+			try {
+				InputStream in = notification.entity.getContent();
+				try {
+					byte[] buffer = new byte[512];
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						for (int i = 0; i < n; i++) {
+							h = (h ^ (buffer[i] & 0xff)) * FNV_PRIME;
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// an unreadable payload never matches
+				h = notification.sequence;
+			}
+			h = mix(h);
+			if (h == 0) {
+				h = 1;
+			}
+			notification.payloadHash = h;
+		}
+		return h;
+	}
+
+	static long hash(long h, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			h = (h ^ value.charAt(i)) * FNV_PRIME;
+		}
+		// separator, so "ab","c" and "a","bc" differ
+		return (h ^ 0xffff) * FNV_PRIME;
+	}
+
+	/**
+	 * Spreads the bits of an FNV hash, whose low bits pick the set.
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
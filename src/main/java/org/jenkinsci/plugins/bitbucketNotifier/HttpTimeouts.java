@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.client.config.RequestConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timeouts applied to requests to Bitbucket, in seconds, and how long a
+ * pooled connection may live.
+ */
+final class HttpTimeouts {
+
+	static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	static final int DEFAULT_READ_TIMEOUT = 30;
+	static final int DEFAULT_POOL_LEASE_TIMEOUT = 10;
+	static final int DEFAULT_CONNECTION_TTL = 300;
+
+	static final HttpTimeouts DEFAULT = new HttpTimeouts(
+			DEFAULT_CONNECT_TIMEOUT,
+			DEFAULT_READ_TIMEOUT,
+			DEFAULT_POOL_LEASE_TIMEOUT,
+			DEFAULT_CONNECTION_TTL);
+
+	/** how long to wait for a connection to be established. */
+	final int connectTimeout;
+
+	/** how long to wait for data once connected. */
+	final int readTimeout;
+
+	/** how long to wait for a connection from the pool. */
+	final int poolLeaseTimeout;
+
+	/** how long a connection is kept in the pool at most. */
+	final int connectionTtl;
+
+	HttpTimeouts(
+			int connectTimeout,
+			int readTimeout,
+			int poolLeaseTimeout,
+			int connectionTtl) {
+		this.connectTimeout = positiveOr(connectTimeout, DEFAULT_CONNECT_TIMEOUT);
+		this.readTimeout = positiveOr(readTimeout, DEFAULT_READ_TIMEOUT);
+		this.poolLeaseTimeout = positiveOr(poolLeaseTimeout, DEFAULT_POOL_LEASE_TIMEOUT);
+		this.connectionTtl = positiveOr(connectionTtl, DEFAULT_CONNECTION_TTL);
+	}
+
+	/**
+	 * @return these timeouts with each positive value given replacing the
+	 * 			respective one, as a job's settings override the global ones
+	 */
+	HttpTimeouts overriddenBy(
+			int connectTimeout,
+			int readTimeout,
+			int poolLeaseTimeout,
+			int connectionTtl) {
+		return new HttpTimeouts(
+				positiveOr(connectTimeout, this.connectTimeout),
+				positiveOr(readTimeout, this.readTimeout),
+				positiveOr(poolLeaseTimeout, this.poolLeaseTimeout),
+				positiveOr(connectionTtl, this.connectionTtl));
+	}
+
+	/**
+	 * @return the request configuration applying these timeouts
+	 */
+	RequestConfig toRequestConfig() {
+		return RequestConfig.custom()
+				.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout))
+				.setSocketTimeout((int) TimeUnit.SECONDS.toMillis(readTimeout))
+				.setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(poolLeaseTimeout))
+				.build();
+	}
+
+	private static int positiveOr(int value, int fallback) {
+		return value > 0 ? value : fallback;
+	}
+}
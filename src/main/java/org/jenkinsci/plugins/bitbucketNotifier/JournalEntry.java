@@ -0,0 +1,150 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.Date;
+
+/**
+ * One entry of the {@link NotificationJournal}: an attempt to send a
+ * notification, or the reason it was not sent.
+ */
+public final class JournalEntry {
+
+	/**
+	 * What became of a notification.
+	 */
+	public enum Outcome {
+		ACCEPTED("Accepted"),
+		REJECTED("Rejected"),
+		TIMED_OUT("Timed out"),
+		ERROR("Error"),
+		SKIPPED("Skipped"),
+		NOT_SENT("Not sent");
+
+		private final String displayName;
+
+		Outcome(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+
+		/**
+		 * @return the outcome reported by the result
+		 */
+		static Outcome of(NotificationResult result) {
+			// a skipped result indicates success as well
+			if (result.skipped) {
+				return SKIPPED;
+			}
+			if (result.indicatesSuccess) {
+				return ACCEPTED;
+			}
+			if (result.timedOut) {
+				return TIMED_OUT;
+			}
+			return result.statusCode > 0 ? REJECTED : NOT_SENT;
+		}
+	}
+
+	private final long timestamp;
+	private final String server;
+	private final String commit;
+	private final String key;
+	private final String job;
+	private final BitbucketBuildState state;
+	private final Outcome outcome;
+	private final int statusCode;
+	private final int latencyMicros;
+
+	JournalEntry(
+			long timestamp,
+			String server,
+			String commit,
+			String key,
+			String job,
+			BitbucketBuildState state,
+			Outcome outcome,
+			int statusCode,
+			int latencyMicros) {
+		this.timestamp = timestamp;
+		this.server = server;
+		this.commit = commit;
+		this.key = key;
+		this.job = job;
+		this.state = state;
+		this.outcome = outcome;
+		this.statusCode = statusCode;
+		this.latencyMicros = latencyMicros;
+	}
+
+	public Date getTime() {
+		return new Date(timestamp);
+	}
+
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the base url of the Bitbucket server
+	 */
+	public String getServer() {
+		return server;
+	}
+
+	public String getCommit() {
+		return commit;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the full name of the job, or null if unknown
+	 */
+	public String getJob() {
+		return job;
+	}
+
+	public BitbucketBuildState getState() {
+		return state;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * @return the HTTP status code Bitbucket answered with, or 0
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the time the request took, or -1 if none was sent
+	 */
+	public int getLatencyMicros() {
+		return latencyMicros;
+	}
+
+	/**
+	 * @return the time the request took in milliseconds, for display, or
+	 * 			an empty string if none was sent
+	 */
+	public String getLatency() {
+		if (latencyMicros < 0) {
+			return "";
+		}
+		return String.format("%.1f ms", latencyMicros / 1000.0);
+	}
+
+	@Override
+	public String toString() {
+		return getTime() + " " + state + " " + commit + " (" + key + ") to "
+				+ server + ": " + outcome.getDisplayName()
+				+ (statusCode > 0 ? " HTTP " + statusCode : "");
+	}
+}
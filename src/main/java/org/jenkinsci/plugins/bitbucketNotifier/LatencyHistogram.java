@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with fixed bucket bounds, suitable for
+ * recording on the notification hot path.
+ */
+final class LatencyHistogram {
+
+	/** upper bounds of the buckets in milliseconds, the last one is open. */
+	static final long[] BOUNDS_MILLIS = {
+			1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS_MILLIS.length];
+
+	static {
+		for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+			BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(BOUNDS_MILLIS[i]);
+		}
+	}
+
+	/** non-cumulative counts, one more than there are bounds. */
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	/**
+	 * @param nanos	the latency to record
+	 */
+	void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		sumNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return the cumulative counts of latencies up to each bound, the last
+	 * 			element being the total count
+	 */
+	long[] getCumulativeCounts() {
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += buckets.get(i);
+			counts[i] = total;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the sum of all latencies recorded, in nanoseconds
+	 */
+	long getSumNanos() {
+		return sumNanos.get();
+	}
+}
@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the newest notification sent per coalescing key, so an older
+ * notification that is still on its way is not allowed to overwrite the
+ * status a newer one already set.
+ * <p>
+ * Only the most recently used keys are remembered.
+ */
+final class LatestNotificationTracker {
+
+	/** maximum number of keys to remember. */
+	static final int MAX_KEYS = 10000;
+
+	private final Map<String, Long> latest
+			= new LinkedHashMap<String, Long>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_KEYS;
+		}
+	};
+
+	/**
+	 * Records the notification as the newest one for its key, unless a
+	 * newer one has been sent already.
+	 *
+	 * @param notification	the notification about to be sent
+	 * @return				false if a newer notification for the same key has
+	 * 						been sent and this one must be skipped
+	 */
+	synchronized boolean claim(BitbucketNotification notification) {
+		Long sent = latest.get(notification.coalescingKey);
+		if (sent != null && sent.longValue() > notification.sequence) {
+			return false;
+		}
+		latest.put(notification.coalescingKey, notification.sequence);
+		return true;
+	}
+}
@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+/**
+ * How the builds of a matrix (multi-configuration) job notify Bitbucket.
+ */
+public enum MatrixNotificationMode {
+
+	/**
+	 * each configuration notifies on its own, the matrix build does not
+	 * notify at all.
+	 */
+	INDIVIDUAL("Notify for each configuration"),
+
+	/**
+	 * only the matrix build notifies, when its configurations start and with
+	 * their combined result once they are all done.
+	 */
+	AGGREGATE("Notify once for the matrix build"),
+
+	/**
+	 * the matrix build notifies as in {@link #AGGREGATE}, the configurations
+	 * also notify of their result, each under its own build key, so a
+	 * failed configuration is not hidden by another one that succeeded.
+	 * All of them go through the queue of the asynchronous dispatcher, so
+	 * they are rate limited together and do not hold up the configurations.
+	 */
+	SHARED("Queue the results of the configurations");
+
+	private final String displayName;
+
+	MatrixNotificationMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
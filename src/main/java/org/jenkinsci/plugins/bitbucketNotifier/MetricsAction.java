@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+
+/**
+ * Serves the {@link NotificationMetrics} at
+ * <tt>/bitbucket-notifier/metrics</tt>, as JSON by default and in the
+ * Prometheus text format with <tt>?format=prometheus</tt> or when asked
+ * for plain text.
+ */
+@Extension
+public class MetricsAction implements RootAction {
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Bitbucket Notifier";
+	}
+
+	public String getUrlName() {
+		return "bitbucket-notifier";
+	}
+
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+		String format = req.getParameter("format");
+		String accept = req.getHeader("Accept");
+		if ("prometheus".equals(format)
+				|| (format == null && accept != null && accept.startsWith("text/plain"))) {
+			rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+			rsp.getWriter().write(NotificationMetrics.get().toPrometheus());
+		} else {
+			rsp.setContentType("application/json; charset=UTF-8");
+			rsp.getWriter().write(NotificationMetrics.get().toJson().toString(2));
+		}
+	}
+}
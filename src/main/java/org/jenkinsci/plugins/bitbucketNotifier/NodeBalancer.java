@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Spreads the requests to one Bitbucket Data Center server across its
+ * application nodes, following the {@link NodeSelection} of the server.
+ * <p>
+ * Health is tracked passively from the requests sent anyway: each node keeps
+ * its requests in flight, a moving average of its response times and its
+ * consecutive failures. A failure is an I/O error, a timeout or a
+ * <tt>5xx</tt> answer. Every consecutive failure makes a node less likely to
+ * be picked, and after {@link #FAILURE_THRESHOLD} of them it is left out for
+ * {@link #EJECTION_MILLIS}. Once that is over, the node is sent a single
+ * trial request ahead of the others; if it succeeds, the node is back at
+ * full weight, otherwise it is left out again. If all nodes are left out,
+ * the one that was left out first is tried anyway.
+ * <p>
+ * A response time measured a while ago counts less and less, halving every
+ * {@link #LATENCY_HALF_LIFE_MILLIS}, so a node that was slow once is tried
+ * again eventually instead of keeping its old average for good.
+ */
+public final class NodeBalancer {
+
+	/** consecutive failures after which a node is left out. */
+	static final int FAILURE_THRESHOLD = 3;
+
+	/** how long a failing node is left out. */
+	static final long EJECTION_MILLIS = 30000;
+
+	/** weight of a new response time in the moving average. */
+	static final double LATENCY_DECAY = 0.3;
+
+	/** age after which a response time counts half. */
+	static final long LATENCY_HALF_LIFE_MILLIS = 10000;
+
+	private final String serverName;
+
+	private final NodeSelection selection;
+
+	private final List<Node> nodes;
+
+	/** rotates the node ties are broken in favor of. */
+	private int next;
+
+	/**
+	 * @param serverName	the name of the server, for display
+	 * @param baseUrl		the base url of the server
+	 * @param nodeUrls		the urls of the nodes, see {@link #toNodeUrl}
+	 * @param selection		how to pick a node
+	 */
+	NodeBalancer(String serverName, String baseUrl, List<String> nodeUrls,
+			NodeSelection selection) {
+		this.serverName = serverName;
+		this.selection = selection != null ? selection : NodeSelection.LEAST_OUTSTANDING;
+		List<Node> list = new ArrayList<Node>(nodeUrls.size());
+		for (String nodeUrl : nodeUrls) {
+			list.add(new Node(this, toNodeUrl(baseUrl, nodeUrl)));
+		}
+		this.nodes = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * A node given by scheme, host and port only takes the path of the base
+	 * url, so the REST API is found at the same place on every node.
+	 *
+	 * @return the base url of the server on the node
+	 */
+	static String toNodeUrl(String baseUrl, String nodeUrl) {
+		String url = nodeUrl.trim();
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		try {
+			if (new URL(url).getPath().length() == 0) {
+				return url + new URL(baseUrl).getPath();
+			}
+		} catch (MalformedURLException e) {
+			// used as given, requests to it fail
+		}
+		return url;
+	}
+
+	public String getServerName() {
+		return serverName;
+	}
+
+	public NodeSelection getSelection() {
+		return selection;
+	}
+
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Picks the node to send a request to. The request must be followed by
+	 * exactly one call to {@link #release(Node, long, boolean)}.
+	 *
+	 * @return the node, counted as having one more request in flight
+	 */
+	synchronized Node acquire() {
+		long now = System.currentTimeMillis();
+		int size = nodes.size();
+		int start = next;
+		next = (next + 1) % size;
+		Node best = null;
+		double bestScore = Double.MAX_VALUE;
+		Node leastRecentlyEjected = null;
+		Node onTrial = null;
+		for (int i = 0; i < size; i++) {
+			Node node = nodes.get((start + i) % size);
+			if (node.ejectedUntil > now) {
+				if (leastRecentlyEjected == null
+						|| node.ejectedUntil < leastRecentlyEjected.ejectedUntil) {
+					leastRecentlyEjected = node;
+				}
+				continue;
+			}
+			if (node.consecutiveFailures >= FAILURE_THRESHOLD) {
+				// left out until now: one trial request at a time decides
+				if (node.outstanding == 0) {
+					best = node;
+					break;
+				}
+				onTrial = node;
+				continue;
+			}
+			double score = score(node, now);
+			if (score < bestScore) {
+				best = node;
+				bestScore = score;
+			}
+		}
+		if (best == null) {
+			best = leastRecentlyEjected != null ? leastRecentlyEjected : onTrial;
+		}
+		best.outstanding++;
+		return best;
+	}
+
+	/**
+	 * Accounts for a request to the node that is done.
+	 *
+	 * @param node		the node returned by {@link #acquire()}
+	 * @param nanos		how long the request took
+	 * @param failed	whether the node failed to answer properly
+	 */
+	synchronized void release(Node node, long nanos, boolean failed) {
+		long now = System.currentTimeMillis();
+		node.outstanding--;
+		double previous = latency(node, now);
+		node.latencyNanos = previous == 0 ? nanos
+				: (long) (LATENCY_DECAY * nanos + (1 - LATENCY_DECAY) * previous);
+		node.latencySampled = now;
+		if (failed) {
+			node.failures++;
+			if (++node.consecutiveFailures >= FAILURE_THRESHOLD) {
+				node.ejectedUntil = System.currentTimeMillis() + EJECTION_MILLIS;
+			}
+		} else {
+			node.consecutiveFailures = 0;
+			node.ejectedUntil = 0;
+		}
+	}
+
+	/**
+	 * @return the cost of sending the next request to the node, lower is
+	 * 			better. Must be called while holding the monitor.
+	 */
+	private double score(Node node, long now) {
+		double load = node.outstanding + 1;
+		if (selection == NodeSelection.LATENCY_WEIGHTED) {
+			// nodes without a response time yet are tried first
+			load *= latency(node, now);
+		}
+		return load * (1 + node.consecutiveFailures);
+	}
+
+	/**
+	 * @return the average response time of the node, counting less the
+	 * 			longer ago it was measured
+	 */
+	private static double latency(Node node, long now) {
+		long age = Math.max(0, now - node.latencySampled);
+		return node.latencyNanos * Math.pow(0.5, (double) age / LATENCY_HALF_LIFE_MILLIS);
+	}
+
+	/**
+	 * One application node and what is known about its health.
+	 */
+	public static final class Node {
+
+		private final NodeBalancer balancer;
+
+		final String url;
+
+		int outstanding;
+
+		/** moving average of the response times, 0 if none is known. */
+		long latencyNanos;
+
+		/** when the last response time was measured. */
+		long latencySampled;
+
+		int consecutiveFailures;
+
+		long failures;
+
+		long ejectedUntil;
+
+		Node(NodeBalancer balancer, String url) {
+			this.balancer = balancer;
+			this.url = url;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public int getOutstanding() {
+			synchronized (balancer) {
+				return outstanding;
+			}
+		}
+
+		/**
+		 * @return the average response time for display, or an empty
+		 * 			string if none is known
+		 */
+		public String getLatency() {
+			synchronized (balancer) {
+				return latencyNanos == 0 ? "" : String.format("%.1f ms", latencyNanos / 1e6);
+			}
+		}
+
+		public int getConsecutiveFailures() {
+			synchronized (balancer) {
+				return consecutiveFailures;
+			}
+		}
+
+		public long getFailures() {
+			synchronized (balancer) {
+				return failures;
+			}
+		}
+
+		/**
+		 * @return until when the node is left out, or null if it is not
+		 */
+		public Date getEjectedUntil() {
+			synchronized (balancer) {
+				return ejectedUntil > System.currentTimeMillis()
+						? new Date(ejectedUntil) : null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return url;
+		}
+	}
+}
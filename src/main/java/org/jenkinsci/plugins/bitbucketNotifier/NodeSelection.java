@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+/**
+ * How a {@link NodeBalancer} picks the Bitbucket Data Center node to send a
+ * request to.
+ */
+public enum NodeSelection {
+
+	/** the node with the fewest requests in flight. */
+	LEAST_OUTSTANDING("Least outstanding requests"),
+
+	/**
+	 * the node with the lowest average response time, weighted by its
+	 * requests in flight.
+	 */
+	LATENCY_WEIGHTED("Latency-weighted");
+
+	private final String displayName;
+
+	NodeSelection(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
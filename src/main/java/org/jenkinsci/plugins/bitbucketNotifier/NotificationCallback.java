@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.model.Run;
+import hudson.util.LogTaskListener;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the outcome of a notification once it has been sent, which may
+ * happen on a different thread than the one that created it.
+ * <p>
+ * The default implementation reports to a build log. Queued notifications
+ * may be sent after the build is done and its log is closed, their outcome
+ * is then reported to the Jenkins log instead.
+ */
+class NotificationCallback {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(NotificationCallback.class.getName());
+
+	/** the logger to report the outcome to. */
+	private final PrintStream logger;
+
+	/** the build the logger writes the log of, or null. */
+	private final Run<?, ?> build;
+
+	/** reports to the Jenkins log once the build log is closed. */
+	private PrintStream closedBuildLogger;
+
+	NotificationCallback(final PrintStream logger) {
+		this(logger, null);
+	}
+
+	/**
+	 * @param logger	the log of the build
+	 * @param build		the build, to tell whether its log is still open
+	 */
+	NotificationCallback(final PrintStream logger, final Run<?, ?> build) {
+		this.logger = logger;
+		this.build = build;
+	}
+
+	/**
+	 * @return the logger to report to
+	 */
+	PrintStream getLogger() {
+		if (build == null || build.isLogUpdated()) {
+			return logger;
+		}
+		synchronized (this) {
+			if (closedBuildLogger == null) {
+				closedBuildLogger = new LogTaskListener(LOGGER, Level.INFO).getLogger();
+				closedBuildLogger.println("Notified Bitbucket of "
+						+ build.getFullDisplayName() + " after the build was done:");
+			}
+			return closedBuildLogger;
+		}
+	}
+
+	/**
+	 * Called once Bitbucket answered the notification.
+	 *
+	 * @param notification	the notification that was sent
+	 * @param result		the result of the notification
+	 */
+	void onResult(
+			final BitbucketNotification notification,
+			final NotificationResult result) {
+
+		PrintStream logger = getLogger();
+		if (result.skipped) {
+			logger.println(
+				"Skipped notifying Bitbucket for commit "
+						+ notification.commitSha1
+						+ " (" + result.message + ")");
+		} else if (result.indicatesSuccess) {
+			logger.println(
+				"Notified Bitbucket for commit with id "
+						+ notification.commitSha1);
+		} else {
+			logger.println(
+			"Failed to notify Bitbucket for commit "
+					+ notification.commitSha1
+					+ " (" + result.message + ")");
+		}
+	}
+
+	/**
+	 * Called if the notification failed but will be sent again.
+	 *
+	 * @param notification	the notification that failed
+	 * @param reason		why the notification failed
+	 * @param delayMillis	how long until it is sent again
+	 */
+	void onRetry(
+			final BitbucketNotification notification,
+			final String reason,
+			final long delayMillis) {
+
+		PrintStream logger = getLogger();
+		logger.println(
+			"Retrying notification for commit "
+					+ notification.commitSha1
+					+ " in " + delayMillis + " ms (" + reason + ")");
+	}
+
+	/**
+	 * Called if the notification could not be sent at all.
+	 *
+	 * @param commitSha1	the SHA1 of the commit to notify Bitbucket of
+	 * @param e				the exception that occurred
+	 */
+	void onException(final String commitSha1, final Exception e) {
+		PrintStream logger = getLogger();
+		if (e instanceof SSLPeerUnverifiedException) {
+    		logger.println("SSLPeerUnverifiedException caught while "
+				+ "notifying Bitbucket. Make sure your SSL certificate on "
+				+ "your Bitbucket server is valid or check the "
+				+ " 'Ignore unverifiable SSL certificate' checkbox in the "
+				+ "Bitbucket plugin configuration of this job.");
+		} else {
+			logger.println("Caught exception while notifying Bitbucket with id "
+				+ commitSha1);
+			e.printStackTrace(logger);
+		}
+	}
+}
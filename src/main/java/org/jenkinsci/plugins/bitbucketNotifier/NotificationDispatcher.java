@@ -0,0 +1,786 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide asynchronous dispatcher for Bitbucket notifications.
+ * <p>
+ * Notifications are put into a bounded {@link NotificationQueue} and sent by
+ * a pool of worker threads, so builds do not wait for Bitbucket to answer.
+ * The outcome is reported to the {@link NotificationCallback} of each
+ * notification once it is known.
+ * <p>
+ * Notifications for several commits of one build can also be sent in
+ * parallel while the build waits for them, see {@link #deliverAll(List)}.
+ * Either way, the number of concurrent requests per server is capped by a
+ * {@link ServerConcurrencyLimiter}. Workers and fan-out run on virtual
+ * threads if the JVM supports them, see {@link NotificationThreads}. The
+ * workers then only take notifications from the queue and send each on a
+ * virtual thread of its own, so the notifications in flight are bounded by
+ * the limits per server of the queue, not by the number of workers.
+ * <p>
+ * Pending notifications for the same server, commit and build key are
+ * coalesced, and a notification is never sent after a newer one for the
+ * same key, whether it was dispatched asynchronously or not.
+ * <p>
+ * Transient failures are retried according to a {@link RetryPolicy}, within
+ * a controller-wide {@link RetryBudget}. Queued notifications wait for
+ * their retry on a timer and go through the queue again, so no worker is
+ * tied up while waiting and a newer notification can still supersede them.
+ * <p>
+ * Requests per server and credentials are limited by a {@link RateLimiter},
+ * which adapts to the rate limits of Bitbucket. Workers wait for short
+ * throttling delays and put notifications back into the queue for longer
+ * ones; the build's thread waits in either case, up to a limit.
+ * <p>
+ * Statuses Bitbucket accepted are remembered for a while in a
+ * {@link DeduplicationCache}, and an exact repeat for the same commit and
+ * build key is skipped as unchanged instead of being sent again.
+ * <p>
+ * Each server is guarded by a {@link CircuitBreaker}. While it is open,
+ * notifications sent on the build's thread fail right away and queued
+ * notifications are deferred until the breaker lets a probe through.
+ * <p>
+ * Queued notifications can be sent in batches: a worker that takes a
+ * notification waits a short window for more notifications to the same
+ * server and sends them one after the other, reusing one persistent
+ * connection, instead of each worker opening its own. The outcome is still
+ * reported per notification.
+ * <p>
+ * If a {@link NotificationOutbox} is set, notifications are recorded there
+ * before they are dispatched and acknowledged once their outcome is known,
+ * so those still outstanding can be sent again after a restart.
+ * <p>
+ * If a {@link NotificationJournal} is set, every attempt and every
+ * notification that is not sent is recorded there, for looking up later.
+ */
+final class NotificationDispatcher {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(NotificationDispatcher.class.getName());
+
+	static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	static final int DEFAULT_WORKER_THREADS = 4;
+
+	/** by default notifications are not batched. */
+	static final int DEFAULT_BATCH_WINDOW_MILLIS = 0;
+	static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+	/** how long shutdown waits for queued notifications to be sent. */
+	static final long SHUTDOWN_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	/** how long an idle worker waits before checking for reconfiguration. */
+	private static final long POLL_SECONDS = 1;
+
+	/**
+	 * maximum number of platform threads sending notifications of several
+	 * commits in parallel. If all are busy, the build's own thread sends
+	 * them. Virtual threads are not limited.
+	 */
+	static final int MAX_FAN_OUT_THREADS = 32;
+
+	/** longest throttling delay a worker waits for instead of deferring. */
+	static final long MAX_THROTTLE_SLEEP_MILLIS = 1000;
+
+	/** longest throttling delay the build's thread waits for. */
+	static final long MAX_THROTTLE_WAIT_MILLIS = 60000;
+
+	private static final NotificationDispatcher INSTANCE
+			= new NotificationDispatcher();
+
+	private final NotificationQueue queue = new NotificationQueue(
+			DEFAULT_QUEUE_CAPACITY, QueueFullPolicy.BLOCK);
+
+	private final LatestNotificationTracker tracker
+			= new LatestNotificationTracker();
+
+	private final ServerConcurrencyLimiter limiter
+			= new ServerConcurrencyLimiter();
+
+	private final CircuitBreakers circuitBreakers = new CircuitBreakers();
+
+	private final RateLimiters rateLimiters = new RateLimiters();
+
+	private final DeduplicationCache deduplicationCache = new DeduplicationCache();
+
+	private final RetryPolicy retryPolicy = new RetryPolicy();
+
+	private final RetryBudget retryBudget = new RetryBudget();
+
+	private final ScheduledExecutorService retryScheduler
+			= new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Bitbucket notifier retry timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** queued notifications waiting for their retry. */
+	private final Set<BitbucketNotification> pendingRetries
+			= Collections.synchronizedSet(new HashSet<BitbucketNotification>());
+
+	private final ExecutorService fanOutExecutor = NotificationThreads.newExecutor(
+			"Bitbucket notifier fan-out #", MAX_FAN_OUT_THREADS);
+
+	private final ThreadFactory workerThreads
+			= NotificationThreads.newThreadFactory("Bitbucket notifier worker #");
+
+	/** how long a worker waits to fill a batch, 0 to send one at a time. */
+	private volatile int batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	/** records notifications until they are completed, null if disabled. */
+	private volatile NotificationOutbox outbox;
+
+	/** records what became of notifications, null if disabled. */
+	private volatile NotificationJournal journal;
+
+	/** number of workers that should be running. */
+	private int targetWorkers = DEFAULT_WORKER_THREADS;
+
+	/** number of workers currently running. */
+	private int activeWorkers;
+
+	private boolean shutdown;
+
+	private NotificationDispatcher() {
+	}
+
+	/**
+	 * @return the controller-wide dispatcher
+	 */
+	static NotificationDispatcher get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Applies the global configuration. Takes effect for queued and future
+	 * notifications.
+	 *
+	 * @param queueCapacity	maximum number of queued notifications
+	 * @param workerThreads	number of threads sending notifications
+	 * @param policy		what to do if the queue is full
+	 * @param maxConcurrentRequestsPerServer
+	 * 						maximum number of concurrent requests per server
+	 * @param maxRetries	how often a failed notification is retried
+	 */
+	void configure(
+			int queueCapacity,
+			int workerThreads,
+			QueueFullPolicy policy,
+			int maxConcurrentRequestsPerServer,
+			int maxRetries) {
+		retryPolicy.setMaxRetries(maxRetries);
+		queue.configure(queueCapacity,
+				policy != null ? policy : QueueFullPolicy.BLOCK);
+		queue.setMaxPerLane(maxConcurrentRequestsPerServer);
+		limiter.setMaxConcurrentRequests(maxConcurrentRequestsPerServer);
+		BitbucketClientRegistry.get().setMaxConnectionsPerRoute(
+				maxConcurrentRequestsPerServer);
+		synchronized (this) {
+			targetWorkers = Math.max(1, workerThreads);
+			if (!BitbucketServers.get().isEmpty()) {
+				// a server using all the workers it may use leaves one for the others
+				targetWorkers = Math.max(targetWorkers, 1 + BitbucketServers.get()
+						.getMaxConcurrentRequests(maxConcurrentRequestsPerServer));
+			}
+			if (activeWorkers > 0) {
+				startWorkers();
+			}
+		}
+	}
+
+	/**
+	 * Configures batching of queued notifications per server.
+	 *
+	 * @param windowMillis	how long to wait for more notifications to the
+	 * 						same server, 0 to disable batching
+	 * @param maxSize		maximum number of notifications in a batch
+	 */
+	void configureBatching(int windowMillis, int maxSize) {
+		batchWindowMillis = Math.max(0, windowMillis);
+		maxBatchSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * @param outbox	the outbox to record notifications in, or null to
+	 * 					keep them in memory only
+	 */
+	void setOutbox(NotificationOutbox outbox) {
+		this.outbox = outbox;
+	}
+
+	/**
+	 * @param journal	the journal to record the outcome of notifications
+	 * 					in, or null to not keep a journal
+	 */
+	void setJournal(NotificationJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Queues the notifications left in the outbox by a previous run of
+	 * Jenkins. Their outcome is written to the Jenkins log.
+	 */
+	void replayOutbox() {
+		NotificationOutbox current = outbox;
+		if (current == null) {
+			return;
+		}
+		try {
+			List<BitbucketNotification> outstanding = current.recover(
+					new NotificationCallback(new LogTaskListener(LOGGER, Level.INFO).getLogger()));
+			if (!outstanding.isEmpty()) {
+				LOGGER.info("Sending " + outstanding.size()
+						+ " Bitbucket notifications left over from before the restart");
+			}
+			for (BitbucketNotification notification : outstanding) {
+				submit(notification);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read the notification outbox", e);
+		}
+	}
+
+	/**
+	 * Queues a notification for sending. It may replace a pending older
+	 * notification for the same key. Depending on the queue full policy this
+	 * may also block, or drop this or another notification. The callback of
+	 * a notification that will not be sent is told so.
+	 *
+	 * @param notification	the notification to send
+	 */
+	void submit(BitbucketNotification notification) throws InterruptedException {
+		record(notification);
+		synchronized (this) {
+			if (!shutdown) {
+				startWorkers();
+			}
+		}
+		if (isShutdown()) {
+			deliver(notification);
+			return;
+		}
+
+		NotificationQueue.Rejected rejected = queue.offer(notification);
+		if (rejected != null) {
+			complete(rejected.notification, rejected.result);
+		}
+	}
+
+	/**
+	 * Sends the notifications in parallel and waits until all of them are
+	 * done. The last one is sent on the calling thread, as are others if all
+	 * fan-out threads are busy.
+	 *
+	 * @param notifications	the notifications to send
+	 */
+	void deliverAll(List<BitbucketNotification> notifications)
+			throws InterruptedException {
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(notifications.size());
+		for (int i = 0; i < notifications.size() - 1; i++) {
+			final BitbucketNotification notification = notifications.get(i);
+			try {
+				futures.add(fanOutExecutor.submit(new Runnable() {
+					public void run() {
+						deliver(notification);
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				deliver(notification);
+			}
+		}
+		if (!notifications.isEmpty()) {
+			deliver(notifications.get(notifications.size() - 1));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Failed to notify Bitbucket", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @return the number of notifications waiting to be sent
+	 */
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the circuit breakers of all servers notified so far
+	 */
+	CircuitBreakers getCircuitBreakers() {
+		return circuitBreakers;
+	}
+
+	/**
+	 * @return the rate limiters of all servers and credentials used so far
+	 */
+	RateLimiters getRateLimiters() {
+		return rateLimiters;
+	}
+
+	/**
+	 * @return the cache of statuses recently accepted by Bitbucket
+	 */
+	DeduplicationCache getDeduplicationCache() {
+		return deduplicationCache;
+	}
+
+	/**
+	 * @return the number of notifications waiting for a retry
+	 */
+	int getPendingRetries() {
+		return pendingRetries.size();
+	}
+
+	/**
+	 * Stops accepting notifications, gives queued notifications a short
+	 * time to be sent and reports the remaining ones as failed.
+	 */
+	void shutdown() {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MILLIS;
+		try {
+			while ((queue.size() > 0 || !pendingRetries.isEmpty())
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			shutdown = true;
+		}
+		fanOutExecutor.shutdown();
+		retryScheduler.shutdownNow();
+		List<BitbucketNotification> remaining = queue.drain();
+		synchronized (pendingRetries) {
+			remaining.addAll(pendingRetries);
+			pendingRetries.clear();
+		}
+		for (BitbucketNotification notification : remaining) {
+			// not acknowledged, so it is sent again after the restart
+			NotificationResult result
+					= NotificationResult.newFailure("not sent, Jenkins is shutting down");
+			journal(notification, result, -1);
+			notification.callback.onResult(notification, result);
+		}
+		NotificationOutbox current = outbox;
+		if (current != null) {
+			current.close();
+		}
+		NotificationJournal currentJournal = journal;
+		if (currentJournal != null) {
+			currentJournal.close();
+		}
+	}
+
+	private synchronized boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Starts workers until the target number is reached. Must be called
+	 * while holding the monitor.
+	 */
+	private void startWorkers() {
+		while (activeWorkers < targetWorkers) {
+			// the worker waits for the monitor before it counts itself out
+			workerThreads.newThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).start();
+			activeWorkers++;
+		}
+	}
+
+	private void work() {
+		boolean stopped = false;
+		try {
+			while (!shouldStop()) {
+				BitbucketNotification notification
+						= queue.poll(POLL_SECONDS, TimeUnit.SECONDS);
+				if (notification == null) {
+					continue;
+				}
+				if (NotificationThreads.isVirtual()) {
+					// the lane taken bounds the notifications in flight
+					final BitbucketNotification taken = notification;
+					workerThreads.newThread(new Runnable() {
+						public void run() {
+							sendTaken(taken);
+						}
+					}).start();
+				} else {
+					sendTaken(notification);
+				}
+			}
+			// shouldStop has counted the worker out
+			stopped = true;
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.FINE, "Bitbucket notifier worker interrupted", e);
+		} finally {
+			if (!stopped) {
+				// the next submission starts a replacement
+				synchronized (this) {
+					activeWorkers--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a notification taken from the queue, together with the batch it
+	 * starts if batching is enabled, and releases its lane.
+	 */
+	private void sendTaken(BitbucketNotification notification) {
+		try {
+			int window = batchWindowMillis;
+			if (window > 0 && maxBatchSize > 1) {
+				List<BitbucketNotification> batch = queue.pollBatch(
+						notification, maxBatchSize, window, TimeUnit.MILLISECONDS);
+				NotificationMetrics.get().recordBatch(notification.serverUrl, batch.size());
+				for (int i = 0; i < batch.size(); i++) {
+					sendQueued(batch.get(i));
+				}
+			} else {
+				sendQueued(notification);
+			}
+		} finally {
+			queue.releaseLane(notification);
+		}
+	}
+
+	/**
+	 * Sends a notification taken from the queue, scheduling a retry if
+	 * needed.
+	 */
+	private void sendQueued(BitbucketNotification notification) {
+		try {
+			long delay = send(notification, true);
+			if (delay >= 0) {
+				scheduleRetry(notification, delay);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING,
+					"Failed to report outcome of " + notification, e);
+		} finally {
+			queue.complete(notification);
+		}
+	}
+
+	/**
+	 * Tells a worker whether to exit, accounting for it if so.
+	 */
+	private synchronized boolean shouldStop() {
+		if (shutdown || activeWorkers > targetWorkers) {
+			activeWorkers--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sends the notification on the calling thread and reports the outcome,
+	 * unless a newer notification for the same key has already been sent.
+	 * Transient failures are retried on the calling thread as well.
+	 */
+	void deliver(BitbucketNotification notification) {
+		record(notification);
+		long delay;
+		while ((delay = send(notification, false)) >= 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				notification.callback.onException(notification.commitSha1, e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts the notification back into the queue once the delay has passed,
+	 * even if the queue is full.
+	 */
+	private void scheduleRetry(final BitbucketNotification notification, long delay) {
+		pendingRetries.add(notification);
+		try {
+			retryScheduler.schedule(new Runnable() {
+				public void run() {
+					if (!pendingRetries.remove(notification)) {
+						return;
+					}
+					if (isShutdown()) {
+						// not acknowledged, so it is sent again after the restart
+						NotificationResult result = NotificationResult.newFailure(
+								"not retried, Jenkins is shutting down");
+						journal(notification, result, -1);
+						notification.callback.onResult(notification, result);
+						return;
+					}
+					// the timer thread must not wait for room in the queue
+					NotificationQueue.Rejected rejected = queue.requeue(notification);
+					if (rejected != null) {
+						complete(rejected.notification, rejected.result);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			if (pendingRetries.remove(notification)) {
+				NotificationResult result
+						= NotificationResult.newFailure("not retried, Jenkins is shutting down");
+				journal(notification, result, -1);
+				notification.callback.onResult(notification, result);
+			}
+		}
+	}
+
+	/**
+	 * Makes one attempt to send the notification. The outcome is reported
+	 * unless the attempt failed transiently and may be retried.
+	 *
+	 * @param mayDefer	whether the notification may wait for an open circuit
+	 * 					breaker instead of failing right away
+	 * @return	the delay before the notification should be sent again, or
+	 * 			-1 if it is done
+	 */
+	private long send(BitbucketNotification notification, boolean mayDefer) {
+		if (!tracker.claim(notification)) {
+			complete(notification, NotificationResult.newSkipped(
+					"superseded by a newer notification that was already sent"));
+			return -1;
+		}
+		if (deduplicationCache.isUnchanged(notification)) {
+			NotificationMetrics.get().recordUnchanged(notification.serverUrl);
+			complete(notification, NotificationResult.newSkipped(
+					"unchanged, Bitbucket already has this status"));
+			return -1;
+		}
+		RateLimiter rateLimiter = rateLimiters.get(notification);
+		long throttle;
+		while ((throttle = rateLimiter.tryAcquire()) > 0) {
+			if (mayDefer && throttle > MAX_THROTTLE_SLEEP_MILLIS) {
+				// not a failed attempt, so it does not count as one
+				notification.callback.onRetry(notification, rateLimiter.toString(), throttle);
+				return throttle;
+			}
+			if (!mayDefer && throttle > MAX_THROTTLE_WAIT_MILLIS) {
+				complete(notification, NotificationResult.newFailure(
+						"not sent, rate limited by Bitbucket for another "
+						+ TimeUnit.MILLISECONDS.toSeconds(throttle) + " s"));
+				return -1;
+			}
+			try {
+				Thread.sleep(throttle);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				notification.callback.onException(notification.commitSha1, e);
+				return -1;
+			}
+		}
+		CircuitBreaker breaker = null;
+		if (circuitBreakers.isEnabled()) {
+			breaker = circuitBreakers.get(notification.serverUrl);
+			long wait = breaker.tryAcquire();
+			if (wait > 0) {
+				// nothing goes to Bitbucket, so the token is not spent
+				rateLimiter.release();
+				// not an attempt either, but deferred no more often than retried
+				if (mayDefer && retryPolicy.canRetry(++notification.deferrals)) {
+					NotificationMetrics.get().recordRetry(notification.serverUrl);
+					notification.callback.onRetry(notification, breaker.toString(), wait);
+					return wait;
+				}
+				complete(notification,
+						NotificationResult.newFailure("not sent, " + breaker));
+				return -1;
+			}
+		}
+		if (notification.attempts++ == 0) {
+			retryBudget.deposit();
+		}
+		// whatever Bitbucket had is unknown until it accepts this one
+		deduplicationCache.forget(notification);
+		NotificationResult result;
+		long start = 0;
+		try {
+			Semaphore permit = limiter.acquire(notification);
+			try {
+				start = System.nanoTime();
+				result = BitbucketNotifier.notifyBitbucket(notification);
+			} finally {
+				permit.release();
+			}
+		} catch (InterruptedException e) {
+			if (breaker != null) {
+				breaker.onNeutral();
+			}
+			Thread.currentThread().interrupt();
+			notification.callback.onException(notification.commitSha1, e);
+			return -1;
+		} catch (Exception e) {
+			journal(notification, JournalEntry.Outcome.ERROR, 0,
+					start != 0 ? System.nanoTime() - start : -1);
+			if (breaker != null) {
+				if (e instanceof IOException) {
+					recordFailure(breaker, notification);
+				} else {
+					breaker.onNeutral();
+				}
+			}
+			if (RetryPolicy.isRetryable(e)) {
+				long delay = retryDelay(notification);
+				if (delay >= 0) {
+					NotificationMetrics.get().recordRetry(notification.serverUrl);
+					notification.callback.onRetry(notification, e.toString(), delay);
+					return delay;
+				}
+			}
+			notification.callback.onException(notification.commitSha1, e);
+			acknowledge(notification);
+			return -1;
+		}
+		journal(notification, result, System.nanoTime() - start);
+		if (breaker != null) {
+			if (result.timedOut || result.statusCode >= 500) {
+				recordFailure(breaker, notification);
+			} else if (breaker.onSuccess()) {
+				LOGGER.info("Bitbucket at " + breaker.getServerUrl()
+						+ " is responding again, circuit breaker closed");
+				notification.callback.getLogger().println("Bitbucket at "
+						+ breaker.getServerUrl() + " is responding again, "
+						+ "circuit breaker closed");
+			}
+		}
+		if (RetryPolicy.isRetryable(result)) {
+			long delay = retryDelay(notification);
+			if (delay >= 0) {
+				NotificationMetrics.get().recordRetry(notification.serverUrl);
+				notification.callback.onRetry(notification,
+						result.timedOut ? result.message : "HTTP " + result.statusCode,
+						delay);
+				return delay;
+			}
+		}
+		if (result.indicatesSuccess) {
+			deduplicationCache.onAccepted(notification);
+		}
+		report(notification, result);
+		return -1;
+	}
+
+	/**
+	 * Records the outcome of a notification that was not sent in the
+	 * journal, reports it and removes the notification from the outbox.
+	 */
+	private void complete(BitbucketNotification notification, NotificationResult result) {
+		journal(notification, result, -1);
+		report(notification, result);
+	}
+
+	/**
+	 * Reports the outcome and removes the notification from the outbox.
+	 */
+	private void report(BitbucketNotification notification, NotificationResult result) {
+		notification.callback.onResult(notification, result);
+		acknowledge(notification);
+	}
+
+	private void journal(BitbucketNotification notification,
+			NotificationResult result, long latencyNanos) {
+		journal(notification, JournalEntry.Outcome.of(result),
+				result.statusCode, latencyNanos);
+	}
+
+	private void journal(BitbucketNotification notification,
+			JournalEntry.Outcome outcome, int statusCode, long latencyNanos) {
+		NotificationJournal current = journal;
+		if (current != null) {
+			try {
+				current.record(notification, outcome, statusCode, latencyNanos);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to record " + notification + " in the journal", e);
+			}
+		}
+	}
+
+	private void record(BitbucketNotification notification) {
+		NotificationOutbox current = outbox;
+		if (current != null && notification.outboxId == 0) {
+			try {
+				current.record(notification);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to record " + notification + " in the outbox", e);
+			}
+		}
+	}
+
+	private void acknowledge(BitbucketNotification notification) {
+		NotificationOutbox current = outbox;
+		if (current != null && notification.outboxId != 0) {
+			try {
+				current.acknowledge(notification);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING,
+						"Failed to acknowledge " + notification + " in the outbox", e);
+			}
+		}
+	}
+
+	private void recordFailure(CircuitBreaker breaker, BitbucketNotification notification) {
+		if (breaker.onFailure(circuitBreakers.getFailureThreshold(),
+				circuitBreakers.getOpenMillis())) {
+			String message = "Bitbucket at " + breaker.getServerUrl()
+					+ " failed " + breaker.getConsecutiveFailures()
+					+ " times in a row, circuit breaker opened for "
+					+ TimeUnit.MILLISECONDS.toSeconds(circuitBreakers.getOpenMillis())
+					+ " s";
+			LOGGER.warning(message);
+			notification.callback.getLogger().println(message);
+		}
+	}
+
+	/**
+	 * @return	the delay before the next attempt, or -1 if the notification
+	 * 			must not be retried
+	 */
+	private long retryDelay(BitbucketNotification notification) {
+		if (!retryPolicy.canRetry(notification.attempts)
+				|| !retryBudget.tryWithdraw()) {
+			return -1;
+		}
+		return retryPolicy.delayMillis(notification.attempts);
+	}
+}
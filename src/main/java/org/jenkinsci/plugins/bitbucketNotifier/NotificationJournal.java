@@ -0,0 +1,640 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide journal of the notifications sent to Bitbucket, to find
+ * out what Bitbucket was told about a commit or by a job and what it
+ * answered.
+ * <p>
+ * Each attempt to send a notification, and each notification that was not
+ * sent, is appended as a fixed-width record of {@value #RECORD_BYTES} bytes
+ * to a memory-mapped segment file. The strings a record refers to, such as
+ * the build key, are written once per segment to a companion file. When a
+ * segment is full, a new one is started and the oldest segments beyond the
+ * configured number are deleted.
+ * <p>
+ * Lookups read the mapped records from newest to oldest without copying
+ * them onto the heap. Each segment has a Bloom filter of the commits and
+ * jobs in it, rebuilt from the records when the journal is opened, so that
+ * segments without a match are skipped.
+ */
+final class NotificationJournal {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(NotificationJournal.class.getName());
+
+	static final String DIRECTORY_NAME = "journal";
+
+	/** by default 16 segments are kept, about 1 million records. */
+	static final int DEFAULT_SEGMENTS = 16;
+
+	/** 4 MB of records per segment. */
+	static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 16;
+
+	static final int RECORD_BYTES = 64;
+
+	private static final String RECORDS_SUFFIX = ".records";
+	private static final String STRINGS_SUFFIX = ".strings";
+
+	/** strings are cut to this length, keeping string references small. */
+	private static final int MAX_STRING_LENGTH = 1024;
+
+	/** bits of the Bloom filter of a segment, 64 KB. */
+	private static final int BLOOM_BITS = 1 << 19;
+	private static final int BLOOM_HASHES = 3;
+
+	// layout of a record, 0 if a field is unused
+
+	/** time of the entry in milliseconds, written last, 0 if unused. */
+	private static final int TIME = 0;
+	/** the commit as up to 20 bytes of hexadecimal digits. */
+	private static final int SHA = 8;
+	/** number of digits of the commit, or {@link #NOT_HEX}. */
+	private static final int SHA_DIGITS = 28;
+	private static final int STATE = 29;
+	private static final int OUTCOME = 30;
+	private static final int STATUS_CODE = 32;
+	/** in microseconds, -1 if no request was sent. */
+	private static final int LATENCY = 36;
+	// references to strings, -1 for null
+	private static final int SERVER = 40;
+	private static final int JOB = 44;
+	private static final int KEY = 48;
+	/** the commit if it is not hexadecimal. */
+	private static final int SHA_STRING = 52;
+	// hashes for the Bloom filter
+	private static final int JOB_HASH = 56;
+	private static final int SHA_HASH = 60;
+
+	private static final int MAX_SHA_DIGITS = 40;
+	private static final byte NOT_HEX = -1;
+
+	private static NotificationJournal instance;
+
+	private final File directory;
+
+	private final int recordsPerSegment;
+
+	private int maxSegments = DEFAULT_SEGMENTS;
+
+	/** oldest first, null until opened. */
+	private List<Segment> segments;
+
+	NotificationJournal(File directory) {
+		this(directory, DEFAULT_RECORDS_PER_SEGMENT);
+	}
+
+	NotificationJournal(File directory, int recordsPerSegment) {
+		this.directory = directory;
+		this.recordsPerSegment = recordsPerSegment;
+	}
+
+	/**
+	 * @return the journal under the Jenkins home directory
+	 */
+	static synchronized NotificationJournal get() {
+		if (instance == null) {
+			instance = new NotificationJournal(new File(
+					new File(Jenkins.getInstance().getRootDir(), "bitbucket-notifier"),
+					DIRECTORY_NAME));
+		}
+		return instance;
+	}
+
+	/**
+	 * @param maxSegments	number of segments to keep, the oldest ones
+	 * 						beyond it are deleted
+	 */
+	synchronized void setMaxSegments(int maxSegments) {
+		this.maxSegments = Math.max(1, maxSegments);
+		if (segments != null) {
+			trim();
+		}
+	}
+
+	/**
+	 * Appends an entry for the notification.
+	 *
+	 * @param notification	the notification
+	 * @param outcome		what became of it
+	 * @param statusCode	the HTTP status code Bitbucket answered with, or 0
+	 * @param latencyNanos	the time the request took, or -1 if none was sent
+	 */
+	synchronized void record(
+			BitbucketNotification notification,
+			JournalEntry.Outcome outcome,
+			int statusCode,
+			long latencyNanos) throws IOException {
+		open();
+		Segment segment = segments.get(segments.size() - 1);
+		if (segment.count == segment.capacity) {
+			segment.seal();
+			segment = Segment.open(directory, segment.number + 1, recordsPerSegment);
+			segments.add(segment);
+			trim();
+		}
+		segment.append(
+				System.currentTimeMillis(),
+				notification,
+				outcome,
+				statusCode,
+				latencyNanos < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE,
+						TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+	}
+
+	/**
+	 * Looks up the newest entries for a commit, a job or both.
+	 *
+	 * @param commit	the commit, or a prefix of at least one hexadecimal
+	 * 					digit, or blank for all commits
+	 * @param job		the full name of the job, or blank for all jobs
+	 * @param limit		maximum number of entries returned
+	 * @return			the matching entries, newest first
+	 */
+	List<JournalEntry> find(String commit, String job, int limit) throws IOException {
+		List<Segment> snapshot;
+		int[] counts;
+		synchronized (this) {
+			open();
+			// records and Bloom filters up to these counts are visible
+			// without holding the lock
+			snapshot = new ArrayList<Segment>(segments);
+			counts = new int[snapshot.size()];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = snapshot.get(i).count;
+			}
+		}
+		Query query = new Query(commit, job);
+		List<JournalEntry> entries = new ArrayList<JournalEntry>();
+		for (int i = snapshot.size() - 1; i >= 0 && entries.size() < limit; i--) {
+			Segment segment = snapshot.get(i);
+			if (query.excludes(segment)) {
+				continue;
+			}
+			Strings strings = new Strings(segment.stringsFile);
+			try {
+				for (int r = counts[i] - 1; r >= 0 && entries.size() < limit; r--) {
+					int position = r * RECORD_BYTES;
+					if (query.matches(segment.records, position, strings)) {
+						entries.add(segment.read(position, strings));
+					}
+				}
+			} catch (FileNotFoundException e) {
+				// trimmed since the snapshot was taken, and so are the older ones
+				break;
+			} finally {
+				strings.close();
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Flushes the current segment. The journal is opened again on next use.
+	 */
+	synchronized void close() {
+		if (segments != null) {
+			segments.get(segments.size() - 1).seal();
+			segments = null;
+		}
+	}
+
+	/**
+	 * Maps the existing segments on first use, or starts the first one.
+	 */
+	private void open() throws IOException {
+		if (segments != null) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		List<Long> numbers = new ArrayList<Long>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(RECORDS_SUFFIX)) {
+					try {
+						numbers.add(Long.parseLong(name.substring(
+								0, name.length() - RECORDS_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// not a segment
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		List<Segment> opened = new ArrayList<Segment>();
+		for (long number : numbers) {
+			try {
+				opened.add(Segment.open(directory, number, recordsPerSegment));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to open journal segment "
+						+ number + " in " + directory, e);
+			}
+		}
+		if (opened.isEmpty()) {
+			opened.add(Segment.open(directory, 1, recordsPerSegment));
+		}
+		// only the newest segment is written to
+		for (int i = 0; i < opened.size() - 1; i++) {
+			opened.get(i).seal();
+		}
+		segments = opened;
+		trim();
+	}
+
+	private void trim() {
+		while (segments.size() > maxSegments) {
+			// lookups still reading it keep their mapping
+			segments.remove(0).delete();
+		}
+	}
+
+	/**
+	 * @return a hash of the string, 0 for null
+	 */
+	static int hash(String value) {
+		if (value == null) {
+			return 0;
+		}
+		return (int) DeduplicationCache.mix(
+				DeduplicationCache.hash(DeduplicationCache.FNV_OFFSET, value));
+	}
+
+	/**
+	 * @return the commit in lower case, or null if it is blank
+	 */
+	static String normalize(String commit) {
+		return StringUtils.isBlank(commit) ? null : commit.trim().toLowerCase();
+	}
+
+	/**
+	 * @return the number of hexadecimal digits of the normalized commit, or
+	 * 			{@link #NOT_HEX} if it cannot be stored as bytes
+	 */
+	static byte hexDigits(String sha) {
+		if (sha.length() > MAX_SHA_DIGITS) {
+			return NOT_HEX;
+		}
+		for (int i = 0; i < sha.length(); i++) {
+			if (Character.digit(sha.charAt(i), 16) < 0) {
+				return NOT_HEX;
+			}
+		}
+		return (byte) sha.length();
+	}
+
+	private static int nibble(ByteBuffer records, int position, int digit) {
+		int b = records.get(position + SHA + digit / 2);
+		return (digit % 2 == 0 ? b >> 4 : b) & 0xf;
+	}
+
+	/**
+	 * A segment: a file of records, mapped into memory, and a file of the
+	 * strings they refer to.
+	 */
+	private static final class Segment {
+
+		final long number;
+
+		final File recordsFile;
+
+		final File stringsFile;
+
+		final MappedByteBuffer records;
+
+		/** maximum number of records. */
+		final int capacity;
+
+		/** number of records, guarded by the journal. */
+		int count;
+
+		/** commits and jobs of the records, guarded by the journal. */
+		final long[] bloom = new long[BLOOM_BITS / 64];
+
+		/** the strings file while records are appended, null once sealed. */
+		private FileChannel strings;
+
+		/** offset of the strings written so far, while appending. */
+		private Map<String, Integer> stringOffsets;
+
+		private Segment(long number, File recordsFile, File stringsFile,
+				MappedByteBuffer records) {
+			this.number = number;
+			this.recordsFile = recordsFile;
+			this.stringsFile = stringsFile;
+			this.records = records;
+			this.capacity = records.capacity() / RECORD_BYTES;
+		}
+
+		/**
+		 * Maps the segment, creating it if needed, and reads its records.
+		 */
+		static Segment open(File directory, long number, int recordsPerSegment)
+				throws IOException {
+			String name = String.format("%010d", number);
+			File recordsFile = new File(directory, name + RECORDS_SUFFIX);
+			File stringsFile = new File(directory, name + STRINGS_SUFFIX);
+			RandomAccessFile file = new RandomAccessFile(recordsFile, "rw");
+			MappedByteBuffer records;
+			try {
+				// the mapping stays valid after the file is closed
+				long size = Math.max(file.length(),
+						(long) recordsPerSegment * RECORD_BYTES);
+				records = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, size - size % RECORD_BYTES);
+			} finally {
+				file.close();
+			}
+			Segment segment = new Segment(number, recordsFile, stringsFile, records);
+			segment.recover();
+			segment.strings = new RandomAccessFile(stringsFile, "rw").getChannel();
+			segment.stringOffsets = new HashMap<String, Integer>();
+			return segment;
+		}
+
+		/**
+		 * Counts the records, which are written in order, and rebuilds the
+		 * Bloom filter from them.
+		 */
+		private void recover() {
+			int low = 0;
+			int high = capacity;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (records.getLong(mid * RECORD_BYTES + TIME) != 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			count = low;
+			for (int i = 0; i < count; i++) {
+				int position = i * RECORD_BYTES;
+				addToBloom(records.getInt(position + SHA_HASH));
+				addToBloom(records.getInt(position + JOB_HASH));
+			}
+		}
+
+		void append(
+				long time,
+				BitbucketNotification notification,
+				JournalEntry.Outcome outcome,
+				int statusCode,
+				int latencyMicros) throws IOException {
+			int position = count * RECORD_BYTES;
+			String sha = normalize(notification.commitSha1);
+			if (sha == null) {
+				sha = "";
+			}
+			byte digits = hexDigits(sha);
+			if (digits == NOT_HEX) {
+				records.putInt(position + SHA_STRING, string(sha));
+			} else {
+				for (int i = 0; i < MAX_SHA_DIGITS; i += 2) {
+					int high = i < digits ? Character.digit(sha.charAt(i), 16) : 0;
+					int low = i + 1 < digits ? Character.digit(sha.charAt(i + 1), 16) : 0;
+					records.put(position + SHA + i / 2, (byte) (high << 4 | low));
+				}
+				records.putInt(position + SHA_STRING, -1);
+			}
+			records.put(position + SHA_DIGITS, digits);
+			records.put(position + STATE, (byte) notification.state.ordinal());
+			records.put(position + OUTCOME, (byte) outcome.ordinal());
+			records.putShort(position + STATUS_CODE, (short) statusCode);
+			records.putInt(position + LATENCY, latencyMicros);
+			records.putInt(position + SERVER, string(notification.serverUrl));
+			records.putInt(position + JOB, string(notification.job));
+			records.putInt(position + KEY, string(notification.key));
+			int shaHash = hash(sha);
+			int jobHash = hash(notification.job);
+			records.putInt(position + SHA_HASH, shaHash);
+			records.putInt(position + JOB_HASH, jobHash);
+			// last, so a record is complete once its time is set
+			records.putLong(position + TIME, time);
+			addToBloom(shaHash);
+			addToBloom(jobHash);
+			count++;
+		}
+
+		JournalEntry read(int position, Strings strings) throws IOException {
+			byte digits = records.get(position + SHA_DIGITS);
+			String commit;
+			if (digits == NOT_HEX) {
+				commit = strings.get(records.getInt(position + SHA_STRING));
+			} else {
+				StringBuilder hex = new StringBuilder(digits);
+				for (int i = 0; i < digits; i++) {
+					hex.append(Character.forDigit(nibble(records, position, i), 16));
+				}
+				commit = hex.toString();
+			}
+			BitbucketBuildState[] states = BitbucketBuildState.values();
+			JournalEntry.Outcome[] outcomes = JournalEntry.Outcome.values();
+			return new JournalEntry(
+					records.getLong(position + TIME),
+					strings.get(records.getInt(position + SERVER)),
+					commit,
+					strings.get(records.getInt(position + KEY)),
+					strings.get(records.getInt(position + JOB)),
+					states[Math.min(records.get(position + STATE), states.length - 1)],
+					outcomes[Math.min(records.get(position + OUTCOME), outcomes.length - 1)],
+					records.getShort(position + STATUS_CODE) & 0xffff,
+					records.getInt(position + LATENCY));
+		}
+
+		/**
+		 * @return the offset of the string in the strings file, written
+		 * 			once per segment, or -1 for null
+		 */
+		private int string(String value) throws IOException {
+			if (value == null) {
+				return -1;
+			}
+			if (value.length() > MAX_STRING_LENGTH) {
+				value = value.substring(0, MAX_STRING_LENGTH);
+			}
+			Integer offset = stringOffsets.get(value);
+			if (offset == null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() + 2);
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeUTF(value);
+				out.close();
+				long size = strings.size();
+				strings.write(ByteBuffer.wrap(bytes.toByteArray()), size);
+				offset = (int) size;
+				stringOffsets.put(value, offset);
+			}
+			return offset;
+		}
+
+		private void addToBloom(int hash) {
+			long h = DeduplicationCache.mix(hash & 0xffffffffL);
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				int bit = (h1 + i * h2) & (BLOOM_BITS - 1);
+				bloom[bit >>> 6] |= 1L << bit;
+			}
+		}
+
+		/**
+		 * @return false if no record has a commit or job with the hash
+		 */
+		boolean mayContain(int hash) {
+			long h = DeduplicationCache.mix(hash & 0xffffffffL);
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				int bit = (h1 + i * h2) & (BLOOM_BITS - 1);
+				if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Flushes the records and stops appending to the segment.
+		 */
+		void seal() {
+			records.force();
+			if (strings != null) {
+				try {
+					strings.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to close " + stringsFile, e);
+				}
+				strings = null;
+				stringOffsets = null;
+			}
+		}
+
+		void delete() {
+			seal();
+			if (!recordsFile.delete() || !stringsFile.delete()) {
+				LOGGER.warning("Failed to delete journal segment " + recordsFile);
+			}
+		}
+	}
+
+	/**
+	 * Reads strings of a segment, opening its strings file on first use.
+	 */
+	private static final class Strings {
+
+		private final File file;
+
+		private RandomAccessFile in;
+
+		Strings(File file) {
+			this.file = file;
+		}
+
+		String get(int offset) throws IOException {
+			if (offset < 0) {
+				return null;
+			}
+			if (in == null) {
+				in = new RandomAccessFile(file, "r");
+			}
+			in.seek(offset);
+			byte[] bytes = new byte[2 + in.readUnsignedShort()];
+			in.seek(offset);
+			in.readFully(bytes);
+			return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+		}
+
+		void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Matches records by commit and job.
+	 */
+	private static final class Query {
+
+		/** the normalized commit, null for any. */
+		private final String sha;
+
+		private final byte shaDigits;
+
+		private final String job;
+
+		private final int shaHash;
+
+		private final int jobHash;
+
+		Query(String commit, String job) {
+			this.sha = normalize(commit);
+			this.shaDigits = sha != null ? hexDigits(sha) : 0;
+			this.job = StringUtils.isBlank(job) ? null : job.trim();
+			this.shaHash = hash(sha);
+			this.jobHash = hash(this.job);
+		}
+
+		/**
+		 * @return true if no record of the segment can match
+		 */
+		boolean excludes(Segment segment) {
+			// abbreviated commits match by prefix, which the filter cannot tell
+			boolean exactSha = sha != null
+					&& (shaDigits == NOT_HEX || shaDigits == MAX_SHA_DIGITS);
+			return (exactSha && !segment.mayContain(shaHash))
+					|| (job != null && !segment.mayContain(jobHash));
+		}
+
+		boolean matches(ByteBuffer records, int position, Strings strings)
+				throws IOException {
+			if (job != null && (records.getInt(position + JOB_HASH) != jobHash
+					|| !job.equals(strings.get(records.getInt(position + JOB))))) {
+				return false;
+			}
+			if (sha == null) {
+				return true;
+			}
+			byte digits = records.get(position + SHA_DIGITS);
+			if (shaDigits == NOT_HEX) {
+				return digits == NOT_HEX
+						&& records.getInt(position + SHA_HASH) == shaHash
+						&& sha.equals(strings.get(records.getInt(position + SHA_STRING)));
+			}
+			if (digits == NOT_HEX || digits < shaDigits) {
+				return false;
+			}
+			for (int i = 0; i < shaDigits; i++) {
+				if (nibble(records, position, i) != Character.digit(sha.charAt(i), 16)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
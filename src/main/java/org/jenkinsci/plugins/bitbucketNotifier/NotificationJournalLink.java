@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Looks up the {@link NotificationJournal} by commit and job, at
+ * <tt>/manage/bitbucket-notifier-journal</tt>.
+ */
+@Extension
+public class NotificationJournalLink extends ManagementLink {
+
+	/** maximum number of entries shown. */
+	static final int MAX_ENTRIES = 200;
+
+	@Override
+	public String getIconFileName() {
+		return "clipboard.png";
+	}
+
+	public String getDisplayName() {
+		return "Bitbucket Notification Journal";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Look up the build statuses sent to Bitbucket by commit or job.";
+	}
+
+	public String getUrlName() {
+		return "bitbucket-notifier-journal";
+	}
+
+	public int getMaxEntries() {
+		return MAX_ENTRIES;
+	}
+
+	/**
+	 * @param commit	the commit or a prefix of it, may be blank
+	 * @param job		the full name of the job, may be blank
+	 * @return			the newest matching entries, newest first
+	 */
+	public List<JournalEntry> find(String commit, String job) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return NotificationJournal.get().find(commit, job, MAX_ENTRIES);
+	}
+}
@@ -0,0 +1,397 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.http.pool.PoolStats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide metrics of Bitbucket notifications: latencies, outcomes
+ * per server, retries and timeouts, and the state of the queue and the
+ * connection pools.
+ * <p>
+ * Recording only touches atomic counters, so it can be done on the hot
+ * path. The metrics are served by {@link MetricsAction}.
+ */
+final class NotificationMetrics {
+
+	private static final NotificationMetrics INSTANCE = new NotificationMetrics();
+
+	private final ConcurrentMap<String, ServerMetrics> servers
+			= new ConcurrentHashMap<String, ServerMetrics>();
+
+	private final LatencyHistogram clientLookups = new LatencyHistogram();
+
+	private final LatencyHistogram credentialsLookups = new LatencyHistogram();
+
+	private final AtomicLong credentialsCacheHits = new AtomicLong();
+
+	private NotificationMetrics() {
+	}
+
+	/**
+	 * @return the controller-wide metrics
+	 */
+	static NotificationMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records a request Bitbucket answered.
+	 *
+	 * @param serverUrl		the base url of the server
+	 * @param statusCode	the HTTP status code of the answer
+	 * @param nanos			how long the request took
+	 */
+	void recordResponse(String serverUrl, int statusCode, long nanos) {
+		ServerMetrics server = server(serverUrl);
+		server.latency.record(nanos);
+		AtomicLong counter = server.statusCodes.get(statusCode);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = server.statusCodes.putIfAbsent(statusCode, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Records a request that timed out.
+	 */
+	void recordTimeout(String serverUrl, long nanos) {
+		ServerMetrics server = server(serverUrl);
+		server.latency.record(nanos);
+		server.timeouts.incrementAndGet();
+	}
+
+	/**
+	 * Records a request that failed with an exception.
+	 */
+	void recordError(String serverUrl, long nanos) {
+		ServerMetrics server = server(serverUrl);
+		server.latency.record(nanos);
+		server.errors.incrementAndGet();
+	}
+
+	/**
+	 * Records that a notification is going to be retried.
+	 */
+	void recordRetry(String serverUrl) {
+		server(serverUrl).retries.incrementAndGet();
+	}
+
+	/**
+	 * Records a batch of queued notifications sent to one server.
+	 *
+	 * @param size	the number of notifications in the batch
+	 */
+	void recordBatch(String serverUrl, int size) {
+		ServerMetrics server = server(serverUrl);
+		server.batches.incrementAndGet();
+		server.batchedNotifications.addAndGet(size);
+	}
+
+	/**
+	 * Records a notification skipped because Bitbucket already has its status.
+	 */
+	void recordUnchanged(String serverUrl) {
+		server(serverUrl).unchanged.incrementAndGet();
+	}
+
+	/**
+	 * Records how long it took to get the HTTP client for a request.
+	 */
+	void recordClientLookup(long nanos) {
+		clientLookups.record(nanos);
+	}
+
+	/**
+	 * Records how long it took to look up credentials that were not cached.
+	 */
+	void recordCredentialsLookup(long nanos) {
+		credentialsLookups.record(nanos);
+	}
+
+	/**
+	 * Records that credentials were found in the cache.
+	 */
+	void recordCredentialsCacheHit() {
+		credentialsCacheHits.incrementAndGet();
+	}
+
+	private ServerMetrics server(String serverUrl) {
+		String key = ServerConcurrencyLimiter.serverOf(serverUrl);
+		ServerMetrics server = servers.get(key);
+		if (server == null) {
+			ServerMetrics created = new ServerMetrics();
+			server = servers.putIfAbsent(key, created);
+			if (server == null) {
+				server = created;
+			}
+		}
+		return server;
+	}
+
+	/**
+	 * @return the metrics as JSON
+	 */
+	JSONObject toJson() {
+		JSONObject json = new JSONObject();
+		NotificationDispatcher dispatcher = NotificationDispatcher.get();
+		json.put("queueDepth", dispatcher.getQueueDepth());
+		json.put("pendingRetries", dispatcher.getPendingRetries());
+
+		JSONObject serversJson = new JSONObject();
+		for (Map.Entry<String, ServerMetrics> entry : sortedServers().entrySet()) {
+			ServerMetrics server = entry.getValue();
+			JSONObject serverJson = new JSONObject();
+			JSONObject statusCodes = new JSONObject();
+			for (Map.Entry<Integer, AtomicLong> code
+					: new TreeMap<Integer, AtomicLong>(server.statusCodes).entrySet()) {
+				statusCodes.put(String.valueOf(code.getKey()), code.getValue().get());
+			}
+			serverJson.put("statusCodes", statusCodes);
+			serverJson.put("timeouts", server.timeouts.get());
+			serverJson.put("errors", server.errors.get());
+			serverJson.put("retries", server.retries.get());
+			serverJson.put("batches", server.batches.get());
+			serverJson.put("batchedNotifications", server.batchedNotifications.get());
+			serverJson.put("unchanged", server.unchanged.get());
+			serverJson.put("latency", toJson(server.latency));
+			serversJson.put(entry.getKey(), serverJson);
+		}
+		json.put("servers", serversJson);
+
+		JSONObject pools = new JSONObject();
+		for (Map.Entry<String, PoolStats> entry
+				: BitbucketClientRegistry.get().getPoolStats().entrySet()) {
+			PoolStats stats = entry.getValue();
+			JSONObject pool = new JSONObject();
+			pool.put("leased", stats.getLeased());
+			pool.put("available", stats.getAvailable());
+			pool.put("pending", stats.getPending());
+			pool.put("max", stats.getMax());
+			pools.put(entry.getKey(), pool);
+		}
+		json.put("connectionPools", pools);
+
+		json.put("clientLookupLatency", toJson(clientLookups));
+		json.put("credentialsLookupLatency", toJson(credentialsLookups));
+		json.put("credentialsCacheHits", credentialsCacheHits.get());
+		return json;
+	}
+
+	private static JSONObject toJson(LatencyHistogram histogram) {
+		long[] counts = histogram.getCumulativeCounts();
+		JSONObject json = new JSONObject();
+		json.put("count", counts[counts.length - 1]);
+		json.put("sumMillis", histogram.getSumNanos() / 1000000.0);
+		JSONArray buckets = new JSONArray();
+		for (int i = 0; i < counts.length; i++) {
+			JSONObject bucket = new JSONObject();
+			bucket.put("le", i < LatencyHistogram.BOUNDS_MILLIS.length
+					? String.valueOf(LatencyHistogram.BOUNDS_MILLIS[i]) : "+Inf");
+			bucket.put("count", counts[i]);
+			buckets.add(bucket);
+		}
+		json.put("bucketsMillis", buckets);
+		return json;
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text exposition format
+	 */
+	String toPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		NotificationDispatcher dispatcher = NotificationDispatcher.get();
+		gauge(out, "bitbucket_notifier_queue_depth",
+				"Notifications waiting to be sent.", dispatcher.getQueueDepth());
+		gauge(out, "bitbucket_notifier_pending_retries",
+				"Notifications waiting for a retry.", dispatcher.getPendingRetries());
+
+		Map<String, ServerMetrics> sorted = sortedServers();
+		header(out, "bitbucket_notifier_request_duration_seconds",
+				"Duration of requests to Bitbucket.", "histogram");
+		for (Map.Entry<String, ServerMetrics> entry : sorted.entrySet()) {
+			histogram(out, "bitbucket_notifier_request_duration_seconds",
+					"server=\"" + escape(entry.getKey()) + "\"",
+					entry.getValue().latency);
+		}
+		header(out, "bitbucket_notifier_responses_total",
+				"Responses from Bitbucket by status code.", "counter");
+		for (Map.Entry<String, ServerMetrics> entry : sorted.entrySet()) {
+			for (Map.Entry<Integer, AtomicLong> code
+					: new TreeMap<Integer, AtomicLong>(entry.getValue().statusCodes).entrySet()) {
+				sample(out, "bitbucket_notifier_responses_total",
+						"server=\"" + escape(entry.getKey()) + "\",code=\"" + code.getKey() + "\"",
+						code.getValue().get());
+			}
+		}
+		for (ServerCounter counter : ServerCounter.values()) {
+			counters(out, sorted, counter);
+		}
+
+		header(out, "bitbucket_notifier_pool_connections",
+				"Pooled connections by state.", "gauge");
+		for (Map.Entry<String, PoolStats> entry
+				: BitbucketClientRegistry.get().getPoolStats().entrySet()) {
+			String pool = "pool=\"" + escape(entry.getKey()) + "\"";
+			PoolStats stats = entry.getValue();
+			sample(out, "bitbucket_notifier_pool_connections", pool + ",state=\"leased\"", stats.getLeased());
+			sample(out, "bitbucket_notifier_pool_connections", pool + ",state=\"available\"", stats.getAvailable());
+			sample(out, "bitbucket_notifier_pool_connections", pool + ",state=\"pending\"", stats.getPending());
+			sample(out, "bitbucket_notifier_pool_connections", pool + ",state=\"max\"", stats.getMax());
+		}
+
+		header(out, "bitbucket_notifier_client_lookup_duration_seconds",
+				"Time to get the HTTP client for a request.", "histogram");
+		histogram(out, "bitbucket_notifier_client_lookup_duration_seconds", null, clientLookups);
+		header(out, "bitbucket_notifier_credentials_lookup_duration_seconds",
+				"Time to look up credentials not in the cache.", "histogram");
+		histogram(out, "bitbucket_notifier_credentials_lookup_duration_seconds", null, credentialsLookups);
+		header(out, "bitbucket_notifier_credentials_cache_hits_total",
+				"Credentials found in the cache.", "counter");
+		sample(out, "bitbucket_notifier_credentials_cache_hits_total", null,
+				credentialsCacheHits.get());
+		return out.toString();
+	}
+
+	private Map<String, ServerMetrics> sortedServers() {
+		return new TreeMap<String, ServerMetrics>(servers);
+	}
+
+	private static void counters(
+			StringBuilder out,
+			Map<String, ServerMetrics> servers,
+			ServerCounter counter) {
+		header(out, counter.metric, counter.help, "counter");
+		for (Map.Entry<String, ServerMetrics> entry : servers.entrySet()) {
+			sample(out, counter.metric, "server=\"" + escape(entry.getKey()) + "\"",
+					counter.of(entry.getValue()).get());
+		}
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		header(out, name, help, "gauge");
+		sample(out, name, null, value);
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void histogram(
+			StringBuilder out,
+			String name,
+			String labels,
+			LatencyHistogram histogram) {
+		long[] counts = histogram.getCumulativeCounts();
+		String prefix = labels != null ? labels + "," : "";
+		for (int i = 0; i < counts.length; i++) {
+			String le = i < LatencyHistogram.BOUNDS_MILLIS.length
+					? String.valueOf(LatencyHistogram.BOUNDS_MILLIS[i] / 1000.0)
+					: "+Inf";
+			sample(out, name + "_bucket", prefix + "le=\"" + le + "\"", counts[i]);
+		}
+		out.append(name).append("_sum");
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(histogram.getSumNanos() / 1e9).append('\n');
+		sample(out, name + "_count", labels, counts[counts.length - 1]);
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, long value) {
+		out.append(name);
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Metrics of one Bitbucket server.
+	 */
+	private static final class ServerMetrics {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final ConcurrentMap<Integer, AtomicLong> statusCodes
+				= new ConcurrentHashMap<Integer, AtomicLong>();
+		final AtomicLong timeouts = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong batches = new AtomicLong();
+		final AtomicLong batchedNotifications = new AtomicLong();
+		final AtomicLong unchanged = new AtomicLong();
+	}
+
+	/**
+	 * The counters kept per server, in the order they are exported.
+	 */
+	private enum ServerCounter {
+
+		TIMEOUTS("bitbucket_notifier_timeouts_total",
+				"Requests to Bitbucket that timed out.") {
+			AtomicLong of(ServerMetrics server) {
+				return server.timeouts;
+			}
+		},
+		ERRORS("bitbucket_notifier_errors_total",
+				"Requests to Bitbucket that failed with an exception.") {
+			AtomicLong of(ServerMetrics server) {
+				return server.errors;
+			}
+		},
+		RETRIES("bitbucket_notifier_retries_total",
+				"Notifications retried.") {
+			AtomicLong of(ServerMetrics server) {
+				return server.retries;
+			}
+		},
+		BATCHES("bitbucket_notifier_batches_total",
+				"Batches of queued notifications sent.") {
+			AtomicLong of(ServerMetrics server) {
+				return server.batches;
+			}
+		},
+		BATCHED_NOTIFICATIONS("bitbucket_notifier_batched_notifications_total",
+				"Queued notifications sent in batches.") {
+			AtomicLong of(ServerMetrics server) {
+				return server.batchedNotifications;
+			}
+		},
+		UNCHANGED("bitbucket_notifier_unchanged_total",
+				"Notifications skipped because Bitbucket already had the status.") {
+			AtomicLong of(ServerMetrics server) {
+				return server.unchanged;
+			}
+		};
+
+		/** name of the exported metric. */
+		final String metric;
+
+		final String help;
+
+		ServerCounter(String metric, String help) {
+			this.metric = metric;
+			this.help = help;
+		}
+
+		/**
+		 * @return the counter of the server
+		 */
+		abstract AtomicLong of(ServerMetrics server);
+	}
+}
@@ -0,0 +1,503 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import jenkins.model.Jenkins;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only record of notifications that have not been
+ * completed yet, so they can be sent after a restart or crash of Jenkins.
+ * <p>
+ * A notification is recorded before it is dispatched and acknowledged once
+ * its outcome is known. Both are appended to a single file, each record
+ * carrying its length and checksum so a torn write at the end is detected
+ * and ignored. Records of concurrent notifications share one fsync.
+ * Acknowledgements are not synced: losing one only means a status is sent
+ * twice.
+ * <p>
+ * Only the newest outstanding notification per server, commit and build
+ * key is kept: recording a notification drops an older one for the same
+ * key, which would only be superseded if it was sent again. So a stale
+ * INPROGRESS whose sending was interrupted is not replayed after the final
+ * state.
+ * <p>
+ * When the file has grown well beyond the outstanding notifications, it is
+ * compacted by rewriting only those.
+ */
+final class NotificationOutbox {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(NotificationOutbox.class.getName());
+
+	static final String FILE_NAME = "outbox.log";
+
+	/** the file is not compacted below this size. */
+	static final long COMPACTION_THRESHOLD_BYTES = 4 * 1024 * 1024;
+
+	/** the file is compacted once it is this many times the live records. */
+	static final int COMPACTION_RATIO = 4;
+
+	private static final byte PENDING = 1;
+	private static final byte ACK = 2;
+
+	/** layout of the notification in a pending record. */
+	private static final byte FORMAT_VERSION = 1;
+
+	/** length and checksum in front of each record. */
+	private static final int HEADER_BYTES = 8;
+
+	private static NotificationOutbox instance;
+
+	private final File file;
+
+	private final long compactionThreshold;
+
+	/** encoded pending records by id, in the order they were recorded. */
+	private final Map<Long, byte[]> live = new LinkedHashMap<Long, byte[]>();
+
+	/** ids of the pending records by coalescing key. */
+	private final Map<String, Long> liveByKey = new HashMap<String, Long>();
+
+	private long liveBytes;
+
+	private long nextId = 1;
+
+	private FileChannel channel;
+
+	/** bytes appended to the file so far. */
+	private long written;
+
+	/** bytes of the file known to be on disk. */
+	private long synced;
+
+	private boolean syncing;
+
+	NotificationOutbox(File directory) {
+		this(directory, COMPACTION_THRESHOLD_BYTES);
+	}
+
+	NotificationOutbox(File directory, long compactionThreshold) {
+		this.file = new File(directory, FILE_NAME);
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return the outbox under the Jenkins home directory
+	 */
+	static synchronized NotificationOutbox get() {
+		if (instance == null) {
+			instance = new NotificationOutbox(
+					new File(Jenkins.getInstance().getRootDir(), "bitbucket-notifier"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Durably records the notification as pending. Returns once the record
+	 * is on disk.
+	 *
+	 * @param notification	the notification about to be dispatched
+	 */
+	void record(BitbucketNotification notification) throws IOException {
+		long end;
+		synchronized (this) {
+			open();
+			long id = nextId++;
+			byte[] record = encode(PENDING, id, notification);
+			append(record);
+			put(id, record, notification.coalescingKey);
+			notification.outboxId = id;
+			end = written;
+		}
+		awaitSynced(end);
+	}
+
+	/**
+	 * Marks the notification as completed, so it is not sent again after a
+	 * restart.
+	 *
+	 * @param notification	the notification whose outcome is known
+	 */
+	void acknowledge(BitbucketNotification notification) throws IOException {
+		synchronized (this) {
+			long id = notification.outboxId;
+			if (!remove(id, notification.coalescingKey)) {
+				return;
+			}
+			notification.outboxId = 0;
+			append(encode(ACK, id, null));
+			if (written > compactionThreshold
+					&& written > COMPACTION_RATIO * liveBytes) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Reads the notifications that were recorded but never acknowledged,
+	 * and compacts the file to contain only those.
+	 *
+	 * @param callback	receives the outcome of the recovered notifications
+	 * @return			the outstanding notifications, oldest first
+	 */
+	synchronized List<BitbucketNotification> recover(NotificationCallback callback)
+			throws IOException {
+		open();
+		List<BitbucketNotification> outstanding
+				= new ArrayList<BitbucketNotification>(live.size());
+		for (Map.Entry<Long, byte[]> entry : live.entrySet()) {
+			BitbucketNotification notification;
+			try {
+				notification = decode(entry.getValue(), callback);
+			} catch (IOException e) {
+				// kept in the file for a version that can read it
+				LOGGER.log(Level.WARNING, "Cannot recover notification "
+						+ entry.getKey() + " from " + file, e);
+				continue;
+			}
+			notification.outboxId = entry.getKey();
+			outstanding.add(notification);
+		}
+		return outstanding;
+	}
+
+	/**
+	 * @return the number of notifications recorded but not acknowledged
+	 */
+	synchronized int size() {
+		return live.size();
+	}
+
+	/**
+	 * Closes the file. Outstanding notifications stay recorded.
+	 */
+	synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.force(false);
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to close " + file, e);
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Opens the file on first use, reading the outstanding records and
+	 * dropping everything else.
+	 */
+	private void open() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		live.clear();
+		liveByKey.clear();
+		liveBytes = 0;
+		if (file.exists()) {
+			read();
+		}
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Cannot create " + parent);
+		}
+		rewrite();
+	}
+
+	private void read() throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int length;
+				int checksum;
+				byte[] body;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length <= 0 || length > file.length()) {
+						break;
+					}
+					body = new byte[length];
+					in.readFully(body);
+				} catch (EOFException e) {
+					// torn write at the end
+					break;
+				}
+				if (checksum(body) != checksum) {
+					LOGGER.warning("Ignoring corrupt end of " + file);
+					break;
+				}
+				byte type = body[0];
+				long id = ByteBuffer.wrap(body, 1, 8).getLong();
+				nextId = Math.max(nextId, id + 1);
+				if (type == PENDING) {
+					put(id, frame(body), coalescingKeyOf(body));
+				} else if (type == ACK) {
+					remove(id, null);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds a pending record, dropping an older one for the same key.
+	 *
+	 * @param key	the coalescing key, or null if unknown
+	 */
+	private void put(long id, byte[] record, String key) {
+		live.put(id, record);
+		liveBytes += record.length;
+		if (key != null) {
+			Long older = liveByKey.put(key, id);
+			if (older != null) {
+				byte[] dropped = live.remove(older);
+				if (dropped != null) {
+					liveBytes -= dropped.length;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a pending record.
+	 *
+	 * @param key	the coalescing key, or null to look it up
+	 * @return		whether the record was pending
+	 */
+	private boolean remove(long id, String key) {
+		byte[] record = live.remove(id);
+		if (record == null) {
+			return false;
+		}
+		liveBytes -= record.length;
+		if (key == null) {
+			key = coalescingKeyOf(Arrays.copyOfRange(record, HEADER_BYTES, record.length));
+		}
+		if (key != null && Long.valueOf(id).equals(liveByKey.get(key))) {
+			liveByKey.remove(key);
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the file by one containing only the live records.
+	 */
+	private void compact() throws IOException {
+		channel.close();
+		channel = null;
+		rewrite();
+	}
+
+	private void rewrite() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel tempChannel = out.getChannel();
+			for (byte[] record : live.values()) {
+				ByteBuffer buffer = ByteBuffer.wrap(record);
+				while (buffer.hasRemaining()) {
+					tempChannel.write(buffer);
+				}
+			}
+			tempChannel.force(true);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// cannot replace an existing file on some platforms
+			if (!file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+		channel = new FileOutputStream(file, true).getChannel();
+		written = channel.size();
+		synced = written;
+	}
+
+	private void append(byte[] record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		written += record.length;
+	}
+
+	/**
+	 * Waits until the file is synced up to the given position. One caller
+	 * syncs for all records appended so far while the others wait for it.
+	 */
+	private void awaitSynced(long position) throws IOException {
+		FileChannel toSync;
+		long end;
+		synchronized (this) {
+			while (synced < position && syncing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while syncing " + file);
+				}
+			}
+			if (synced >= position || channel == null) {
+				return;
+			}
+			syncing = true;
+			toSync = channel;
+			end = written;
+		}
+		try {
+			toSync.force(false);
+		} catch (ClosedChannelException e) {
+			synchronized (this) {
+				if (toSync == channel) {
+					throw e;
+				}
+			}
+			// compacted meanwhile, the new file was synced with the live records
+		} finally {
+			synchronized (this) {
+				syncing = false;
+				if (toSync == channel) {
+					synced = Math.max(synced, end);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private static byte[] encode(byte type, long id, BitbucketNotification notification)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeLong(id);
+		if (notification != null) {
+			out.writeByte(FORMAT_VERSION);
+			out.writeUTF(notification.serverUrl);
+			out.writeUTF(notification.credentialsId != null ? notification.credentialsId : "");
+			out.writeBoolean(notification.ignoreUnverifiedSSL);
+			out.writeUTF(notification.commitSha1);
+			out.writeUTF(notification.key);
+			out.writeUTF(notification.state.name());
+			byte[] payload = EntityUtils.toByteArray(notification.entity);
+			out.writeInt(payload.length);
+			out.write(payload);
+			out.writeInt(notification.timeouts.connectTimeout);
+			out.writeInt(notification.timeouts.readTimeout);
+			out.writeInt(notification.timeouts.poolLeaseTimeout);
+			out.writeInt(notification.timeouts.connectionTtl);
+			out.writeUTF(notification.job != null ? notification.job : "");
+			out.writeUTF(notification.definition != null
+					? notification.definition.getName() : "");
+		}
+		out.close();
+		return frame(bytes.toByteArray());
+	}
+
+	/**
+	 * @return the coalescing key of the notification in a pending record
+	 * 			body, or null if its format is unknown
+	 */
+	private static String coalescingKeyOf(byte[] body) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+			in.readByte();
+			in.readLong();
+			if (in.readUnsignedByte() != FORMAT_VERSION) {
+				return null;
+			}
+			String serverUrl = in.readUTF();
+			in.readUTF();
+			in.readBoolean();
+			String commitSha1 = in.readUTF();
+			String key = in.readUTF();
+			return serverUrl + '\n' + commitSha1 + '\n' + key;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static BitbucketNotification decode(byte[] record, NotificationCallback callback)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record, HEADER_BYTES, record.length - HEADER_BYTES));
+		in.readByte();
+		in.readLong();
+		int version = in.readUnsignedByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unknown record format " + version);
+		}
+		String serverUrl = in.readUTF();
+		String credentialsId = in.readUTF();
+		boolean ignoreUnverifiedSSL = in.readBoolean();
+		String commitSha1 = in.readUTF();
+		String key = in.readUTF();
+		BitbucketBuildState state = BitbucketBuildState.valueOf(in.readUTF());
+		byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		HttpTimeouts timeouts = new HttpTimeouts(
+				in.readInt(), in.readInt(), in.readInt(), in.readInt());
+		String job = in.readUTF();
+		String serverName = in.readUTF();
+		// the server may have been removed or moved since
+		BitbucketServer definition = BitbucketServers.get().get(serverName);
+		if (definition != null && !definition.getUrl().equals(serverUrl)) {
+			definition = null;
+		}
+		return new BitbucketNotification(
+				serverUrl,
+				credentialsId,
+				ignoreUnverifiedSSL,
+				commitSha1,
+				key,
+				job.length() > 0 ? job : null,
+				state,
+				new StringEntity(new String(payload, "UTF-8"), "UTF-8"),
+				timeouts,
+				callback,
+				definition);
+	}
+
+	/**
+	 * @return the body prefixed with its length and checksum
+	 */
+	private static byte[] frame(byte[] body) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + body.length);
+		buffer.putInt(body.length);
+		buffer.putInt(checksum(body));
+		buffer.put(body);
+		return buffer.array();
+	}
+
+	private static int checksum(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,412 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, coalescing FIFO queue of notifications waiting to be sent. What
+ * happens when the queue is full is decided by its {@link QueueFullPolicy}.
+ * <p>
+ * Only the newest pending notification per coalescing key (server, commit
+ * and build key) is kept: a newer notification replaces a queued older one
+ * in place, an older one arriving after a newer one is rejected. Notifications
+ * sharing a key are never handed out while another one for that key is
+ * still being sent, so they reach Bitbucket in order.
+ * <p>
+ * Waiting consumers are all woken when a notification becomes available,
+ * since a consumer collecting a batch only takes notifications for its
+ * own server.
+ * <p>
+ * Each server, or named {@link BitbucketServer}, is a lane: only as many
+ * consumers as the lane allows concurrent requests are handed a
+ * notification for it at a time. The others skip to notifications for
+ * other servers rather than waiting for a slow one.
+ */
+final class NotificationQueue {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	/** queued slots in FIFO order. */
+	private final LinkedList<Slot> queue = new LinkedList<Slot>();
+
+	/** queued slots by coalescing key. */
+	private final Map<String, Slot> pending = new HashMap<String, Slot>();
+
+	/** coalescing keys of notifications currently being sent. */
+	private final Set<String> inFlight = new HashSet<String>();
+
+	/** number of consumers holding each lane. */
+	private final Map<String, Integer> busyLanes = new HashMap<String, Integer>();
+
+	/** consumers per lane unless the lane's server has a limit of its own. */
+	private int maxPerLane = Integer.MAX_VALUE;
+
+	private int capacity;
+	private QueueFullPolicy policy;
+
+	NotificationQueue(int capacity, QueueFullPolicy policy) {
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a notification to the queue, coalescing it with a pending one for
+	 * the same key, or applying the queue full policy if there is no room.
+	 *
+	 * @param notification	the notification to add
+	 * @return				the notification that was superseded or dropped as a
+	 * 						consequence together with its result, or null
+	 */
+	Rejected offer(BitbucketNotification notification)
+			throws InterruptedException {
+
+		lock.lockInterruptibly();
+		try {
+			Rejected coalesced = coalesce(notification);
+			if (coalesced != null) {
+				return coalesced;
+			}
+
+			Rejected dropped = null;
+			while (queue.size() >= capacity) {
+				if (policy == QueueFullPolicy.BLOCK) {
+					notFull.await();
+					continue;
+				}
+				BitbucketNotification victim = removeVictim(notification);
+				dropped = Rejected.dropped(victim);
+				if (victim == notification) {
+					return dropped;
+				}
+				break;
+			}
+
+			// the queue may have changed while waiting for room
+			coalesced = coalesce(notification);
+			if (coalesced != null) {
+				return coalesced;
+			}
+
+			Slot slot = new Slot(notification);
+			queue.addLast(slot);
+			pending.put(notification.coalescingKey, slot);
+			notEmpty.signalAll();
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts a notification back into the queue for a retry, coalescing it
+	 * with a pending one for the same key. Never blocks: the notification
+	 * was queued before, so it is added even if the queue is full.
+	 *
+	 * @param notification	the notification to add
+	 * @return				the notification that was superseded as a
+	 * 						consequence together with its result, or null
+	 */
+	Rejected requeue(BitbucketNotification notification) {
+		lock.lock();
+		try {
+			Rejected coalesced = coalesce(notification);
+			if (coalesced != null) {
+				return coalesced;
+			}
+			Slot slot = new Slot(notification);
+			queue.addLast(slot);
+			pending.put(notification.coalescingKey, slot);
+			notEmpty.signalAll();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest notification whose key is not being
+	 * sent and whose lane is not full, waiting up to the given time for one
+	 * to become available. The caller must call
+	 * {@link #complete(BitbucketNotification)} once it has been sent and
+	 * {@link #releaseLane(BitbucketNotification)} once it is done with the
+	 * lane.
+	 *
+	 * @return the notification, or null if the time elapsed
+	 */
+	BitbucketNotification poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				for (Iterator<Slot> it = queue.iterator(); it.hasNext();) {
+					Slot slot = it.next();
+					String key = slot.notification.coalescingKey;
+					if (!inFlight.contains(key) && hasRoom(slot.notification)) {
+						it.remove();
+						pending.remove(key);
+						inFlight.add(key);
+						Integer busy = busyLanes.get(slot.notification.lane);
+						busyLanes.put(slot.notification.lane, busy != null ? busy + 1 : 1);
+						notFull.signal();
+						return slot.notification;
+					}
+				}
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Collects a batch of notifications for the same lane as one returned
+	 * by {@link #poll(long, TimeUnit)}, sent in the lane already held. Waits until the batch is full or the
+	 * window has passed, whichever comes first. The caller must call
+	 * {@link #complete(BitbucketNotification)} for each notification of the
+	 * batch once it has been sent.
+	 * <p>
+	 * If the thread is interrupted the batch collected so far is returned,
+	 * with the interrupt flag set.
+	 *
+	 * @param first		the notification already polled
+	 * @param maxSize	maximum number of notifications in the batch
+	 * @param window	how long to wait for more notifications
+	 * @return			the batch, starting with the given notification
+	 */
+	List<BitbucketNotification> pollBatch(
+			BitbucketNotification first, int maxSize, long window, TimeUnit unit) {
+
+		List<BitbucketNotification> batch = new ArrayList<BitbucketNotification>();
+		batch.add(first);
+		long nanos = unit.toNanos(window);
+		lock.lock();
+		try {
+			while (true) {
+				for (Iterator<Slot> it = queue.iterator();
+						it.hasNext() && batch.size() < maxSize;) {
+					Slot slot = it.next();
+					String key = slot.notification.coalescingKey;
+					if (slot.notification.lane.equals(first.lane)
+							&& !inFlight.contains(key)) {
+						it.remove();
+						pending.remove(key);
+						inFlight.add(key);
+						notFull.signal();
+						batch.add(slot.notification);
+					}
+				}
+				if (batch.size() >= maxSize || nanos <= 0) {
+					return batch;
+				}
+				try {
+					nanos = notEmpty.awaitNanos(nanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return batch;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks a notification returned by {@link #poll(long, TimeUnit)} as sent,
+	 * releasing newer notifications for the same key.
+	 */
+	void complete(BitbucketNotification notification) {
+		lock.lock();
+		try {
+			inFlight.remove(notification.coalescingKey);
+			if (pending.containsKey(notification.coalescingKey)) {
+				notEmpty.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives up the lane taken by {@link #poll(long, TimeUnit)} for the
+	 * notification, letting another consumer send to its server.
+	 */
+	void releaseLane(BitbucketNotification notification) {
+		lock.lock();
+		try {
+			Integer busy = busyLanes.remove(notification.lane);
+			if (busy != null && busy > 1) {
+				busyLanes.put(notification.lane, busy - 1);
+			}
+			if (!queue.isEmpty()) {
+				notEmpty.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param maxPerLane	consumers sending to the same server at a time,
+	 * 						unless the server has a limit of its own
+	 */
+	void setMaxPerLane(int maxPerLane) {
+		lock.lock();
+		try {
+			this.maxPerLane = Math.max(1, maxPerLane);
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all queued notifications.
+	 *
+	 * @return the removed notifications, oldest first
+	 */
+	List<BitbucketNotification> drain() {
+		lock.lock();
+		try {
+			List<BitbucketNotification> drained
+					= new ArrayList<BitbucketNotification>(queue.size());
+			for (Slot slot : queue) {
+				drained.add(slot.notification);
+			}
+			queue.clear();
+			pending.clear();
+			notFull.signalAll();
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void configure(int capacity, QueueFullPolicy policy) {
+		lock.lock();
+		try {
+			this.capacity = Math.max(1, capacity);
+			this.policy = policy;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return whether another consumer may send to the notification's
+	 * 			lane. Must be called with the lock held.
+	 */
+	private boolean hasRoom(BitbucketNotification notification) {
+		Integer busy = busyLanes.get(notification.lane);
+		int max = notification.maxConcurrentRequests > 0
+				? notification.maxConcurrentRequests : maxPerLane;
+		return busy == null || busy < max;
+	}
+
+	/**
+	 * Merges the notification with a pending one for the same key, keeping
+	 * the newer of both. Must be called with the lock held.
+	 *
+	 * @return the notification that lost, or null if none was pending
+	 */
+	private Rejected coalesce(BitbucketNotification notification) {
+		Slot slot = pending.get(notification.coalescingKey);
+		if (slot == null) {
+			return null;
+		}
+		BitbucketNotification queued = slot.notification;
+		if (notification.isNewerThan(queued)) {
+			slot.notification = notification;
+			return Rejected.superseded(queued, notification);
+		}
+		return Rejected.superseded(notification, queued);
+	}
+
+	/**
+	 * Picks the notification to drop from a full queue. Must be called with
+	 * the lock held.
+	 */
+	private BitbucketNotification removeVictim(BitbucketNotification incoming) {
+		if (policy == QueueFullPolicy.DROP_INPROGRESS_FIRST) {
+			for (Iterator<Slot> it = queue.iterator(); it.hasNext();) {
+				Slot slot = it.next();
+				if (slot.notification.state == BitbucketBuildState.INPROGRESS) {
+					it.remove();
+					pending.remove(slot.notification.coalescingKey);
+					return slot.notification;
+				}
+			}
+			// rather lose the new INPROGRESS than a queued final state
+			if (incoming.state == BitbucketBuildState.INPROGRESS) {
+				return incoming;
+			}
+		}
+		Slot oldest = queue.removeFirst();
+		pending.remove(oldest.notification.coalescingKey);
+		return oldest.notification;
+	}
+
+	/**
+	 * A queue position; its notification is replaced when a newer one for
+	 * the same key arrives.
+	 */
+	private static final class Slot {
+
+		BitbucketNotification notification;
+
+		Slot(BitbucketNotification notification) {
+			this.notification = notification;
+		}
+	}
+
+	/**
+	 * A notification that will not be sent, with the result to report.
+	 */
+	static final class Rejected {
+
+		final BitbucketNotification notification;
+		final NotificationResult result;
+
+		private Rejected(BitbucketNotification notification, NotificationResult result) {
+			this.notification = notification;
+			this.result = result;
+		}
+
+		static Rejected superseded(
+				BitbucketNotification notification,
+				BitbucketNotification newer) {
+			return new Rejected(notification, NotificationResult.newSkipped(
+					"superseded by pending " + newer.state + " notification"));
+		}
+
+		static Rejected dropped(BitbucketNotification notification) {
+			return new Rejected(notification, NotificationResult.newFailure(
+					"dropped, notification queue is full"));
+		}
+	}
+}
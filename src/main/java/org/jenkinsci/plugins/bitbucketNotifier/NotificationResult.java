@@ -29,6 +29,24 @@ public final class NotificationResult {
 	 */
 	public final String message;
 
+	/**
+	 * true if the notification was intentionally not sent, e.g. because it
+	 * was superseded by a newer one. The message tells why.
+	 */
+	public final boolean skipped;
+
+	/**
+	 * the HTTP status code Bitbucket answered with, or 0 if the notification
+	 * was not answered.
+	 */
+	public final int statusCode;
+
+	/**
+	 * true if the notification failed because Bitbucket did not answer in
+	 * time.
+	 */
+	public final boolean timedOut;
+
 	/**
 	 * returns a new NotificationResult instance indicating a successful
 	 * notification.
@@ -37,7 +55,19 @@ public final class NotificationResult {
 	 * notification
 	 */
 	public static NotificationResult newSuccess() {
-		return new NotificationResult(true, null);
+		return newSuccess(0);
+	}
+
+	/**
+	 * returns a new NotificationResult instance indicating a successful
+	 * notification.
+	 *
+	 * @param	statusCode	the HTTP status code Bitbucket answered with
+	 * @return a new NotificationResult instance indicating a successful
+	 * notification
+	 */
+	public static NotificationResult newSuccess(int statusCode) {
+		return new NotificationResult(true, null, false, statusCode, false);
 	}
 
 	/**
@@ -49,7 +79,44 @@ public final class NotificationResult {
 	 * 			notification
 	 */
 	public static NotificationResult newFailure(String message) {
-		return new NotificationResult(false, message);
+		return newFailure(0, message);
+	}
+
+	/**
+	 * returns a new NotificationResult instance indicating a failed
+	 * notification.
+	 *
+	 * @param	statusCode	the HTTP status code Bitbucket answered with
+	 * @param	message	the message indicating why the notifiation failed
+	 * @return  a new NotificationResult instance indicating a failed
+	 * 			notification
+	 */
+	public static NotificationResult newFailure(int statusCode, String message) {
+		return new NotificationResult(false, message, false, statusCode, false);
+	}
+
+	/**
+	 * returns a new NotificationResult instance indicating a notification
+	 * that failed because Bitbucket did not answer in time.
+	 *
+	 * @param	message	the message indicating which timeout expired
+	 * @return  a new NotificationResult instance indicating a timed out
+	 * 			notification
+	 */
+	public static NotificationResult newTimeout(String message) {
+		return new NotificationResult(false, message, false, 0, true);
+	}
+
+	/**
+	 * returns a new NotificationResult instance indicating that the
+	 * notification was intentionally not sent.
+	 *
+	 * @param	message	the message indicating why the notification was skipped
+	 * @return  a new NotificationResult instance indicating a skipped
+	 * 			notification
+	 */
+	public static NotificationResult newSkipped(String message) {
+		return new NotificationResult(true, message, true, 0, false);
 	}
 
 	/**
@@ -57,12 +124,21 @@ public final class NotificationResult {
 	 *
 	 * @param initSuccess	success flag
 	 * @param initMessage 	message in case notification was not successful
+	 * @param initSkipped	skipped flag
+	 * @param initStatusCode	HTTP status code of the answer
+	 * @param initTimedOut	timeout flag
 	 */
 	private NotificationResult(
 			final boolean initSuccess,
-			final String initMessage) {
+			final String initMessage,
+			final boolean initSkipped,
+			final int initStatusCode,
+			final boolean initTimedOut) {
 
 		indicatesSuccess = initSuccess;
 		message = initMessage;
+		skipped = initSkipped;
+		statusCode = initStatusCode;
+		timedOut = initTimedOut;
 	}
 }
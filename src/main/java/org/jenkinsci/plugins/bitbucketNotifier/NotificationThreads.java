@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads sending notifications: virtual threads if the JVM
+ * supports them, daemon platform threads otherwise.
+ * <p>
+ * Sending a notification mostly waits, for a permit, a pooled connection or
+ * Bitbucket to answer. On virtual threads that wait costs next to nothing,
+ * so the number of notifications in flight is only limited by the caps per
+ * server. The plugin is built for older Java versions, so virtual threads
+ * are looked up reflectively, once.
+ */
+final class NotificationThreads {
+
+	private static final Logger LOGGER
+			= Logger.getLogger(NotificationThreads.class.getName());
+
+	/** creates a named virtual thread factory, null if not supported. */
+	private static final Method NAMED_VIRTUAL_FACTORY;
+
+	/** creates an executor with a thread per task, null if not supported. */
+	private static final Method THREAD_PER_TASK_EXECUTOR;
+
+	static {
+		Method namedFactory = null;
+		Method threadPerTask = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			namedFactory = builder.getMethod("name", String.class, long.class);
+			threadPerTask = Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class);
+			// fails if virtual threads are a preview feature that is disabled
+			virtualThreadFactory(namedFactory, "Bitbucket notifier probe #")
+					.newThread(new Runnable() {
+						public void run() {
+						}
+					});
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Virtual threads are not available", e);
+			namedFactory = null;
+			threadPerTask = null;
+		}
+		NAMED_VIRTUAL_FACTORY = namedFactory;
+		THREAD_PER_TASK_EXECUTOR = threadPerTask;
+		LOGGER.info(NAMED_VIRTUAL_FACTORY != null
+				? "Sending Bitbucket notifications on virtual threads"
+				: "Sending Bitbucket notifications on platform threads");
+	}
+
+	private NotificationThreads() {
+	}
+
+	/**
+	 * @return whether notifications are sent on virtual threads
+	 */
+	static boolean isVirtual() {
+		return NAMED_VIRTUAL_FACTORY != null;
+	}
+
+	/**
+	 * @param prefix	the name of the threads, followed by a counter
+	 * @return			a factory of virtual threads if supported, otherwise of
+	 * 					platform daemon threads
+	 */
+	static ThreadFactory newThreadFactory(String prefix) {
+		if (NAMED_VIRTUAL_FACTORY != null) {
+			try {
+				return virtualThreadFactory(NAMED_VIRTUAL_FACTORY, prefix);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Failed to create virtual threads", e);
+			}
+		}
+		return newPlatformThreadFactory(prefix);
+	}
+
+	/**
+	 * Creates the executor for tasks that may block. With virtual threads
+	 * every task gets its own thread. Otherwise at most the given number of
+	 * platform threads are used, and if all are busy the task runs on the
+	 * submitting thread.
+	 *
+	 * @param prefix		the name of the threads, followed by a counter
+	 * @param maxThreads	maximum number of platform threads
+	 */
+	static ExecutorService newExecutor(String prefix, int maxThreads) {
+		ThreadFactory factory = newThreadFactory(prefix);
+		if (THREAD_PER_TASK_EXECUTOR != null) {
+			try {
+				return (ExecutorService) THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Failed to create virtual thread executor", e);
+				factory = newPlatformThreadFactory(prefix);
+			}
+		}
+		return new ThreadPoolExecutor(
+				0, maxThreads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				factory,
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						// all threads busy or shut down, run on the calling thread
+						r.run();
+					}
+				});
+	}
+
+	private static ThreadFactory newPlatformThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static ThreadFactory virtualThreadFactory(Method namedFactory, String prefix)
+			throws Exception {
+		// the builder implementations are not public, so call them
+		// through the interface
+		Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		builder = namedFactory.invoke(builder, prefix, 1L);
+		return (ThreadFactory) namedFactory.getDeclaringClass()
+				.getMethod("factory").invoke(builder);
+	}
+}
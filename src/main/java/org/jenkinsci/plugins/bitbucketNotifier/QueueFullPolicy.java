@@ -0,0 +1,30 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+/**
+ * What the asynchronous dispatcher does with a new notification when its
+ * queue is full.
+ */
+public enum QueueFullPolicy {
+
+	/** wait until there is room in the queue. */
+	BLOCK("Block the build until there is room"),
+
+	/** drop the oldest queued notification. */
+	DROP_OLDEST("Drop the oldest queued notification"),
+
+	/**
+	 * drop the oldest queued INPROGRESS notification, or the oldest
+	 * notification if there is none.
+	 */
+	DROP_INPROGRESS_FIRST("Drop INPROGRESS notifications first");
+
+	private final String displayName;
+
+	QueueFullPolicy(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
@@ -0,0 +1,299 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Date;
+
+/**
+ * Token bucket limiting the rate of requests to one Bitbucket server with
+ * one set of credentials, which is what Bitbucket rate limits.
+ * <p>
+ * The rate is the lowest of the configured rate, the rate Bitbucket
+ * announces in its <tt>X-RateLimit-*</tt> headers and, after Bitbucket
+ * answered <tt>429 Too Many Requests</tt>, an adaptive rate. The adaptive
+ * rate is halved on every 429 and recovers slowly while requests succeed.
+ * After a 429 no request is let through until the <tt>Retry-After</tt>
+ * period is over.
+ */
+public final class RateLimiter {
+
+	/** how long to back off after a 429 without a Retry-After header. */
+	static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+	/** the adaptive rate never drops below this, in requests per second. */
+	static final double MIN_RATE = 0.1;
+
+	/** the adaptive rate after the first 429 if no rate is known. */
+	static final double INITIAL_THROTTLED_RATE = 2;
+
+	/** the adaptive rate is dropped once it recovered to this. */
+	static final double MAX_ADAPTIVE_RATE = 100;
+
+	/** growth of the adaptive rate per successful request. */
+	static final double RECOVERY_FACTOR = 1.05;
+
+	private final String serverUrl;
+
+	private final String credentialsId;
+
+	/** configured rate in requests per second, 0 if unlimited. */
+	private double configuredRate;
+
+	/** configured number of requests that may be sent in a burst. */
+	private int burst;
+
+	/** rate announced by Bitbucket, 0 if unknown. */
+	private double serverRate;
+
+	/** bucket size announced by Bitbucket, 0 if unknown. */
+	private int serverLimit;
+
+	/** rate after being throttled, 0 if not throttled. */
+	private double adaptiveRate;
+
+	private double tokens;
+
+	private long lastRefill;
+
+	private long blockedUntil;
+
+	private long throttledCount;
+
+	RateLimiter(String serverUrl, String credentialsId, double configuredRate, int burst) {
+		this.serverUrl = serverUrl;
+		this.credentialsId = credentialsId;
+		this.configuredRate = configuredRate;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the base url of the Bitbucket server
+	 */
+	public String getServerUrl() {
+		return serverUrl;
+	}
+
+	/**
+	 * @return the id of the credentials, may be blank
+	 */
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	/**
+	 * @return the current rate in requests per second, or
+	 * 			{@link Double#POSITIVE_INFINITY} if unlimited
+	 */
+	public synchronized double getRate() {
+		return effectiveRate();
+	}
+
+	/**
+	 * @return the current rate for display
+	 */
+	public synchronized String getRateDisplayName() {
+		double rate = effectiveRate();
+		if (Double.isInfinite(rate)) {
+			return "unlimited";
+		}
+		return String.format("%.1f/s", rate);
+	}
+
+	/**
+	 * @return how often Bitbucket answered 429
+	 */
+	public synchronized long getThrottledCount() {
+		return throttledCount;
+	}
+
+	/**
+	 * @return until when requests are held back after a 429, or null
+	 */
+	public synchronized Date getBlockedUntil() {
+		return blockedUntil > System.currentTimeMillis() ? new Date(blockedUntil) : null;
+	}
+
+	/**
+	 * @return whether Bitbucket throttled requests and the rate has not
+	 * 			recovered yet
+	 */
+	public synchronized boolean isThrottled() {
+		return adaptiveRate > 0 || blockedUntil > System.currentTimeMillis();
+	}
+
+	synchronized void configure(double configuredRate, int burst) {
+		this.configuredRate = Math.max(0, configuredRate);
+		this.burst = Math.max(1, burst);
+		tokens = Math.min(tokens, capacity());
+	}
+
+	/**
+	 * Takes a token if one is available.
+	 *
+	 * @return	0 if the request may be sent, otherwise how many milliseconds
+	 * 			to wait before asking again
+	 */
+	long tryAcquire() {
+		return tryAcquire(System.currentTimeMillis());
+	}
+
+	synchronized long tryAcquire(long now) {
+		if (blockedUntil > now) {
+			return blockedUntil - now;
+		}
+		double rate = effectiveRate();
+		if (Double.isInfinite(rate)) {
+			return 0;
+		}
+		refill(now, rate);
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1000));
+	}
+
+	/**
+	 * Gives back a token taken by {@link #tryAcquire()} for a request that
+	 * was not sent after all.
+	 */
+	synchronized void release() {
+		if (!Double.isInfinite(effectiveRate())) {
+			tokens = Math.min(capacity(), tokens + 1);
+		}
+	}
+
+	/**
+	 * Adapts to a response of Bitbucket.
+	 */
+	void onResponse(HttpResponse response) {
+		onResponse(
+				response.getStatusLine().getStatusCode(),
+				value(response, "Retry-After"),
+				value(response, "X-RateLimit-Limit"),
+				value(response, "X-RateLimit-FillRate"),
+				value(response, "X-RateLimit-Interval-Seconds"),
+				value(response, "X-RateLimit-Remaining"),
+				System.currentTimeMillis());
+	}
+
+	synchronized void onResponse(
+			int statusCode,
+			String retryAfter,
+			String limit,
+			String fillRate,
+			String intervalSeconds,
+			String remaining,
+			long now) {
+
+		int parsedLimit = parseInt(limit);
+		if (parsedLimit > 0) {
+			serverLimit = parsedLimit;
+		}
+		int fill = parseInt(fillRate);
+		if (fill > 0) {
+			int interval = parseInt(intervalSeconds);
+			serverRate = (double) fill / (interval > 0 ? interval : 1);
+		}
+
+		refill(now, effectiveRate());
+		if (statusCode == 429) {
+			throttledCount++;
+			long delay = parseRetryAfter(retryAfter, now);
+			blockedUntil = Math.max(blockedUntil,
+					now + (delay >= 0 ? delay : DEFAULT_RETRY_AFTER_MILLIS));
+			double rate = effectiveRate();
+			adaptiveRate = Math.max(MIN_RATE, Double.isInfinite(rate)
+					? INITIAL_THROTTLED_RATE : rate / 2);
+			// start from an empty bucket once the period is over
+			tokens = 0;
+			lastRefill = blockedUntil;
+		} else if (statusCode < 400 && adaptiveRate > 0) {
+			adaptiveRate *= RECOVERY_FACTOR;
+			double ceiling = configuredRate > 0 ? configuredRate : MAX_ADAPTIVE_RATE;
+			if (serverRate > 0) {
+				ceiling = Math.min(ceiling, serverRate);
+			}
+			if (adaptiveRate >= ceiling) {
+				adaptiveRate = 0;
+			}
+		}
+
+		int parsedRemaining = parseInt(remaining);
+		if (parsedRemaining >= 0) {
+			tokens = Math.min(tokens, parsedRemaining);
+		}
+	}
+
+	private double effectiveRate() {
+		double rate = Double.POSITIVE_INFINITY;
+		if (configuredRate > 0) {
+			rate = configuredRate;
+		}
+		if (serverRate > 0) {
+			rate = Math.min(rate, serverRate);
+		}
+		if (adaptiveRate > 0) {
+			rate = Math.min(rate, adaptiveRate);
+		}
+		return rate;
+	}
+
+	private int capacity() {
+		return serverLimit > 0 ? Math.min(burst, serverLimit) : burst;
+	}
+
+	private void refill(long now, double rate) {
+		if (now > lastRefill) {
+			if (!Double.isInfinite(rate)) {
+				tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1000);
+			} else {
+				tokens = capacity();
+			}
+			lastRefill = now;
+		}
+	}
+
+	private static String value(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+
+	private static int parseInt(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the delay in milliseconds, or -1 if there is none
+	 */
+	static long parseRetryAfter(String value, long now) {
+		if (value == null) {
+			return -1;
+		}
+		int seconds = parseInt(value);
+		if (seconds >= 0) {
+			return seconds * 1000L;
+		}
+		Date date = DateUtils.parseDate(value.trim());
+		if (date != null) {
+			return Math.max(0, date.getTime() - now);
+		}
+		return -1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "rate limit for " + serverUrl + " is " + getRateDisplayName();
+	}
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link RateLimiter}s of all Bitbucket servers and credentials used so
+ * far. Named {@link BitbucketServer}s have limiters of their own, with their
+ * own rate and burst if they set one.
+ */
+final class RateLimiters {
+
+	/** by default only the limits announced by Bitbucket apply. */
+	static final int DEFAULT_REQUESTS_PER_SECOND = 0;
+	static final int DEFAULT_BURST = 10;
+
+	private final ConcurrentMap<String, RateLimiter> limiters
+			= new ConcurrentHashMap<String, RateLimiter>();
+
+	private volatile double requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+
+	private volatile int burst = DEFAULT_BURST;
+
+	/**
+	 * @param requestsPerSecond	maximum rate per server and credentials,
+	 * 							0 for no limit of our own
+	 * @param burst				number of requests that may be sent at once
+	 */
+	synchronized void configure(double requestsPerSecond, int burst) {
+		this.requestsPerSecond = Math.max(0, requestsPerSecond);
+		this.burst = Math.max(1, burst);
+		for (Map.Entry<String, RateLimiter> entry : limiters.entrySet()) {
+			String key = entry.getKey();
+			BitbucketServer server = BitbucketServers.get().get(
+					key.substring(0, key.indexOf('\n')));
+			entry.getValue().configure(rateOf(server), burstOf(server));
+		}
+	}
+
+	/**
+	 * @param notification	the notification about to be sent
+	 * @return				the limiter for its server and credentials
+	 */
+	RateLimiter get(BitbucketNotification notification) {
+		String credentialsId = notification.credentialsId != null
+				? notification.credentialsId : "";
+		String key = notification.lane + '\n' + credentialsId;
+		RateLimiter limiter = limiters.get(key);
+		if (limiter == null) {
+			synchronized (this) {
+				limiter = limiters.get(key);
+				if (limiter == null) {
+					limiter = new RateLimiter(notification.server, credentialsId,
+							rateOf(notification.definition), burstOf(notification.definition));
+					limiters.put(key, limiter);
+				}
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * @param server	a named server, or null
+	 * @return			the rate of the server, or the global one
+	 */
+	private double rateOf(BitbucketServer server) {
+		return server != null && server.getRateLimit() > 0
+				? server.getRateLimit() : requestsPerSecond;
+	}
+
+	private int burstOf(BitbucketServer server) {
+		return server != null && server.getRateLimitBurst() > 0
+				? server.getRateLimitBurst() : burst;
+	}
+
+	/**
+	 * @return all limiters, ordered by server and credentials
+	 */
+	List<RateLimiter> getAll() {
+		List<RateLimiter> all = new ArrayList<RateLimiter>(limiters.values());
+		Collections.sort(all, new Comparator<RateLimiter>() {
+			public int compare(RateLimiter a, RateLimiter b) {
+				int byServer = a.getServerUrl().compareTo(b.getServerUrl());
+				return byServer != 0 ? byServer
+						: a.getCredentialsId().compareTo(b.getCredentialsId());
+			}
+		});
+		return all;
+	}
+}
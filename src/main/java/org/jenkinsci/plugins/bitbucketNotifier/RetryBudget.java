@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+/**
+ * Limits retries to a share of the notifications sent, so that a Bitbucket
+ * server that is down is not flooded with retries on top of the regular
+ * traffic.
+ * <p>
+ * Every first attempt deposits a fraction of a retry, every retry
+ * withdraws a whole one. A small number of retries per second is allowed
+ * regardless, so a quiet controller can still retry.
+ */
+final class RetryBudget {
+
+	/** share of first attempts that may be retried. */
+	static final double RETRY_RATIO = 0.2;
+
+	/** retries per second allowed regardless of traffic. */
+	static final double MIN_RETRIES_PER_SECOND = 1;
+
+	/** maximum number of retries that can be saved up. */
+	static final double MAX_BALANCE = 20;
+
+	private double balance = MAX_BALANCE;
+
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Records a first attempt.
+	 */
+	synchronized void deposit() {
+		refill();
+		balance = Math.min(MAX_BALANCE, balance + RETRY_RATIO);
+	}
+
+	/**
+	 * Takes one retry from the budget if there is one.
+	 *
+	 * @return	true if the retry may be made
+	 */
+	synchronized boolean tryWithdraw() {
+		refill();
+		if (balance >= 1) {
+			balance -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		double seconds = (now - lastRefill) / 1e9;
+		lastRefill = now;
+		balance = Math.min(MAX_BALANCE, balance + seconds * MIN_RETRIES_PER_SECOND);
+	}
+}
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed notification is worth sending again and how long
+ * to wait before doing so.
+ * <p>
+ * Only transient failures are retried: server errors, rate limiting and I/O
+ * errors that may go away by themselves. Client errors, unknown hosts and
+ * SSL problems are reported right away. Delays grow exponentially with
+ * jitter, so notifications that failed together are not retried together.
+ */
+final class RetryPolicy {
+
+	static final int DEFAULT_MAX_RETRIES = 3;
+
+	/** delay before the first retry. */
+	static final long BASE_DELAY_MILLIS = 500;
+
+	/** upper bound for the delay between two attempts. */
+	static final long MAX_DELAY_MILLIS = 30000;
+
+	private final Random random = new Random();
+
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+	/**
+	 * @param maxRetries	how often a notification is retried, 0 disables
+	 * 						retries
+	 */
+	void setMaxRetries(int maxRetries) {
+		this.maxRetries = Math.max(0, maxRetries);
+	}
+
+	int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param attempts	number of attempts made so far
+	 * @return			true if another attempt may be made
+	 */
+	boolean canRetry(int attempts) {
+		return attempts <= maxRetries;
+	}
+
+	/**
+	 * @param result	the result of a notification Bitbucket answered
+	 * @return			true if the failure may be transient
+	 */
+	static boolean isRetryable(NotificationResult result) {
+		return !result.indicatesSuccess
+				&& (result.timedOut
+						|| result.statusCode >= 500
+						|| result.statusCode == 429);
+	}
+
+	/**
+	 * @param e	the exception a notification failed with
+	 * @return	true if the failure may be transient
+	 */
+	static boolean isRetryable(Exception e) {
+		if (e instanceof ConnectTimeoutException
+				|| e instanceof NoHttpResponseException) {
+			return true;
+		}
+		if (e instanceof InterruptedIOException
+				&& !(e instanceof SocketTimeoutException)) {
+			// interrupted rather than timed out
+			return false;
+		}
+		return e instanceof IOException
+				&& !(e instanceof UnknownHostException)
+				&& !(e instanceof SSLException)
+				&& !(e instanceof ClientProtocolException);
+	}
+
+	/**
+	 * Computes the delay before the next attempt: half of the exponential
+	 * delay plus a random share of the other half.
+	 *
+	 * @param attempts	number of attempts made so far, at least 1
+	 * @return			the delay in milliseconds
+	 */
+	long delayMillis(int attempts) {
+		int exponent = Math.min(Math.max(0, attempts - 1), 20);
+		long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << exponent);
+		long half = delay / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (delay - half));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the number of concurrent requests to each Bitbucket server, no
+ * matter which job, credentials or thread they come from. Named
+ * {@link BitbucketServer}s may have a cap of their own.
+ */
+final class ServerConcurrencyLimiter {
+
+	static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+	private volatile ConcurrentMap<String, Semaphore> permits
+			= new ConcurrentHashMap<String, Semaphore>();
+
+	private volatile int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+
+	/**
+	 * Changes the cap. Requests in flight keep their permits, later requests
+	 * are limited by the new cap.
+	 *
+	 * @param maxConcurrentRequests	maximum concurrent requests per server
+	 */
+	synchronized void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests != this.maxConcurrentRequests) {
+			this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+			permits = new ConcurrentHashMap<String, Semaphore>();
+		}
+	}
+
+	int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	/**
+	 * Waits for a permit to send a request to the given server.
+	 *
+	 * @param serverUrl	the base url of the server
+	 * @return			the permit to pass to {@link Semaphore#release()} once
+	 * 					the request is done
+	 */
+	Semaphore acquire(String serverUrl) throws InterruptedException {
+		return acquire(serverOf(serverUrl), maxConcurrentRequests);
+	}
+
+	/**
+	 * Waits for a permit to send the notification. Named servers with a
+	 * limit of their own have permits of their own.
+	 *
+	 * @param notification	the notification about to be sent
+	 * @return				the permit to pass to {@link Semaphore#release()}
+	 * 						once the request is done
+	 */
+	Semaphore acquire(BitbucketNotification notification) throws InterruptedException {
+		int max = notification.maxConcurrentRequests;
+		if (max > 0) {
+			return acquire(notification.lane + '\n' + max, max);
+		}
+		return acquire(notification.server, maxConcurrentRequests);
+	}
+
+	private Semaphore acquire(String key, int max) throws InterruptedException {
+		ConcurrentMap<String, Semaphore> current = permits;
+		Semaphore semaphore = current.get(key);
+		if (semaphore == null) {
+			Semaphore created = new Semaphore(max, true);
+			semaphore = current.putIfAbsent(key, created);
+			if (semaphore == null) {
+				semaphore = created;
+			}
+		}
+		semaphore.acquire();
+		return semaphore;
+	}
+
+	/**
+	 * @return scheme, host and port of the url, or the url itself if it
+	 * 			cannot be parsed
+	 */
+	static String serverOf(String serverUrl) {
+		try {
+			URL url = new URL(serverUrl);
+			int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+		} catch (MalformedURLException e) {
+			return String.valueOf(serverUrl);
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.util.Arrays;
+
+/**
+ * Writes the JSON body of a build status notification in a single pass
+ * into a reusable per-thread buffer.
+ * <p>
+ * The output is the same as building a <tt>net.sf.json.JSONObject</tt> of
+ * the fields and encoding it as UTF-8, including the JavaScript escaping of
+ * the build name, the replacement of the escaped folder separator and the
+ * abbreviation of long fields. Unlike json-lib, values that look like JSON
+ * text are always written as strings.
+ */
+final class StatusPayloadWriter {
+
+	/** buffers larger than this are not kept for reuse. */
+	private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+	private static final char[] UPPER_HEX = "0123456789ABCDEF".toCharArray();
+	private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray();
+
+	/** the escaped folder separator that is replaced by a slash. */
+	private static final String ESCAPED_SEPARATOR = "\\u00BB";
+
+	private static final ContentType CONTENT_TYPE
+			= ContentType.create("text/plain", Consts.UTF_8);
+
+	private static final ThreadLocal<StatusPayloadWriter> WRITERS
+			= new ThreadLocal<StatusPayloadWriter>() {
+		@Override
+		protected StatusPayloadWriter initialValue() {
+			return new StatusPayloadWriter();
+		}
+	};
+
+	private byte[] buffer = new byte[1024];
+	private int length;
+
+	// state of the field being written, see value()
+	private int maxWidth;
+	private int count;
+	private final char[] held = new char[3];
+	private int heldCount;
+	private boolean truncated;
+	private int separatorMatched;
+	private char previous;
+	private char highSurrogate;
+
+	private StatusPayloadWriter() {
+	}
+
+	/**
+	 * Builds the body of a build status notification.
+	 *
+	 * @param state			the state of the build
+	 * @param key			the build key, already escaped
+	 * @param name			the full display name of the build
+	 * @param description	the description of the build
+	 * @param url			the absolute url of the build
+	 * @return				the UTF-8 encoded JSON entity
+	 */
+	static HttpEntity newEntity(
+			BitbucketBuildState state,
+			String key,
+			String name,
+			String description,
+			String url) {
+
+		StatusPayloadWriter writer = WRITERS.get();
+		byte[] payload = writer.write(state, key, name, description, url);
+		return new ByteArrayEntity(payload, CONTENT_TYPE);
+	}
+
+	/**
+	 * @return the body, as a new array of exactly its length
+	 */
+	byte[] write(
+			BitbucketBuildState state,
+			String key,
+			String name,
+			String description,
+			String url) {
+
+		length = 0;
+		append("{\"state\":");
+		value(state.name(), Integer.MAX_VALUE, false);
+		append(",\"key\":");
+		value(key, BitbucketNotifier.MAX_FIELD_LENGTH, false);
+		append(",\"name\":");
+		value(name, BitbucketNotifier.MAX_FIELD_LENGTH, true);
+		append(",\"description\":");
+		value(description, BitbucketNotifier.MAX_FIELD_LENGTH, false);
+		append(",\"url\":");
+		value(url, BitbucketNotifier.MAX_URL_FIELD_LENGTH, false);
+		append("}");
+
+		byte[] payload = Arrays.copyOf(buffer, length);
+		if (buffer.length > MAX_RETAINED_BYTES) {
+			buffer = new byte[1024];
+		}
+		return payload;
+	}
+
+	/**
+	 * Writes a quoted string value. Each character goes through the stages
+	 * the old code applied to whole strings, in the same order: JavaScript
+	 * escaping and separator replacement (for the name only), abbreviation,
+	 * JSON quoting and UTF-8 encoding.
+	 */
+	private void value(String text, int maxWidth, boolean escapeJavaScript) {
+		this.maxWidth = maxWidth;
+		count = 0;
+		heldCount = 0;
+		truncated = false;
+		separatorMatched = 0;
+		previous = 0;
+		highSurrogate = 0;
+
+		appendByte('"');
+		int n = text.length();
+		for (int i = 0; i < n && !truncated; i++) {
+			if (escapeJavaScript) {
+				escapeJavaScript(text.charAt(i));
+			} else {
+				abbreviate(text.charAt(i));
+			}
+		}
+		if (escapeJavaScript) {
+			flushSeparatorMatch();
+		}
+		if (truncated) {
+			quote('.');
+			quote('.');
+			quote('.');
+		} else {
+			for (int i = 0; i < heldCount; i++) {
+				quote(held[i]);
+			}
+		}
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			appendByte('?');
+		}
+		appendByte('"');
+	}
+
+	/**
+	 * Escapes like <tt>StringEscapeUtils.escapeJavaScript</tt>.
+	 */
+	private void escapeJavaScript(char c) {
+		if (c > 0x7f) {
+			unicodeEscape(c);
+		} else if (c < 32) {
+			switch (c) {
+			case '\b':
+				replaceSeparator('\\');
+				replaceSeparator('b');
+				break;
+			case '\n':
+				replaceSeparator('\\');
+				replaceSeparator('n');
+				break;
+			case '\t':
+				replaceSeparator('\\');
+				replaceSeparator('t');
+				break;
+			case '\f':
+				replaceSeparator('\\');
+				replaceSeparator('f');
+				break;
+			case '\r':
+				replaceSeparator('\\');
+				replaceSeparator('r');
+				break;
+			default:
+				unicodeEscape(c);
+				break;
+			}
+		} else {
+			switch (c) {
+			case '\'':
+			case '"':
+			case '\\':
+			case '/':
+				replaceSeparator('\\');
+				replaceSeparator(c);
+				break;
+			default:
+				replaceSeparator(c);
+				break;
+			}
+		}
+	}
+
+	private void unicodeEscape(char c) {
+		replaceSeparator('\\');
+		replaceSeparator('u');
+		replaceSeparator(UPPER_HEX[(c >> 12) & 0xf]);
+		replaceSeparator(UPPER_HEX[(c >> 8) & 0xf]);
+		replaceSeparator(UPPER_HEX[(c >> 4) & 0xf]);
+		replaceSeparator(UPPER_HEX[c & 0xf]);
+	}
+
+	/**
+	 * Replaces the escaped folder separator by a slash, like
+	 * <tt>replaceAll("\\\\u00BB", "\\/")</tt>. Characters that may start
+	 * the separator are held back until it is known whether they do.
+	 */
+	private void replaceSeparator(char c) {
+		if (c == ESCAPED_SEPARATOR.charAt(separatorMatched)) {
+			separatorMatched++;
+			if (separatorMatched == ESCAPED_SEPARATOR.length()) {
+				separatorMatched = 0;
+				abbreviate('/');
+			}
+			return;
+		}
+		flushSeparatorMatch();
+		if (c == ESCAPED_SEPARATOR.charAt(0)) {
+			separatorMatched = 1;
+		} else {
+			abbreviate(c);
+		}
+	}
+
+	private void flushSeparatorMatch() {
+		for (int i = 0; i < separatorMatched; i++) {
+			abbreviate(ESCAPED_SEPARATOR.charAt(i));
+		}
+		separatorMatched = 0;
+	}
+
+	/**
+	 * Abbreviates like {@link BitbucketNotifier#abbreviate(String, int)}:
+	 * the last three characters that fit are held back until it is known
+	 * whether they have to make room for the ellipsis.
+	 */
+	private void abbreviate(char c) {
+		if (truncated) {
+			return;
+		}
+		if (count < maxWidth - 3) {
+			quote(c);
+		} else if (count < maxWidth) {
+			held[heldCount++] = c;
+		} else {
+			truncated = true;
+		}
+		count++;
+	}
+
+	/**
+	 * Quotes like json-lib's <tt>JSONUtils.quote</tt>.
+	 */
+	private void quote(char c) {
+		char before = previous;
+		previous = c;
+		switch (c) {
+		case '\\':
+		case '"':
+			encode('\\');
+			encode(c);
+			return;
+		case '/':
+			if (before == '<') {
+				encode('\\');
+			}
+			encode(c);
+			return;
+		case '\b':
+			encode('\\');
+			encode('b');
+			return;
+		case '\t':
+			encode('\\');
+			encode('t');
+			return;
+		case '\n':
+			encode('\\');
+			encode('n');
+			return;
+		case '\f':
+			encode('\\');
+			encode('f');
+			return;
+		case '\r':
+			encode('\\');
+			encode('r');
+			return;
+		default:
+			if (c < ' ') {
+				encode('\\');
+				encode('u');
+				encode(LOWER_HEX[(c >> 12) & 0xf]);
+				encode(LOWER_HEX[(c >> 8) & 0xf]);
+				encode(LOWER_HEX[(c >> 4) & 0xf]);
+				encode(LOWER_HEX[c & 0xf]);
+			} else {
+				encode(c);
+			}
+		}
+	}
+
+	/**
+	 * Encodes as UTF-8, replacing unpaired surrogates by '?' like
+	 * <tt>String.getBytes("UTF-8")</tt>.
+	 */
+	private void encode(char c) {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				ensureCapacity(4);
+				buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+				return;
+			}
+			appendByte('?');
+		}
+		if (c < 0x80) {
+			appendByte(c);
+		} else if (c < 0x800) {
+			ensureCapacity(2);
+			buffer[length++] = (byte) (0xc0 | (c >> 6));
+			buffer[length++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			appendByte('?');
+		} else {
+			ensureCapacity(3);
+			buffer[length++] = (byte) (0xe0 | (c >> 12));
+			buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[length++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void append(String ascii) {
+		for (int i = 0; i < ascii.length(); i++) {
+			appendByte(ascii.charAt(i));
+		}
+	}
+
+	private void appendByte(int b) {
+		ensureCapacity(1);
+		buffer[length++] = (byte) b;
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (length + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+/**
+ * How requests are sent to Bitbucket, see {@link BitbucketTransport}.
+ */
+public enum TransportType {
+
+	/** the blocking client, one thread per request in flight. */
+	BLOCKING("Blocking (one thread per request)", BlockingTransport.INSTANCE),
+
+	/** the non-blocking client, one I/O thread per server. */
+	ASYNC("Non-blocking (NIO)", AsyncTransport.INSTANCE);
+
+	private final String displayName;
+	private final BitbucketTransport transport;
+
+	TransportType(String displayName, BitbucketTransport transport) {
+		this.displayName = displayName;
+		this.transport = transport;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	BitbucketTransport getTransport() {
+		return transport;
+	}
+}
@@ -0,0 +1,35 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AsyncTransportTest
+{
+	@Test
+	public void test_lease_timeout_is_pool_timeout() {
+		IOException e = AsyncTransport.unwrap(new TimeoutException("lease"));
+		assertTrue(e instanceof ConnectionPoolTimeoutException);
+	}
+
+	@Test
+	public void test_io_exceptions_are_kept() {
+		SocketTimeoutException timeout = new SocketTimeoutException();
+		assertSame(timeout, AsyncTransport.unwrap(timeout));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void test_runtime_exceptions_are_rethrown() {
+		AsyncTransport.unwrap(new IllegalStateException());
+	}
+
+	@Test
+	public void test_other_failures_are_wrapped() {
+		Exception cause = new Exception();
+		assertSame(cause, AsyncTransport.unwrap(cause).getCause());
+	}
+}
@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import jenkins.model.Jenkins;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.mockito.Mockito.*;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Jenkins.class})
+public class BitbucketClientRegistryTest
+{
+	BitbucketClientRegistry registry;
+
+	@Before
+	public void setUp() {
+		PowerMockito.mockStatic(Jenkins.class);
+		Jenkins jenkins = mock(Jenkins.class);
+		when(Jenkins.getInstance()).thenReturn(jenkins);
+		registry = BitbucketClientRegistry.get();
+	}
+
+	@After
+	public void tearDown() {
+		registry.shutdown();
+	}
+
+	@Test
+	public void test_same_server_reuses_client() throws Exception {
+		CloseableHttpClient first = registry.getClient(
+				System.out, "http://localhost:7990/rest", false, null, 300);
+		CloseableHttpClient second = registry.getClient(
+				System.out, "http://LOCALHOST:7990/other", false, "", 300);
+		assertSame(first, second);
+	}
+
+	@Test
+	public void test_different_settings_use_different_clients() throws Exception {
+		CloseableHttpClient plain = registry.getClient(
+				System.out, "http://localhost:7990", false, null, 300);
+		assertNotSame(plain, registry.getClient(
+				System.out, "http://localhost:7991", false, null, 300));
+		assertNotSame(plain, registry.getClient(
+				System.out, "http://localhost:7990", true, null, 300));
+		assertNotSame(plain, registry.getClient(
+				System.out, "http://localhost:7990", false, null, 60));
+	}
+
+	@Test
+	public void test_shutdown_drops_clients() throws Exception {
+		CloseableHttpClient before = registry.getClient(
+				System.out, "http://localhost:7990", false, null, 300);
+		registry.shutdown();
+		assertNotSame(before, registry.getClient(
+				System.out, "http://localhost:7990", false, null, 300));
+	}
+
+	@Test
+	public void test_retired_clients_are_not_handed_out() throws Exception {
+		CloseableHttpClient before = registry.getClient(
+				System.out, "http://localhost:7990", false, null, 300);
+		registry.retireAll();
+		CloseableHttpClient after = registry.getClient(
+				System.out, "http://localhost:7990", false, null, 300);
+		assertNotSame(before, after);
+		assertSame(after, registry.getClient(
+				System.out, "http://localhost:7990", false, null, 300));
+	}
+}
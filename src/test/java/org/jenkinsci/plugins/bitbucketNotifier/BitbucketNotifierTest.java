@@ -1,6 +1,9 @@
 package org.jenkinsci.plugins.bitbucketNotifier;
 
 import hudson.EnvVars;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
@@ -50,6 +53,7 @@ public class BitbucketNotifierTest
 	BitbucketNotifier sn;
 	BuildListener buildListener;
 	AbstractBuild<?,?> build;
+	BuildData action;
 
 	@Before
 	public void setUp() throws IOException, InterruptedException {
@@ -70,7 +74,7 @@ public class BitbucketNotifierTest
 		CloseableHttpResponse resp = mock(CloseableHttpResponse.class);
 		HttpUriRequest req = mock(HttpUriRequest.class);
 		StatusLine statusLine = mock(StatusLine.class);
-		BuildData action = mock(BuildData.class);
+		action = mock(BuildData.class);
 		Revision revision = mock(Revision.class);
 		Build lastBuild = mock(Build.class);
 		List<BuildData> actions = Collections.singletonList(action);
@@ -111,4 +115,78 @@ public class BitbucketNotifierTest
 		when(build.getActions(BuildData.class)).thenReturn(Collections.singletonList(mock(BuildData.class)));
 		assertTrue(sn.prebuild(build, buildListener));
 	}
+
+	@Test
+	public void test_context_computes_key_and_payload_once() {
+		BitbucketNotifier notifier = spy(sn);
+		BuildNotificationContext context = new BuildNotificationContext();
+
+		String key = context.getBuildKey(notifier, build, buildListener);
+		assertSame(
+			context.getPayload(notifier, build, BitbucketBuildState.INPROGRESS, key),
+			context.getPayload(notifier, build, BitbucketBuildState.INPROGRESS, key));
+		context.getPayload(notifier, build, BitbucketBuildState.SUCCESSFUL, key);
+		assertEquals(key, context.getBuildKey(notifier, build, buildListener));
+
+		verify(notifier, times(1)).getBuildKey(build, buildListener);
+		verify(notifier, times(2)).newBitbucketBuildNotificationEntity(
+			same(build), any(BitbucketBuildState.class), eq(key));
+	}
+
+	@Test
+	public void test_context_looks_up_commits_once_per_checkout() {
+		BuildNotificationContext context = new BuildNotificationContext();
+
+		assertEquals(Collections.singletonList(sha1), context.getBuiltCommitSha1s(build));
+		assertEquals(Collections.singletonList(sha1), context.getBuiltCommitSha1s(build));
+		verify(build, times(1)).getActions(BuildData.class);
+
+		context.invalidateBuiltCommitSha1s();
+		context.getBuiltCommitSha1s(build);
+		verify(build, times(2)).getActions(BuildData.class);
+	}
+
+	@Test
+	public void test_context_looks_up_commits_again_until_checked_out() {
+		BuildNotificationContext context = new BuildNotificationContext();
+		when(build.getActions(BuildData.class)).thenReturn(Collections.<BuildData>emptyList());
+		assertTrue(context.getBuiltCommitSha1s(build).isEmpty());
+
+		List<BuildData> actions = Collections.singletonList(action);
+		when(build.getActions(BuildData.class)).thenReturn(actions);
+		assertEquals(Collections.singletonList(sha1), context.getBuiltCommitSha1s(build));
+	}
+
+	@Test
+	public void test_matrix_build_notifies_through_aggregator() throws Exception {
+		BitbucketNotifier notifier = spy(sn);
+		MatrixBuild matrixBuild = mock(MatrixBuild.class);
+		doReturn(true).when(notifier).prebuild(matrixBuild, buildListener);
+		doReturn(true).when(notifier).perform(matrixBuild, null, buildListener);
+
+		assertNull(notifier.createAggregator(
+			MatrixNotificationMode.INDIVIDUAL, matrixBuild, null, buildListener));
+
+		MatrixAggregator aggregator = notifier.createAggregator(
+			MatrixNotificationMode.AGGREGATE, matrixBuild, null, buildListener);
+		assertTrue(aggregator.startBuild());
+		verify(notifier).prebuild(matrixBuild, buildListener);
+		verify(notifier, never()).perform(matrixBuild, null, buildListener);
+		assertTrue(aggregator.endBuild());
+		verify(notifier).perform(matrixBuild, null, buildListener);
+	}
+
+	@Test
+	public void test_matrix_configurations_notify_per_mode() {
+		MatrixRun run = mock(MatrixRun.class);
+		BitbucketBuildState inProgress = BitbucketBuildState.INPROGRESS;
+		BitbucketBuildState failed = BitbucketBuildState.FAILED;
+
+		assertFalse(BitbucketNotifier.isNotifiedByMatrixBuild(run, MatrixNotificationMode.INDIVIDUAL, inProgress));
+		assertTrue(BitbucketNotifier.isNotifiedByMatrixBuild(run, MatrixNotificationMode.AGGREGATE, inProgress));
+		assertTrue(BitbucketNotifier.isNotifiedByMatrixBuild(run, MatrixNotificationMode.AGGREGATE, failed));
+		assertTrue(BitbucketNotifier.isNotifiedByMatrixBuild(run, MatrixNotificationMode.SHARED, inProgress));
+		assertFalse(BitbucketNotifier.isNotifiedByMatrixBuild(run, MatrixNotificationMode.SHARED, failed));
+		assertFalse(BitbucketNotifier.isNotifiedByMatrixBuild(build, MatrixNotificationMode.AGGREGATE, inProgress));
+	}
 }
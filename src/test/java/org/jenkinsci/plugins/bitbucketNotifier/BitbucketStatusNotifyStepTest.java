@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.Job;
+import hudson.model.Run;
+import java.util.Collections;
+import jenkins.model.Jenkins;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.mockito.Mockito.*;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Jenkins.class, BitbucketNotifier.DescriptorImpl.class})
+public class BitbucketStatusNotifyStepTest
+{
+	final static String sha1 = "1234567890123456789012345678901234567890";
+
+	Run<?, ?> run;
+	EnvVars env;
+	NotificationCallback callback;
+
+	@Before
+	public void setUp() {
+		PowerMockito.mockStatic(Jenkins.class);
+		Jenkins jenkins = mock(Jenkins.class);
+		BitbucketNotifier.DescriptorImpl descriptor = mock(BitbucketNotifier.DescriptorImpl.class);
+		Job job = mock(Job.class);
+		run = mock(Run.class);
+
+		when(Jenkins.getInstance()).thenReturn(jenkins);
+		when(jenkins.getRootUrl()).thenReturn("http://jenkins/");
+		when(jenkins.getDescriptorByType(BitbucketNotifier.DescriptorImpl.class)).thenReturn(descriptor);
+		when(descriptor.getBitbucketRootUrl()).thenReturn("http://global/");
+		when(descriptor.getCredentialsId()).thenReturn("global");
+		when(descriptor.getTimeouts()).thenReturn(HttpTimeouts.DEFAULT);
+		when(job.getName()).thenReturn("job");
+		when(job.getFullName()).thenReturn("folder/job");
+		doReturn(job).when(run).getParent();
+		when(run.getUrl()).thenReturn("job/job/1/");
+		when(run.getFullDisplayName()).thenReturn("job #1");
+
+		env = new EnvVars();
+		callback = new NotificationCallback(System.out);
+	}
+
+	@After
+	public void tearDown() {
+		BitbucketServers.get().configure(
+			Collections.<BitbucketServer>emptyList(), null, HttpTimeouts.DEFAULT);
+	}
+
+	static BitbucketStatusNotifyStep step(String state, String commit, String serverName) {
+		return new BitbucketStatusNotifyStep(
+			state, commit, null, null, null, null, null, false, serverName);
+	}
+
+	@Test
+	public void test_state_is_parsed_leniently() throws Exception {
+		BitbucketNotification notification
+			= step(" successful ", sha1, null).newNotification(run, env, callback);
+		assertEquals(BitbucketBuildState.SUCCESSFUL, notification.state);
+		assertEquals("http://global", notification.serverUrl);
+		assertEquals("global", notification.credentialsId);
+		assertEquals("folder/job", notification.job);
+	}
+
+	@Test(expected = AbortException.class)
+	public void test_invalid_state_aborts() throws Exception {
+		step("DONE", sha1, null).newNotification(run, env, callback);
+	}
+
+	@Test
+	public void test_commit_falls_back_to_git_commit() throws Exception {
+		env.put("GIT_COMMIT", sha1);
+		assertEquals(sha1, step("FAILED", null, null)
+			.newNotification(run, env, callback).commitSha1);
+		assertEquals("abc", step("FAILED", " abc ", null)
+			.newNotification(run, env, callback).commitSha1);
+	}
+
+	@Test(expected = AbortException.class)
+	public void test_missing_commit_aborts() throws Exception {
+		step("FAILED", null, null).newNotification(run, env, callback);
+	}
+
+	@Test
+	public void test_named_server_is_used() throws Exception {
+		BitbucketServer server = new BitbucketServer(
+			"main", "http://main/", null, true, 0, 0, 0, 0, 0, 0, 0, null, null);
+		BitbucketServers.get().configure(
+			Collections.singletonList(server), "global", HttpTimeouts.DEFAULT);
+
+		BitbucketNotification notification
+			= step("INPROGRESS", sha1, "main").newNotification(run, env, callback);
+		assertSame(server, notification.definition);
+		assertEquals("http://main", notification.serverUrl);
+		assertEquals("global", notification.credentialsId);
+		assertTrue(notification.ignoreUnverifiedSSL);
+	}
+
+	@Test(expected = AbortException.class)
+	public void test_unknown_server_aborts() throws Exception {
+		step("INPROGRESS", sha1, "other").newNotification(run, env, callback);
+	}
+}
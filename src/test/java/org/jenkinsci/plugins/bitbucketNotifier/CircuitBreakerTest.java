@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+	@Test
+	public void test_opens_after_consecutive_failures() {
+		CircuitBreaker breaker = new CircuitBreaker("http://localhost");
+		assertEquals(0, breaker.tryAcquire());
+		assertFalse(breaker.onFailure(2, 60000));
+		assertEquals(0, breaker.tryAcquire());
+		assertTrue(breaker.onFailure(2, 60000));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire() > 0);
+	}
+
+	@Test
+	public void test_success_resets_failures() {
+		CircuitBreaker breaker = new CircuitBreaker("http://localhost");
+		breaker.tryAcquire();
+		breaker.onFailure(2, 60000);
+		breaker.tryAcquire();
+		assertFalse(breaker.onSuccess());
+		breaker.tryAcquire();
+		assertFalse(breaker.onFailure(2, 60000));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void test_half_open_lets_one_probe_through() {
+		CircuitBreaker breaker = new CircuitBreaker("http://localhost");
+		breaker.tryAcquire();
+		assertTrue(breaker.onFailure(1, 0));
+
+		assertEquals(0, breaker.tryAcquire());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire() > 0);
+
+		// a failed probe opens the breaker again
+		assertTrue(breaker.onFailure(1, 60000));
+		assertTrue(breaker.tryAcquire() > 0);
+	}
+
+	@Test
+	public void test_successful_probe_closes() {
+		CircuitBreaker breaker = new CircuitBreaker("http://localhost");
+		breaker.tryAcquire();
+		breaker.onFailure(1, 0);
+		assertEquals(0, breaker.tryAcquire());
+		assertTrue(breaker.onSuccess());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertNull(breaker.getOpenedAt());
+		assertEquals(0, breaker.tryAcquire());
+	}
+
+	@Test
+	public void test_one_breaker_per_base_url() {
+		CircuitBreakers breakers = new CircuitBreakers();
+		assertSame(breakers.get("http://bitbucket/"), breakers.get("http://bitbucket"));
+		assertNotSame(breakers.get("http://bitbucket"), breakers.get("http://other"));
+		assertEquals(2, breakers.getAll().size());
+	}
+}
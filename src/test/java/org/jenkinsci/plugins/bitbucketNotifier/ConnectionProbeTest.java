@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ConnectionProbeTest
+{
+	@Test
+	public void test_targets_with_the_same_connection_are_equal() {
+		ConnectionProbe.Target target = new ConnectionProbe.Target(
+			"https://bitbucket", null, false, HttpTimeouts.DEFAULT);
+		Set<ConnectionProbe.Target> targets = new HashSet<ConnectionProbe.Target>(Arrays.asList(
+			target,
+			new ConnectionProbe.Target("https://bitbucket", "", false,
+				HttpTimeouts.DEFAULT.overriddenBy(1, 2, 3, 0)),
+			new ConnectionProbe.Target("https://bitbucket", "creds", false, HttpTimeouts.DEFAULT),
+			new ConnectionProbe.Target("https://bitbucket", null, true, HttpTimeouts.DEFAULT)));
+		assertEquals(3, targets.size());
+		assertTrue(targets.contains(target));
+	}
+
+	@Test
+	public void test_format() {
+		String text = ConnectionProbe.format(Arrays.asList(
+			new ConnectionProbe.Stage("DNS lookup", 1500000, "127.0.0.1", null),
+			new ConnectionProbe.Stage("TCP connect", 250000, null, null),
+			new ConnectionProbe.Stage("TLS handshake", 0, null, "handshake failed")));
+		assertEquals(String.format("DNS lookup %.1f ms (127.0.0.1), TCP connect %.1f ms, "
+				+ "TLS handshake %.1f ms (handshake failed)", 1.5, 0.25, 0.0),
+			text);
+	}
+}
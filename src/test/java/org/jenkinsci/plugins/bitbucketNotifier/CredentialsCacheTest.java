@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+
+import javax.net.ssl.SSLContext;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Jenkins.class, CredentialsProvider.class})
+public class CredentialsCacheTest
+{
+	CredentialsCache cache;
+	StandardCredentials credentials;
+
+	@Before
+	public void setUp() {
+		PowerMockito.mockStatic(Jenkins.class);
+		Jenkins jenkins = mock(Jenkins.class);
+		when(Jenkins.getInstance()).thenReturn(jenkins);
+
+		credentials = mock(StandardCredentials.class);
+		when(credentials.getId()).thenReturn("credentials");
+		PowerMockito.mockStatic(CredentialsProvider.class);
+		when(CredentialsProvider.lookupCredentials(Credentials.class, jenkins, ACL.SYSTEM))
+				.thenReturn(Collections.<Credentials>singletonList(credentials));
+
+		cache = CredentialsCache.get();
+		cache.invalidate();
+	}
+
+	private static void verifyLookups(int times) {
+		PowerMockito.verifyStatic(times(times));
+		CredentialsProvider.lookupCredentials(
+				eq(Credentials.class), any(ItemGroup.class), any(Authentication.class));
+	}
+
+	@Test
+	public void test_credentials_are_looked_up_once_per_id() {
+		assertSame(credentials, cache.getCredentials("credentials"));
+		assertSame(credentials, cache.getCredentials("credentials"));
+		assertNull(cache.getAuthorizationHeader("credentials"));
+		verifyLookups(1);
+
+		assertNull(cache.getCredentials("other"));
+		assertNull(cache.getCredentials("other"));
+		verifyLookups(2);
+	}
+
+	@Test
+	public void test_blank_id_is_not_looked_up() {
+		assertNull(cache.getCredentials(null));
+		assertNull(cache.getCredentials(""));
+		verifyLookups(0);
+	}
+
+	@Test
+	public void test_ssl_context_is_shared() throws Exception {
+		SSLContext context = cache.getSslContext("credentials", true);
+		assertNotNull(context);
+		assertSame(context, cache.getSslContext("credentials", true));
+		assertNull(cache.getSslContext("credentials", false));
+		verifyLookups(1);
+	}
+
+	@Test
+	public void test_invalidate_drops_credentials_and_ssl_contexts() throws Exception {
+		SSLContext before = cache.getSslContext("credentials", true);
+		cache.invalidate();
+
+		assertNotSame(before, cache.getSslContext("credentials", true));
+		verifyLookups(2);
+	}
+
+	@Test
+	public void test_credentials_change_drops_credentials_and_ssl_contexts() throws Exception {
+		SSLContext before = cache.getSslContext("credentials", true);
+		new BitbucketNotifierLifecycle.CredentialsListener()
+				.onChange(mock(SystemCredentialsProvider.class), null);
+
+		assertNotSame(before, cache.getSslContext("credentials", true));
+		verifyLookups(2);
+	}
+
+	@Test
+	public void test_other_changes_keep_credentials() throws Exception {
+		SSLContext before = cache.getSslContext("credentials", true);
+		new BitbucketNotifierLifecycle.CredentialsListener()
+				.onChange(mock(Saveable.class), null);
+
+		assertSame(before, cache.getSslContext("credentials", true));
+		verifyLookups(1);
+	}
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import static org.jenkinsci.plugins.bitbucketNotifier.TestNotification.notification;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class DeduplicationCacheTest
+{
+	@Test
+	public void test_exact_repeat_is_unchanged() {
+		DeduplicationCache cache = new DeduplicationCache(64);
+		BitbucketNotification sent = notification("a").payload("{\"state\":\"SUCCESSFUL\"}").build();
+		assertFalse(cache.isUnchanged(sent));
+		cache.onAccepted(sent);
+
+		assertTrue(cache.isUnchanged(notification("a").payload("{\"state\":\"SUCCESSFUL\"}").build()));
+		assertFalse(cache.isUnchanged(notification("a").payload("{\"state\":\"FAILED\"}").build()));
+		assertFalse(cache.isUnchanged(notification("b").payload("{\"state\":\"SUCCESSFUL\"}").build()));
+		assertFalse(cache.isUnchanged(notification("a").key("other").payload("{\"state\":\"SUCCESSFUL\"}").build()));
+	}
+
+	@Test
+	public void test_servers_on_one_host_are_apart() {
+		DeduplicationCache cache = new DeduplicationCache(64);
+		cache.onAccepted(notification("a").server("http://localhost/first").build());
+		assertTrue(cache.isUnchanged(notification("a").server("http://localhost/first").build()));
+		assertFalse(cache.isUnchanged(notification("a").server("http://localhost/second").build()));
+	}
+
+	@Test
+	public void test_newer_status_replaces_repeat() {
+		DeduplicationCache cache = new DeduplicationCache(64);
+		cache.onAccepted(notification("a").payload("first").build());
+		cache.onAccepted(notification("a").payload("second").build());
+
+		// Bitbucket has the second status, so the first one must be sent again
+		assertFalse(cache.isUnchanged(notification("a").payload("first").build()));
+		assertTrue(cache.isUnchanged(notification("a").payload("second").build()));
+	}
+
+	@Test
+	public void test_forget() {
+		DeduplicationCache cache = new DeduplicationCache(64);
+		cache.onAccepted(notification("a").payload("payload").build());
+		cache.forget(notification("a").payload("other").build());
+		assertFalse(cache.isUnchanged(notification("a").payload("payload").build()));
+	}
+
+	@Test
+	public void test_entries_expire() {
+		DeduplicationCache cache = new DeduplicationCache(64);
+		cache.configure(1);
+		long now = System.currentTimeMillis();
+		cache.put(1, 2, now);
+		assertTrue(cache.isUnchanged(1, 2, now + 59000));
+		assertFalse(cache.isUnchanged(1, 2, now + 62000));
+	}
+
+	@Test
+	public void test_full_set_replaces_entry_closest_to_expiry() {
+		DeduplicationCache cache = new DeduplicationCache(DeduplicationCache.WAYS);
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= DeduplicationCache.WAYS; i++) {
+			cache.put(i, i, now + i * 1000);
+		}
+		cache.put(100, 100, now + 100000);
+		assertFalse(cache.isUnchanged(1, 1, now));
+		for (int i = 2; i <= DeduplicationCache.WAYS; i++) {
+			assertTrue(cache.isUnchanged(i, i, now));
+		}
+		assertTrue(cache.isUnchanged(100, 100, now));
+	}
+
+	@Test
+	public void test_disabled() {
+		DeduplicationCache cache = new DeduplicationCache(64);
+		cache.configure(0);
+		assertFalse(cache.isEnabled());
+		cache.onAccepted(notification("a").payload("payload").build());
+		assertFalse(cache.isUnchanged(notification("a").payload("payload").build()));
+	}
+}
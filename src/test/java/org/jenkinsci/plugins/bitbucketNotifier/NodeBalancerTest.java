@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NodeBalancerTest
+{
+	private static final long MILLI = 1000000;
+
+	static NodeBalancer balancer(NodeSelection selection) {
+		return new NodeBalancer("main", "https://bitbucket/rest/api",
+			Arrays.asList("https://node1", "https://node2/", "https://node3/other"),
+			selection);
+	}
+
+	@Test
+	public void test_node_takes_path_of_base_url() {
+		NodeBalancer balancer = balancer(NodeSelection.LEAST_OUTSTANDING);
+		assertEquals("https://node1/rest/api", balancer.getNodes().get(0).getUrl());
+		assertEquals("https://node2/rest/api", balancer.getNodes().get(1).getUrl());
+		assertEquals("https://node3/other", balancer.getNodes().get(2).getUrl());
+	}
+
+	@Test
+	public void test_least_outstanding_spreads_requests() {
+		NodeBalancer balancer = balancer(NodeSelection.LEAST_OUTSTANDING);
+		NodeBalancer.Node first = balancer.acquire();
+		NodeBalancer.Node second = balancer.acquire();
+		NodeBalancer.Node third = balancer.acquire();
+		assertNotSame(first, second);
+		assertNotSame(second, third);
+		assertNotSame(first, third);
+
+		balancer.release(second, MILLI, false);
+		assertSame(second, balancer.acquire());
+	}
+
+	@Test
+	public void test_latency_weighted_prefers_fast_node() {
+		NodeBalancer balancer = balancer(NodeSelection.LATENCY_WEIGHTED);
+		NodeBalancer.Node[] nodes = new NodeBalancer.Node[3];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = balancer.acquire();
+		}
+		balancer.release(nodes[0], 100 * MILLI, false);
+		balancer.release(nodes[1], 10 * MILLI, false);
+		balancer.release(nodes[2], 200 * MILLI, false);
+
+		assertSame(nodes[1], balancer.acquire());
+		// in flight, 2 x 10 ms still beats 100 ms
+		assertSame(nodes[1], balancer.acquire());
+	}
+
+	@Test
+	public void test_failing_node_is_left_out() {
+		NodeBalancer balancer = new NodeBalancer("main", "https://bitbucket",
+			Arrays.asList("https://node1", "https://node2"), NodeSelection.LEAST_OUTSTANDING);
+		NodeBalancer.Node bad = balancer.getNodes().get(0);
+		NodeBalancer.Node good = balancer.getNodes().get(1);
+		for (int i = 0; i < NodeBalancer.FAILURE_THRESHOLD; i++) {
+			bad.outstanding++;
+			balancer.release(bad, MILLI, true);
+		}
+		assertNotNull(bad.getEjectedUntil());
+
+		for (int i = 0; i < 5; i++) {
+			assertSame(good, balancer.acquire());
+		}
+
+		// once it answers again, it is back
+		bad.outstanding++;
+		balancer.release(bad, MILLI, false);
+		assertNull(bad.getEjectedUntil());
+		assertSame(bad, balancer.acquire());
+	}
+
+	@Test
+	public void test_some_node_is_tried_if_all_are_left_out() {
+		NodeBalancer balancer = balancer(NodeSelection.LEAST_OUTSTANDING);
+		for (NodeBalancer.Node node : balancer.getNodes()) {
+			for (int i = 0; i < NodeBalancer.FAILURE_THRESHOLD; i++) {
+				node.outstanding++;
+				balancer.release(node, MILLI, true);
+			}
+		}
+		assertNotNull(balancer.acquire());
+	}
+
+	@Test
+	public void test_ejected_node_gets_trial_once_ejection_is_over() {
+		NodeBalancer balancer = new NodeBalancer("main", "https://bitbucket",
+			Arrays.asList("https://node1", "https://node2"), NodeSelection.LEAST_OUTSTANDING);
+		NodeBalancer.Node bad = balancer.getNodes().get(0);
+		NodeBalancer.Node good = balancer.getNodes().get(1);
+		for (int i = 0; i < NodeBalancer.FAILURE_THRESHOLD; i++) {
+			bad.outstanding++;
+			balancer.release(bad, MILLI, true);
+		}
+		assertSame(good, balancer.acquire());
+		balancer.release(good, MILLI, false);
+
+		// the ejection is over
+		bad.ejectedUntil = System.currentTimeMillis() - 1;
+		NodeBalancer.Node trial = balancer.acquire();
+		assertSame(bad, trial);
+		// one trial at a time
+		assertSame(good, balancer.acquire());
+		balancer.release(trial, MILLI, false);
+		assertEquals(0, bad.getConsecutiveFailures());
+	}
+
+	@Test
+	public void test_failed_trial_leaves_node_out_again() {
+		NodeBalancer balancer = new NodeBalancer("main", "https://bitbucket",
+			Arrays.asList("https://node1", "https://node2"), NodeSelection.LEAST_OUTSTANDING);
+		NodeBalancer.Node bad = balancer.getNodes().get(0);
+		for (int i = 0; i < NodeBalancer.FAILURE_THRESHOLD; i++) {
+			bad.outstanding++;
+			balancer.release(bad, MILLI, true);
+		}
+		bad.ejectedUntil = System.currentTimeMillis() - 1;
+		assertSame(bad, balancer.acquire());
+		balancer.release(bad, MILLI, true);
+		assertNotNull(bad.getEjectedUntil());
+	}
+
+	@Test
+	public void test_old_latency_counts_less() {
+		NodeBalancer balancer = new NodeBalancer("main", "https://bitbucket",
+			Arrays.asList("https://node1", "https://node2"), NodeSelection.LATENCY_WEIGHTED);
+		NodeBalancer.Node slow = balancer.getNodes().get(0);
+		NodeBalancer.Node fast = balancer.getNodes().get(1);
+		slow.outstanding++;
+		balancer.release(slow, 100 * MILLI, false);
+		fast.outstanding++;
+		balancer.release(fast, 10 * MILLI, false);
+		assertSame(fast, balancer.acquire());
+		balancer.release(fast, 10 * MILLI, false);
+
+		// measured long ago, the spike no longer keeps the node out
+		slow.latencySampled -= 10 * NodeBalancer.LATENCY_HALF_LIFE_MILLIS;
+		assertSame(slow, balancer.acquire());
+	}
+}
@@ -0,0 +1,271 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.BuildListener;
+import jenkins.model.Jenkins;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.mockito.Mockito.*;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.jenkinsci.plugins.bitbucketNotifier.TestNotification.notification;
+
+/**
+ * Sends notifications through the dispatcher to a local stand-in for
+ * Bitbucket, which answers with the status codes a test lines up. Commits
+ * whose SHA1 starts with "slow" or "busy" are answered after a delay, those
+ * starting with "failing" are rejected with 400.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Jenkins.class})
+public class NotificationDispatcherTest
+{
+	NotificationDispatcher dispatcher;
+	HttpServer server;
+	ExecutorService serverExecutor;
+	String serverUrl;
+
+	/** status codes of the next answers, 200 once there are none left. */
+	final BlockingQueue<Integer> statusCodes = new LinkedBlockingQueue<Integer>();
+	final AtomicInteger requests = new AtomicInteger();
+	final AtomicInteger inFlight = new AtomicInteger();
+	final AtomicInteger maxInFlight = new AtomicInteger();
+
+	/** the commits in the order their outcome was reported. */
+	final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() throws Exception {
+		PowerMockito.mockStatic(Jenkins.class);
+		Jenkins jenkins = mock(Jenkins.class);
+		when(Jenkins.getInstance()).thenReturn(jenkins);
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				int concurrent = inFlight.incrementAndGet();
+				synchronized (maxInFlight) {
+					maxInFlight.set(Math.max(maxInFlight.get(), concurrent));
+				}
+				try {
+					String path = exchange.getRequestURI().getPath();
+					String commitSha1 = path.substring("/commit/".length(), path.indexOf("/statuses"));
+					if (commitSha1.startsWith("slow")) {
+						Thread.sleep(1000);
+					} else if (commitSha1.startsWith("busy")) {
+						Thread.sleep(100);
+					}
+					if (commitSha1.startsWith("failing")) {
+						byte[] body = "rejected".getBytes("UTF-8");
+						exchange.sendResponseHeaders(400, body.length);
+						exchange.getResponseBody().write(body);
+					} else {
+						Integer statusCode = statusCodes.poll();
+						exchange.sendResponseHeaders(statusCode != null ? statusCode : 200, -1);
+					}
+				} catch (InterruptedException e) {
+					exchange.sendResponseHeaders(500, -1);
+				} finally {
+					inFlight.decrementAndGet();
+					exchange.close();
+				}
+			}
+		});
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+		// a server of its own keeps the breakers and caches of other tests out
+		serverUrl = "http://localhost:" + server.getAddress().getPort();
+
+		dispatcher = NotificationDispatcher.get();
+	}
+
+	@After
+	public void tearDown() {
+		dispatcher.getCircuitBreakers().configure(
+				CircuitBreakers.DEFAULT_FAILURE_THRESHOLD,
+				CircuitBreakers.DEFAULT_OPEN_SECONDS);
+		server.stop(0);
+		serverExecutor.shutdownNow();
+		BitbucketClientRegistry.get().shutdown();
+	}
+
+	@Test
+	public void test_result_is_reported() throws Exception {
+		RecordingCallback callback = new RecordingCallback();
+		dispatcher.deliver(notification("sha1").server(serverUrl).build(callback));
+
+		assertEquals(1, requests.get());
+		assertEquals(1, callback.results.size());
+		assertTrue(callback.results.get(0).indicatesSuccess);
+		assertEquals(200, callback.results.get(0).statusCode);
+		assertTrue(callback.retries.isEmpty());
+	}
+
+	@Test
+	public void test_queued_result_is_reported() throws Exception {
+		RecordingCallback callback = new RecordingCallback();
+		statusCodes.add(400);
+		dispatcher.submit(notification("sha1").server(serverUrl).build(callback));
+
+		assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+		assertEquals(1, requests.get());
+		assertFalse(callback.results.get(0).indicatesSuccess);
+		assertEquals(400, callback.results.get(0).statusCode);
+		assertTrue(callback.retries.isEmpty());
+	}
+
+	@Test
+	public void test_unavailable_is_retried_once() throws Exception {
+		RecordingCallback callback = new RecordingCallback();
+		statusCodes.add(503);
+		dispatcher.deliver(notification("sha1").server(serverUrl).build(callback));
+
+		assertEquals(2, requests.get());
+		assertEquals(Collections.singletonList("HTTP 503"), callback.retries);
+		assertEquals(1, callback.results.size());
+		assertTrue(callback.results.get(0).indicatesSuccess);
+	}
+
+	@Test
+	public void test_open_breaker_fails_fast() throws Exception {
+		dispatcher.getCircuitBreakers().configure(2, 60);
+		statusCodes.addAll(Collections.nCopies(10, 503));
+
+		RecordingCallback first = new RecordingCallback();
+		dispatcher.deliver(notification("sha1").server(serverUrl).build(first));
+		// the second failure opens the breaker before the next retry
+		assertEquals(2, requests.get());
+		assertEquals(2, first.retries.size());
+		assertFalse(first.results.get(0).indicatesSuccess);
+		assertTrue(first.results.get(0).message.contains("circuit breaker"));
+
+		RecordingCallback second = new RecordingCallback();
+		long start = System.nanoTime();
+		dispatcher.deliver(notification("sha2").server(serverUrl).build(second));
+		assertEquals(2, requests.get());
+		assertTrue(second.retries.isEmpty());
+		assertFalse(second.results.get(0).indicatesSuccess);
+		assertTrue(second.results.get(0).message.contains("circuit breaker"));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	public void test_parallel_log_follows_commit_order() throws Exception {
+		BitbucketNotifier.DescriptorImpl descriptor = mock(BitbucketNotifier.DescriptorImpl.class);
+		when(descriptor.getTimeouts()).thenReturn(HttpTimeouts.DEFAULT);
+		BitbucketNotifier notifier = spy(new BitbucketNotifier(
+				serverUrl, null, false, null, true, null, false, false));
+		doReturn(descriptor).when(notifier).getDescriptor();
+
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		BuildListener listener = mock(BuildListener.class);
+		when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+		HttpEntity payload = new StringEntity("{}", ContentType.APPLICATION_JSON);
+		notifier.notifyInParallel(listener, BitbucketBuildState.SUCCESSFUL, "key", "job",
+				payload, Arrays.asList("slow1", "failing1", "sha1"));
+
+		// the slow commit is done last but still logged first
+		assertEquals(Arrays.asList(
+				"Notified Bitbucket for commit with id slow1",
+				"Failed to notify Bitbucket for commit failing1 (rejected)",
+				"Notified Bitbucket for commit with id sha1"),
+				Arrays.asList(log.toString().trim().split("\\r?\\n")));
+	}
+
+	@Test
+	public void test_failing_or_slow_commit_does_not_delay_others() throws Exception {
+		List<RecordingCallback> callbacks = new ArrayList<RecordingCallback>();
+		List<BitbucketNotification> notifications = new ArrayList<BitbucketNotification>();
+		for (String commitSha1 : Arrays.asList("slow1", "failing1", "sha1", "sha2")) {
+			RecordingCallback callback = new RecordingCallback();
+			callbacks.add(callback);
+			notifications.add(notification(commitSha1).server(serverUrl).build(callback));
+		}
+		dispatcher.deliverAll(notifications);
+
+		assertEquals("slow1", completed.get(completed.size() - 1));
+		assertTrue(callbacks.get(0).results.get(0).indicatesSuccess);
+		assertEquals(400, callbacks.get(1).results.get(0).statusCode);
+		assertTrue(callbacks.get(2).results.get(0).indicatesSuccess);
+		assertTrue(callbacks.get(3).results.get(0).indicatesSuccess);
+	}
+
+	@Test
+	public void test_parallel_requests_are_capped_per_server() throws Exception {
+		List<BitbucketNotification> notifications = new ArrayList<BitbucketNotification>();
+		for (int i = 0; i < 12; i++) {
+			notifications.add(notification("busy" + i).server(serverUrl).build(new RecordingCallback()));
+		}
+		dispatcher.deliverAll(notifications);
+
+		assertEquals(12, completed.size());
+		assertTrue(maxInFlight.get() > 1);
+		assertTrue(maxInFlight.get() <= ServerConcurrencyLimiter.DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * Keeps the outcome reported for a notification.
+	 */
+	class RecordingCallback extends NotificationCallback {
+
+		final List<NotificationResult> results
+				= Collections.synchronizedList(new ArrayList<NotificationResult>());
+		final List<String> retries
+				= Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(1);
+
+		RecordingCallback() {
+			super(System.out);
+		}
+
+		@Override
+		void onResult(BitbucketNotification notification, NotificationResult result) {
+			super.onResult(notification, result);
+			results.add(result);
+			completed.add(notification.commitSha1);
+			done.countDown();
+		}
+
+		@Override
+		void onRetry(BitbucketNotification notification, String reason, long delayMillis) {
+			super.onRetry(notification, reason, delayMillis);
+			retries.add(reason);
+		}
+
+		@Override
+		void onException(String commitSha1, Exception e) {
+			super.onException(commitSha1, e);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.jenkinsci.plugins.bitbucketNotifier.TestNotification.notification;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationJournalTest
+{
+	private static final String SHA_A = "0123456789abcdef0123456789abcdef01234567";
+	private static final String SHA_B = "fedcba9876543210fedcba9876543210fedcba98";
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void test_entry_round_trip() throws IOException {
+		NotificationJournal journal = new NotificationJournal(directory);
+		journal.record(notification(SHA_A.toUpperCase()).server("http://localhost/bitbucket")
+				.key("key-folder/job").job("folder/job").build(),
+				JournalEntry.Outcome.ACCEPTED, 204, 1500000);
+
+		List<JournalEntry> entries = journal.find(SHA_A, null, 10);
+		assertEquals(1, entries.size());
+		JournalEntry entry = entries.get(0);
+		assertEquals("http://localhost/bitbucket", entry.getServer());
+		assertEquals(SHA_A, entry.getCommit());
+		assertEquals("key-folder/job", entry.getKey());
+		assertEquals("folder/job", entry.getJob());
+		assertEquals(BitbucketBuildState.SUCCESSFUL, entry.getState());
+		assertEquals(JournalEntry.Outcome.ACCEPTED, entry.getOutcome());
+		assertEquals(204, entry.getStatusCode());
+		assertEquals(1500, entry.getLatencyMicros());
+		assertTrue(entry.getTimestamp() > 0);
+	}
+
+	@Test
+	public void test_find_by_commit_and_job() throws IOException {
+		NotificationJournal journal = new NotificationJournal(directory);
+		journal.record(notification(SHA_A).job("a").build(), JournalEntry.Outcome.REJECTED, 500, 1000);
+		journal.record(notification(SHA_B).job("b").build(), JournalEntry.Outcome.ACCEPTED, 204, 1000);
+		journal.record(notification(SHA_A).job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, 1000);
+		journal.record(notification(SHA_A).job("b").build(), JournalEntry.Outcome.SKIPPED, 0, -1);
+
+		List<JournalEntry> byCommit = journal.find(SHA_A, null, 10);
+		assertEquals(3, byCommit.size());
+		// newest first
+		assertEquals(JournalEntry.Outcome.SKIPPED, byCommit.get(0).getOutcome());
+		assertEquals(-1, byCommit.get(0).getLatencyMicros());
+		assertEquals(JournalEntry.Outcome.REJECTED, byCommit.get(2).getOutcome());
+
+		assertEquals(2, journal.find(null, "b", 10).size());
+		assertEquals(2, journal.find(SHA_A, "a", 10).size());
+		assertEquals(0, journal.find(SHA_B, "a", 10).size());
+		assertEquals(0, journal.find(null, "c", 10).size());
+		assertEquals(4, journal.find(null, null, 10).size());
+		assertEquals(1, journal.find(null, null, 1).size());
+	}
+
+	@Test
+	public void test_find_by_abbreviated_commit() throws IOException {
+		NotificationJournal journal = new NotificationJournal(directory);
+		journal.record(notification(SHA_A).job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+		journal.record(notification(SHA_B).job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+		journal.record(notification("0123abc").job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+
+		assertEquals(2, journal.find("0123", null, 10).size());
+		assertEquals(1, journal.find("0123456", null, 10).size());
+		assertEquals("0123abc", journal.find("0123a", null, 10).get(0).getCommit());
+	}
+
+	@Test
+	public void test_commit_that_is_not_hexadecimal() throws IOException {
+		NotificationJournal journal = new NotificationJournal(directory);
+		journal.record(notification("feature/branch").job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+
+		List<JournalEntry> entries = journal.find("feature/branch", null, 10);
+		assertEquals(1, entries.size());
+		assertEquals("feature/branch", entries.get(0).getCommit());
+		assertEquals(0, journal.find("feature", null, 10).size());
+	}
+
+	@Test
+	public void test_entries_survive_reopening() throws IOException {
+		NotificationJournal journal = new NotificationJournal(directory, 8);
+		for (int i = 0; i < 5; i++) {
+			journal.record(notification(SHA_A).job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, i);
+		}
+		journal.close();
+
+		NotificationJournal reopened = new NotificationJournal(directory, 8);
+		assertEquals(5, reopened.find(SHA_A, "a", 10).size());
+		reopened.record(notification(SHA_B).job("b").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+		assertEquals(1, reopened.find(SHA_B, "b", 10).size());
+		assertEquals(6, reopened.find(null, null, 10).size());
+	}
+
+	@Test
+	public void test_oldest_segments_are_deleted() throws IOException {
+		NotificationJournal journal = new NotificationJournal(directory, 4);
+		journal.setMaxSegments(2);
+		for (int i = 0; i < 4; i++) {
+			journal.record(notification(SHA_A).job("a").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+		}
+		for (int i = 0; i < 8; i++) {
+			journal.record(notification(SHA_B).job("b").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+		}
+		journal.record(notification(SHA_B).job("b").build(), JournalEntry.Outcome.ACCEPTED, 204, 0);
+
+		assertEquals(0, journal.find(SHA_A, null, 100).size());
+		assertEquals(5, journal.find(SHA_B, null, 100).size());
+		assertEquals(4, directory.listFiles().length);
+	}
+
+	@Test
+	public void test_outcome_of_result() {
+		assertEquals(JournalEntry.Outcome.ACCEPTED,
+				JournalEntry.Outcome.of(NotificationResult.newSuccess(204)));
+		assertEquals(JournalEntry.Outcome.SKIPPED,
+				JournalEntry.Outcome.of(NotificationResult.newSkipped("superseded")));
+		assertEquals(JournalEntry.Outcome.TIMED_OUT,
+				JournalEntry.Outcome.of(NotificationResult.newTimeout("timed out")));
+		assertEquals(JournalEntry.Outcome.REJECTED,
+				JournalEntry.Outcome.of(NotificationResult.newFailure(500, "error")));
+		assertEquals(JournalEntry.Outcome.NOT_SENT,
+				JournalEntry.Outcome.of(NotificationResult.newFailure("no credentials")));
+	}
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NotificationMetricsTest
+{
+	@Test
+	public void test_histogram_buckets_are_cumulative() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(7));
+		histogram.record(TimeUnit.MINUTES.toNanos(1));
+
+		long[] counts = histogram.getCumulativeCounts();
+		assertEquals(LatencyHistogram.BOUNDS_MILLIS.length + 1, counts.length);
+		assertEquals(2, counts[0]);
+		assertEquals(2, counts[2]);
+		assertEquals(3, counts[3]);
+		assertEquals(3, counts[counts.length - 2]);
+		assertEquals(4, counts[counts.length - 1]);
+	}
+
+	@Test
+	public void test_prometheus_format() {
+		NotificationMetrics metrics = NotificationMetrics.get();
+		metrics.recordResponse("http://metrics.example.com/rest", 201,
+				TimeUnit.MILLISECONDS.toNanos(3));
+		metrics.recordRetry("http://metrics.example.com");
+
+		String text = metrics.toPrometheus();
+		assertTrue(text.contains("# TYPE bitbucket_notifier_request_duration_seconds histogram\n"));
+		assertTrue(text.contains("bitbucket_notifier_responses_total"
+				+ "{server=\"http://metrics.example.com:80\",code=\"201\"} 1\n"));
+		assertTrue(text.contains("bitbucket_notifier_retries_total"
+				+ "{server=\"http://metrics.example.com:80\"} 1\n"));
+		assertTrue(text.contains("bitbucket_notifier_request_duration_seconds_bucket"
+				+ "{server=\"http://metrics.example.com:80\",le=\"+Inf\"} 1\n"));
+		assertTrue(text.contains("bitbucket_notifier_queue_depth 0\n"));
+	}
+}
@@ -0,0 +1,150 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.jenkinsci.plugins.bitbucketNotifier.TestNotification.notification;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationOutboxTest
+{
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("outbox", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void test_outstanding_notifications_survive_restart() throws IOException {
+		NotificationOutbox outbox = new NotificationOutbox(directory);
+		BitbucketNotification sent = notification("a").credentials("creds", true).build();
+		BitbucketNotification pending = notification("b").credentials("creds", true)
+				.job("folder/job").build();
+		outbox.record(sent);
+		outbox.record(pending);
+		outbox.acknowledge(sent);
+		outbox.close();
+
+		List<BitbucketNotification> recovered = new NotificationOutbox(directory)
+				.recover(new NotificationCallback(System.out));
+		assertEquals(1, recovered.size());
+		BitbucketNotification replayed = recovered.get(0);
+		assertEquals("b", replayed.commitSha1);
+		assertEquals("creds", replayed.credentialsId);
+		assertTrue(replayed.ignoreUnverifiedSSL);
+		assertEquals("folder/job", replayed.job);
+		assertEquals(BitbucketBuildState.SUCCESSFUL, replayed.state);
+		assertEquals("{\"state\":\"SUCCESSFUL\"}", EntityUtils.toString(replayed.entity));
+		assertTrue(replayed.outboxId != 0);
+	}
+
+	@Test
+	public void test_acknowledged_replay_is_not_sent_again() throws IOException {
+		NotificationOutbox outbox = new NotificationOutbox(directory);
+		outbox.record(notification("a").build());
+		outbox.close();
+
+		outbox = new NotificationOutbox(directory);
+		BitbucketNotification replayed
+				= outbox.recover(new NotificationCallback(System.out)).get(0);
+		outbox.acknowledge(replayed);
+		outbox.close();
+
+		assertEquals(0, new NotificationOutbox(directory)
+				.recover(new NotificationCallback(System.out)).size());
+	}
+
+	@Test
+	public void test_torn_write_is_ignored() throws IOException {
+		NotificationOutbox outbox = new NotificationOutbox(directory);
+		outbox.record(notification("a").build());
+		outbox.record(notification("b").build());
+		outbox.close();
+
+		RandomAccessFile file = new RandomAccessFile(
+				new File(directory, NotificationOutbox.FILE_NAME), "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		List<BitbucketNotification> recovered = new NotificationOutbox(directory)
+				.recover(new NotificationCallback(System.out));
+		assertEquals(1, recovered.size());
+		assertEquals("a", recovered.get(0).commitSha1);
+	}
+
+	@Test
+	public void test_compaction_keeps_outstanding() throws IOException {
+		NotificationOutbox outbox = new NotificationOutbox(directory, 16 * 1024);
+		BitbucketNotification pending = notification("pending").build();
+		outbox.record(pending);
+		for (int i = 0; i < 2000; i++) {
+			BitbucketNotification sent = notification("sent").build();
+			outbox.record(sent);
+			outbox.acknowledge(sent);
+		}
+		assertTrue(new File(directory, NotificationOutbox.FILE_NAME).length()
+				< 16 * 1024);
+		outbox.close();
+
+		List<BitbucketNotification> recovered = new NotificationOutbox(directory)
+				.recover(new NotificationCallback(System.out));
+		assertEquals(1, recovered.size());
+		assertEquals("pending", recovered.get(0).commitSha1);
+	}
+
+	@Test
+	public void test_newer_notification_drops_interrupted_one() throws IOException {
+		NotificationOutbox outbox = new NotificationOutbox(directory);
+		// never acknowledged, e.g. as the build was aborted while sending it
+		outbox.record(notification("a").state(BitbucketBuildState.INPROGRESS).build());
+		outbox.record(notification("b").state(BitbucketBuildState.INPROGRESS).build());
+		BitbucketNotification failed = notification("a").state(BitbucketBuildState.FAILED).build();
+		outbox.record(failed);
+		outbox.acknowledge(failed);
+		outbox.close();
+
+		List<BitbucketNotification> recovered = new NotificationOutbox(directory)
+				.recover(new NotificationCallback(System.out));
+		assertEquals(1, recovered.size());
+		assertEquals("b", recovered.get(0).commitSha1);
+	}
+
+	@Test
+	public void test_newer_notification_after_restart_drops_older() throws IOException {
+		NotificationOutbox outbox = new NotificationOutbox(directory);
+		outbox.record(notification("a").state(BitbucketBuildState.INPROGRESS).build());
+		outbox.close();
+
+		outbox = new NotificationOutbox(directory);
+		BitbucketNotification successful
+				= notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		outbox.record(successful);
+		assertEquals(1, outbox.size());
+		outbox.acknowledge(successful);
+		outbox.close();
+
+		assertEquals(0, new NotificationOutbox(directory)
+				.recover(new NotificationCallback(System.out)).size());
+	}
+}
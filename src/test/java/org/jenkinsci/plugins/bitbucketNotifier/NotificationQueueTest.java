@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.jenkinsci.plugins.bitbucketNotifier.TestNotification.notification;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NotificationQueueTest
+{
+	@Test
+	public void test_fifo_order() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		BitbucketNotification first = notification("a").state(BitbucketBuildState.INPROGRESS).build();
+		BitbucketNotification second = notification("b").state(BitbucketBuildState.INPROGRESS).build();
+		assertNull(queue.offer(first));
+		assertNull(queue.offer(second));
+		assertSame(first, queue.poll(0, TimeUnit.SECONDS));
+		assertSame(second, queue.poll(0, TimeUnit.SECONDS));
+		assertNull(queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_drop_oldest() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(1, QueueFullPolicy.DROP_OLDEST);
+		BitbucketNotification first = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		BitbucketNotification second = notification("b").state(BitbucketBuildState.INPROGRESS).build();
+		assertNull(queue.offer(first));
+		NotificationQueue.Rejected rejected = queue.offer(second);
+		assertSame(first, rejected.notification);
+		assertFalse(rejected.result.indicatesSuccess);
+		assertEquals(1, queue.size());
+		assertSame(second, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_drop_inprogress_first() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(2, QueueFullPolicy.DROP_INPROGRESS_FIRST);
+		BitbucketNotification failed = notification("a").state(BitbucketBuildState.FAILED).build();
+		BitbucketNotification inprogress = notification("b").state(BitbucketBuildState.INPROGRESS).build();
+		BitbucketNotification successful = notification("c").state(BitbucketBuildState.SUCCESSFUL).build();
+		assertNull(queue.offer(failed));
+		assertNull(queue.offer(inprogress));
+		assertSame(inprogress, queue.offer(successful).notification);
+
+		// with only final states queued a new INPROGRESS is dropped itself
+		BitbucketNotification late = notification("d").state(BitbucketBuildState.INPROGRESS).build();
+		assertSame(late, queue.offer(late).notification);
+		assertSame(failed, queue.poll(0, TimeUnit.SECONDS));
+		assertSame(successful, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_requeue_ignores_capacity() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(1, QueueFullPolicy.BLOCK);
+		BitbucketNotification queued = notification("a").build();
+		BitbucketNotification retried = notification("b").build();
+		assertNull(queue.offer(queued));
+		assertNull(queue.requeue(retried));
+		assertEquals(2, queue.size());
+
+		// a newer notification for the key still supersedes the retry
+		BitbucketNotification newer = notification("b").build();
+		assertSame(retried, queue.requeue(newer).notification);
+		assertSame(queued, queue.poll(0, TimeUnit.SECONDS));
+		assertSame(newer, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_newer_state_replaces_pending() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		BitbucketNotification inprogress = notification("a").state(BitbucketBuildState.INPROGRESS).build();
+		BitbucketNotification other = notification("b").state(BitbucketBuildState.INPROGRESS).build();
+		BitbucketNotification successful = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		assertNull(queue.offer(inprogress));
+		assertNull(queue.offer(other));
+
+		NotificationQueue.Rejected rejected = queue.offer(successful);
+		assertSame(inprogress, rejected.notification);
+		assertTrue(rejected.result.skipped);
+		assertEquals(2, queue.size());
+
+		// the newer state keeps the queue position of the one it replaced
+		assertSame(successful, queue.poll(0, TimeUnit.SECONDS));
+		assertSame(other, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_older_state_never_replaces_newer() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		BitbucketNotification inprogress = notification("a").state(BitbucketBuildState.INPROGRESS).build();
+		BitbucketNotification failed = notification("a").state(BitbucketBuildState.FAILED).build();
+		assertNull(queue.offer(failed));
+		assertSame(inprogress, queue.offer(inprogress).notification);
+		assertSame(failed, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_same_key_is_not_sent_concurrently() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		BitbucketNotification inprogress = notification("a").state(BitbucketBuildState.INPROGRESS).build();
+		BitbucketNotification successful = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		assertNull(queue.offer(inprogress));
+		assertSame(inprogress, queue.poll(0, TimeUnit.SECONDS));
+		assertNull(queue.offer(successful));
+
+		assertNull(queue.poll(0, TimeUnit.SECONDS));
+		queue.complete(inprogress);
+		assertSame(successful, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_batch_takes_same_server_only() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		BitbucketNotification first = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		BitbucketNotification other = notification("b")
+			.server("http://other:7990/rest/build-status/1.0").build();
+		BitbucketNotification second = notification("c").state(BitbucketBuildState.SUCCESSFUL).build();
+		BitbucketNotification third = notification("d").state(BitbucketBuildState.SUCCESSFUL).build();
+		assertNull(queue.offer(first));
+		assertNull(queue.offer(other));
+		assertNull(queue.offer(second));
+		assertNull(queue.offer(third));
+
+		assertSame(first, queue.poll(0, TimeUnit.SECONDS));
+		List<BitbucketNotification> batch = queue.pollBatch(first, 2, 0, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList(first, second), batch);
+		assertSame(other, queue.poll(0, TimeUnit.SECONDS));
+		assertSame(third, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_batch_waits_for_window() throws InterruptedException {
+		final NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		BitbucketNotification first = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		final BitbucketNotification late = notification("b").state(BitbucketBuildState.SUCCESSFUL).build();
+		assertNull(queue.offer(first));
+		assertSame(first, queue.poll(0, TimeUnit.SECONDS));
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					queue.offer(late);
+				} catch (InterruptedException e) {
+					// test fails below
+				}
+			}
+		};
+		producer.start();
+		List<BitbucketNotification> batch = queue.pollBatch(first, 2, 10, TimeUnit.SECONDS);
+		producer.join();
+		assertEquals(Arrays.asList(first, late), batch);
+	}
+
+	@Test
+	public void test_full_lane_is_skipped() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		queue.setMaxPerLane(1);
+		BitbucketNotification first = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		BitbucketNotification second = notification("b").state(BitbucketBuildState.SUCCESSFUL).build();
+		BitbucketNotification other = notification("c").server("http://otherhost").build();
+		assertNull(queue.offer(first));
+		assertNull(queue.offer(second));
+		assertNull(queue.offer(other));
+
+		assertSame(first, queue.poll(0, TimeUnit.SECONDS));
+		// the lane of localhost is full, otherhost is not
+		assertSame(other, queue.poll(0, TimeUnit.SECONDS));
+		assertNull(queue.poll(0, TimeUnit.SECONDS));
+
+		queue.complete(first);
+		queue.releaseLane(first);
+		assertSame(second, queue.poll(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void test_named_server_has_lane_of_its_own() throws InterruptedException {
+		NotificationQueue queue = new NotificationQueue(10, QueueFullPolicy.BLOCK);
+		queue.setMaxPerLane(1);
+		BitbucketServer server = new BitbucketServer(
+			"main", "http://localhost", null, false, 2, 0, 0, 0, 0, 0, 0, null, null);
+		BitbucketNotification plain = notification("a").state(BitbucketBuildState.SUCCESSFUL).build();
+		BitbucketNotification[] named = new BitbucketNotification[3];
+		for (int i = 0; i < named.length; i++) {
+			named[i] = notification("sha" + i).server(server).build();
+		}
+		assertNull(queue.offer(plain));
+		for (BitbucketNotification notification : named) {
+			assertNull(queue.offer(notification));
+		}
+
+		assertSame(plain, queue.poll(0, TimeUnit.SECONDS));
+		// the named server allows two at a time
+		assertSame(named[0], queue.poll(0, TimeUnit.SECONDS));
+		assertSame(named[1], queue.poll(0, TimeUnit.SECONDS));
+		assertNull(queue.poll(0, TimeUnit.SECONDS));
+	}
+}
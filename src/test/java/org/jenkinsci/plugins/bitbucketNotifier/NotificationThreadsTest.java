@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NotificationThreadsTest
+{
+	@Test
+	public void test_threads_are_named_daemons() {
+		Thread thread = NotificationThreads.newThreadFactory("test #")
+			.newThread(new Runnable() {
+				public void run() {
+				}
+			});
+		assertEquals("test #1", thread.getName());
+		assertTrue(thread.isDaemon());
+	}
+
+	@Test
+	public void test_executor_runs_tasks() throws Exception {
+		ExecutorService executor = NotificationThreads.newExecutor("test #", 1);
+		try {
+			String name = executor.submit(new Callable<String>() {
+				public String call() {
+					return Thread.currentThread().getName();
+				}
+			}).get();
+			assertTrue(name.startsWith("test #"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RateLimiterTest
+{
+	@Test
+	public void test_unlimited_by_default() {
+		RateLimiter limiter = new RateLimiter("http://localhost:80", "", 0, 1);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, limiter.tryAcquire(now));
+		}
+		assertFalse(limiter.isThrottled());
+	}
+
+	@Test
+	public void test_smooths_bursts() {
+		RateLimiter limiter = new RateLimiter("http://localhost:80", "", 2, 2);
+		long now = System.currentTimeMillis();
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(500, limiter.tryAcquire(now));
+		assertEquals(0, limiter.tryAcquire(now + 500));
+	}
+
+	@Test
+	public void test_released_token_can_be_taken_again() {
+		RateLimiter limiter = new RateLimiter("http://localhost:80", "", 2, 2);
+		long now = System.currentTimeMillis();
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(0, limiter.tryAcquire(now));
+		limiter.release();
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(500, limiter.tryAcquire(now));
+
+		// never more than the bucket holds
+		limiter.release();
+		limiter.release();
+		limiter.release();
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(500, limiter.tryAcquire(now));
+	}
+
+	@Test
+	public void test_429_holds_back_for_retry_after() {
+		RateLimiter limiter = new RateLimiter("http://localhost:80", "", 0, 10);
+		long now = System.currentTimeMillis();
+		limiter.onResponse(429, "3", null, null, null, null, now);
+		assertEquals(3000, limiter.tryAcquire(now));
+		assertTrue(limiter.isThrottled());
+		assertEquals(1, limiter.getThrottledCount());
+
+		// afterwards at the reduced rate, with an empty bucket
+		assertEquals(RateLimiter.INITIAL_THROTTLED_RATE, limiter.getRate(), 0.001);
+		assertEquals(500, limiter.tryAcquire(now + 3000));
+	}
+
+	@Test
+	public void test_adaptive_rate_halves_and_recovers() {
+		RateLimiter limiter = new RateLimiter("http://localhost:80", "", 8, 10);
+		long now = System.currentTimeMillis();
+		limiter.onResponse(429, null, null, null, null, null, now);
+		assertEquals(4, limiter.getRate(), 0.001);
+		limiter.onResponse(429, null, null, null, null, null, now);
+		assertEquals(2, limiter.getRate(), 0.001);
+
+		for (int i = 0; i < 100 && limiter.getRate() < 8; i++) {
+			limiter.onResponse(201, null, null, null, null, null, now);
+		}
+		assertEquals(8, limiter.getRate(), 0.001);
+	}
+
+	@Test
+	public void test_follows_rate_limit_headers() {
+		RateLimiter limiter = new RateLimiter("http://localhost:80", "", 0, 10);
+		long now = System.currentTimeMillis();
+		limiter.onResponse(200, null, "60", "5", "1", "0", now);
+		assertEquals(5, limiter.getRate(), 0.001);
+		assertEquals(200, limiter.tryAcquire(now));
+	}
+
+	@Test
+	public void test_parse_retry_after() {
+		assertEquals(-1, RateLimiter.parseRetryAfter(null, 0));
+		assertEquals(-1, RateLimiter.parseRetryAfter("soon", 0));
+		assertEquals(120000, RateLimiter.parseRetryAfter("120", 0));
+		assertEquals(0, RateLimiter.parseRetryAfter(
+				"Thu, 01 Jan 1970 00:00:00 GMT", 1000));
+		assertEquals(1000, RateLimiter.parseRetryAfter(
+				"Thu, 01 Jan 1970 00:00:01 GMT", 0));
+	}
+}
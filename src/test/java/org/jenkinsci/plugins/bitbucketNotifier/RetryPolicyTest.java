@@ -0,0 +1,57 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.client.ClientProtocolException;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RetryPolicyTest
+{
+	@Test
+	public void test_retryable_results() {
+		assertTrue(RetryPolicy.isRetryable(NotificationResult.newFailure(503, "")));
+		assertTrue(RetryPolicy.isRetryable(NotificationResult.newFailure(429, "")));
+		assertFalse(RetryPolicy.isRetryable(NotificationResult.newFailure(401, "")));
+		assertFalse(RetryPolicy.isRetryable(NotificationResult.newFailure("no answer")));
+		assertFalse(RetryPolicy.isRetryable(NotificationResult.newSuccess(201)));
+		assertTrue(RetryPolicy.isRetryable(NotificationResult.newTimeout("timed out")));
+	}
+
+	@Test
+	public void test_retryable_exceptions() {
+		assertTrue(RetryPolicy.isRetryable(new IOException("connection reset")));
+		assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+		assertFalse(RetryPolicy.isRetryable(new UnknownHostException()));
+		assertFalse(RetryPolicy.isRetryable(new SSLPeerUnverifiedException("")));
+		assertFalse(RetryPolicy.isRetryable(new ClientProtocolException()));
+		assertFalse(RetryPolicy.isRetryable(new IllegalStateException()));
+	}
+
+	@Test
+	public void test_delay_grows_with_jitter_and_cap() {
+		RetryPolicy policy = new RetryPolicy();
+		for (int attempts = 1; attempts < 30; attempts++) {
+			long full = Math.min(RetryPolicy.MAX_DELAY_MILLIS,
+					RetryPolicy.BASE_DELAY_MILLIS << Math.min(attempts - 1, 20));
+			long delay = policy.delayMillis(attempts);
+			assertTrue(delay >= full / 2);
+			assertTrue(delay <= full);
+		}
+	}
+
+	@Test
+	public void test_max_retries() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setMaxRetries(2);
+		assertTrue(policy.canRetry(1));
+		assertTrue(policy.canRetry(2));
+		assertFalse(policy.canRetry(3));
+		policy.setMaxRetries(0);
+		assertFalse(policy.canRetry(1));
+	}
+}
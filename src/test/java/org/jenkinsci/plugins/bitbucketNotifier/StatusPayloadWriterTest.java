@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.http.util.EntityUtils;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class StatusPayloadWriterTest
+{
+	/** the payload as it used to be built with json-lib. */
+	private static String reference(
+			BitbucketBuildState state, String key, String name, String description, String url) {
+		JSONObject json = new JSONObject();
+		json.put("state", state.name());
+		json.put("key", BitbucketNotifier.abbreviate(key, BitbucketNotifier.MAX_FIELD_LENGTH));
+		String fullName = StringEscapeUtils.escapeJavaScript(name).replaceAll("\\\\u00BB", "\\/");
+		json.put("name", BitbucketNotifier.abbreviate(fullName, BitbucketNotifier.MAX_FIELD_LENGTH));
+		json.put("description", BitbucketNotifier.abbreviate(description, BitbucketNotifier.MAX_FIELD_LENGTH));
+		json.put("url", BitbucketNotifier.abbreviate(url, BitbucketNotifier.MAX_URL_FIELD_LENGTH));
+		return json.toString();
+	}
+
+	private static void assertCompatible(String key, String name, String description, String url)
+			throws Exception {
+		for (BitbucketBuildState state : BitbucketBuildState.values()) {
+			byte[] expected = reference(state, key, name, description, url).getBytes("UTF-8");
+			byte[] actual = EntityUtils.toByteArray(
+					StatusPayloadWriter.newEntity(state, key, name, description, url));
+			assertEquals(new String(expected, "UTF-8"), new String(actual, "UTF-8"));
+			assertArrayEquals(expected, actual);
+		}
+	}
+
+	private static String repeat(String text, int times) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(text);
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void test_plain_payload() throws Exception {
+		assertCompatible(
+			"abc123", "folder \u00bb job #12", "built in 3 min",
+			"https://jenkins.example.com/job/folder/job/job/12/");
+	}
+
+	@Test
+	public void test_escaping() throws Exception {
+		assertCompatible(
+			"it's \"quoted\" \\ </script>",
+			"a/b </c> 'd' \"e\" \\f \t\r\n\b\f \u0001 \u001f \u007f \u0080 \u00e9 \u20ac \ud83d\ude00",
+			"</tag> \u0000 \u001b \u00e9 \u20ac \ud83d\ude00 \ud83d alone \ude00",
+			"http://host/job/\u00e9/<//");
+	}
+
+	@Test
+	public void test_literal_escaped_separator_in_name() throws Exception {
+		assertCompatible("k", "\\u00BB \\\\u00BB \\u00B \u00bbu00BB", "d", "u");
+	}
+
+	@Test
+	public void test_truncation() throws Exception {
+		String ascii = repeat("abcdefghij", 60);
+		assertCompatible(ascii, ascii, ascii, ascii);
+		for (int length = 250; length <= 460; length++) {
+			String text = repeat("x", length - 1) + "\ud83d\ude00";
+			assertCompatible(text, text, text, text);
+		}
+		// escaping makes the name longer than the raw text
+		assertCompatible("k", repeat("\u00e9", 50), "d", "u");
+		assertCompatible("k", repeat("\"", 200), repeat("<", 252) + "/", "u");
+	}
+
+	@Test
+	public void test_random_text() throws Exception {
+		Random random = new Random(42);
+		char[] alphabet = "ab/<>\\\"'\u00bbu0B \t\n\u0001\u00e9\u20ac\ud83d\ude00".toCharArray();
+		for (int i = 0; i < 500; i++) {
+			String[] fields = new String[4];
+			for (int f = 0; f < fields.length; f++) {
+				char[] text = new char[random.nextInt(600)];
+				for (int c = 0; c < text.length; c++) {
+					text[c] = alphabet[random.nextInt(alphabet.length)];
+				}
+				fields[f] = new String(text);
+			}
+			assertCompatible(fields[0], fields[1], fields[2], fields[3]);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.bitbucketNotifier;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Builds the notifications of the tests, with defaults for everything a
+ * test does not look at. The payload defaults to the JSON of the state.
+ */
+final class TestNotification {
+
+	private final String commitSha1;
+	private String serverUrl = "http://localhost";
+	private String credentialsId;
+	private boolean ignoreUnverifiedSSL;
+	private String key = "key";
+	private String job;
+	private BitbucketBuildState state = BitbucketBuildState.SUCCESSFUL;
+	private String payload;
+	private BitbucketServer definition;
+
+	private TestNotification(String commitSha1) {
+		this.commitSha1 = commitSha1;
+	}
+
+	static TestNotification notification(String commitSha1) {
+		return new TestNotification(commitSha1);
+	}
+
+	TestNotification server(String serverUrl) {
+		this.serverUrl = serverUrl;
+		return this;
+	}
+
+	TestNotification server(BitbucketServer definition) {
+		this.definition = definition;
+		this.serverUrl = definition.getUrl();
+		return this;
+	}
+
+	TestNotification credentials(String credentialsId, boolean ignoreUnverifiedSSL) {
+		this.credentialsId = credentialsId;
+		this.ignoreUnverifiedSSL = ignoreUnverifiedSSL;
+		return this;
+	}
+
+	TestNotification key(String key) {
+		this.key = key;
+		return this;
+	}
+
+	TestNotification job(String job) {
+		this.job = job;
+		return this;
+	}
+
+	TestNotification state(BitbucketBuildState state) {
+		this.state = state;
+		return this;
+	}
+
+	TestNotification payload(String payload) {
+		this.payload = payload;
+		return this;
+	}
+
+	BitbucketNotification build() {
+		return build(new NotificationCallback(System.out));
+	}
+
+	BitbucketNotification build(NotificationCallback callback) {
+		String body = payload != null ? payload : "{\"state\":\"" + state + "\"}";
+		return new BitbucketNotification(
+			serverUrl, credentialsId, ignoreUnverifiedSSL, commitSha1, key, job, state,
+			new StringEntity(body, ContentType.APPLICATION_JSON),
+			HttpTimeouts.DEFAULT, callback, definition);
+	}
+}